@@ -12,6 +12,7 @@ public class GeodesicReconstruction_3D implements PlugIn
 	static int markerIndex = 0;
 	static int maskIndex = 1;
 	static int operationIndex = 0;
+	static int connectivityIndex = 2;
 	
 	@Override
 	public void run(String arg) 
@@ -42,6 +43,8 @@ public class GeodesicReconstruction_3D implements PlugIn
         gd.addChoice( "Mask", names, names[ maskIndex ] );
         String[] operations = new String[]{ "reconstruction by dilation" };
         gd.addChoice( "Geodesic operation", operations, operations[ operationIndex ] );
+        String[] connectivities = new String[]{ "6", "18", "26" };
+        gd.addChoice( "Connectivity", connectivities, connectivities[ connectivityIndex ] );
 
         gd.showDialog();
         
@@ -50,6 +53,7 @@ public class GeodesicReconstruction_3D implements PlugIn
         	markerIndex = gd.getNextChoiceIndex();
             maskIndex = gd.getNextChoiceIndex();
             operationIndex = gd.getNextChoiceIndex();
+            connectivityIndex = gd.getNextChoiceIndex();
             
             final ImagePlus marker = WindowManager.getImage( markerIndex + 1 );
             final ImagePlus mask = WindowManager.getImage( maskIndex + 1 );
@@ -62,6 +66,7 @@ public class GeodesicReconstruction_3D implements PlugIn
             }
             
             GeodesicReconstruction gr = new GeodesicReconstruction( marker, mask );
+            gr.setConnectivity( Integer.parseInt( connectivities[ connectivityIndex ] ) );
             ImagePlus output = null;
             
             final long start = System.currentTimeMillis();
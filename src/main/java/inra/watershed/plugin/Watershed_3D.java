@@ -20,16 +20,25 @@ package inra.watershed.plugin;
  * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
  */
 
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
 import ij.plugin.PlugIn;
 import ij.process.ImageProcessor;
+import ij.util.ThreadUtil;
 import inra.watershed.process.ComponentLabelling;
+import inra.watershed.process.IntLabelStack;
 import inra.watershed.process.RegionalMinimaFilter;
 import inra.watershed.process.WatershedTransform3D;
+import inra.watershed.process.WatershedWorkspace;
 
 
 /**
@@ -42,7 +51,63 @@ import inra.watershed.process.WatershedTransform3D;
 public class Watershed_3D implements PlugIn 
 {
 	
+	/** names of the available flooding methods */
+	public static final String[] floodingMethods = new String[]{
+		"Sorted voxels", "Priority queue", "Parallel slabs", "Parallel levels", "Streaming slabs",
+		"Quantized levels", "Coarse to fine" };
+	/** index of the flooding method to use */
+	public int floodingMethod = 0;
+	/** 
+	 * use the priority queue flooding method (same as setting 
+	 * {@link #floodingMethod} to 1)
+	 * @deprecated use {@link #floodingMethod} instead
+	 */
+	@Deprecated
 	public boolean usePriorityQueue = false;
+	/** available voxel connectivities */
+	public static final String[] connectivities = new String[]{ "6", "18", "26" };
+	/** voxel connectivity used for the seeds and the flooding */
+	public int connectivity = 26;
+	/** number of slices of each slab when streaming */
+	public int slabDepth = 64;
+	/** directory to save the label slices to when streaming */
+	public String labelDirectory = null;
+	/** number of levels to quantize 32-bit inputs to */
+	public int quantizationLevels = 4096;
+	/** downsampling factor of the coarse flooding */
+	public int resolutionFactor = 4;
+	/** buffers reused between runs (null to allocate new ones) */
+	public WatershedWorkspace workspace = null;
+	/** number of frames (and channels) of a hyperstack segmented at the same time */
+	public int parallelFrames = 2;
+	/** number of threads of each segmentation (0 for the ImageJ threads) */
+	public int numThreads = 0;
+
+	/**
+	 * Run the watershed transform with the selected flooding method
+	 * @param wt watershed transform
+	 * @return watershed domains image
+	 */
+	ImagePlus flood( WatershedTransform3D wt )
+	{
+		switch( usePriorityQueue ? 1 : floodingMethod )
+		{
+			case 1:
+				return wt.applyWithPriorityQueue();
+			case 2:
+				return wt.applyParallel();
+			case 3:
+				return wt.applyLevelSynchronous();
+			case 4:
+				return wt.applyStreaming( slabDepth, labelDirectory );
+			case 5:
+				return wt.applyQuantized( quantizationLevels );
+			case 6:
+				return wt.applyMultiResolution( resolutionFactor );
+			default:
+				return wt.apply();
+		}
+	}
 
 	/**
 	 * Apply 3D watershed to a 2D or 3D image (it does work for 2D images too).
@@ -60,6 +125,9 @@ public class Watershed_3D implements PlugIn
 		IJ.log("-> Running regional minima filter...");
 		
 		RegionalMinimaFilter rmf = new RegionalMinimaFilter( seed );
+		rmf.setConnectivity( connectivity );
+		rmf.setNumThreads( numThreads );
+		rmf.setWorkspace( workspace );
 		ImagePlus regionalMinima = rmf.apply();
 		
 		//regionalMinima.show();
@@ -71,7 +139,9 @@ public class Watershed_3D implements PlugIn
 		IJ.log("-> Running connected components...");
 		
 		ComponentLabelling cl = new ComponentLabelling( regionalMinima );
-		ImagePlus connectedMinima = cl.apply();
+		cl.setConnectivity( connectivity );
+		cl.setWorkspace( workspace );
+		ImagePlus connectedMinima = cl.applyToIntLabels();
 		
 		//connectedMinima.show();
 		
@@ -81,7 +151,10 @@ public class Watershed_3D implements PlugIn
 		IJ.log("-> Running watershed...");
 		
 		WatershedTransform3D wt = new WatershedTransform3D(input, connectedMinima, null);
-		ImagePlus resultImage = usePriorityQueue == false ? wt.apply() : wt.applyWithPriorityQueue();
+		wt.setConnectivity( connectivity );
+		wt.setNumThreads( numThreads );
+		wt.setWorkspace( workspace );
+		ImagePlus resultImage = flood( wt );
 		
 		final long end = System.currentTimeMillis();
 		IJ.log( "Watershed 3d took " + (end-step2) + " ms.");
@@ -109,9 +182,17 @@ public class Watershed_3D implements PlugIn
 		IJ.log("-> Running regional minima filter...");
 		
 		RegionalMinimaFilter rmf = new RegionalMinimaFilter( seed );
+		rmf.setConnectivity( connectivity );
+		rmf.setNumThreads( numThreads );
+		rmf.setWorkspace( workspace );
+		ImagePlus regionalMinima;
 		if( null != mask )
+		{
 			rmf.setMask( mask );
-		ImagePlus regionalMinima = rmf.apply();
+			regionalMinima = rmf.applyWithMask();
+		}
+		else
+			regionalMinima = rmf.apply();
 		
 		//regionalMinima.show();
 		
@@ -122,7 +203,9 @@ public class Watershed_3D implements PlugIn
 		IJ.log("-> Running connected components...");
 		
 		ComponentLabelling cl = new ComponentLabelling( regionalMinima );
-		ImagePlus connectedMinima = cl.apply();
+		cl.setConnectivity( connectivity );
+		cl.setWorkspace( workspace );
+		ImagePlus connectedMinima = cl.applyToIntLabels();
 		
 		//connectedMinima.show();
 		
@@ -132,7 +215,10 @@ public class Watershed_3D implements PlugIn
 		IJ.log("-> Running watershed...");
 		
 		WatershedTransform3D wt = new WatershedTransform3D( input, connectedMinima, mask );
-		ImagePlus resultImage = usePriorityQueue == false ? wt.apply() : wt.applyWithPriorityQueue();
+		wt.setConnectivity( connectivity );
+		wt.setNumThreads( numThreads );
+		wt.setWorkspace( workspace );
+		ImagePlus resultImage = flood( wt );
 		
 		final long end = System.currentTimeMillis();
 		IJ.log( "Watershed 3d took " + (end-step2) + " ms.");
@@ -143,6 +229,214 @@ public class Watershed_3D implements PlugIn
 	}
 	
 
+	/**
+	 * Apply 3D watershed to a list of images, using each image to
+	 * calculate its own seeds. The images of the same size share the
+	 * buffers of a workspace, so each result is handed to the handler 
+	 * before being overwritten by the next run.
+	 *
+	 * @param inputs the 2D or 3D images (in principle "gradient" images)
+	 * @param handler receiver of the watershed domains of each image
+	 */
+	public void processBatch(
+			List<ImagePlus> inputs,
+			WatershedWorkspace.ResultHandler handler )
+	{
+		final WatershedWorkspace previous = workspace;
+		try
+		{
+			for( int i = 0; i < inputs.size(); ++i )
+			{
+				final ImagePlus input = inputs.get( i );
+				if( null == workspace || workspace.fits( input ) == false )
+					workspace = new WatershedWorkspace( input );
+				handler.handle( i, input, process( input, input ) );
+			}
+		}
+		finally
+		{
+			workspace = previous;
+		}
+	}
+
+	/**
+	 * Apply 3D watershed to each frame and channel of a hyperstack. 
+	 * The volumes are segmented independently by a bounded number of
+	 * threads ({@link #parallelFrames}), each one reusing its own 
+	 * workspace, so only the volumes in flight are being processed 
+	 * at a time. The threads ({@link #numThreads}, or the ImageJ threads
+	 * by default) are split between the volumes in flight, so each 
+	 * volume is segmented with its share of them. The seed and mask images can be 
+	 * hyperstacks with the same channels and frames, or single volumes
+	 * used for all of them.
+	 *
+	 * @param input the input hyperstack (in principle a "gradient" image)
+	 * @param seed the image to calculate the seeds from
+	 * @param mask the mask to constraint the watershed (null for no mask)
+	 * @return labeled hyperstack with the dimensions of the input
+	 */
+	public ImagePlus processHyperstack(
+			final ImagePlus input,
+			final ImagePlus seed,
+			final ImagePlus mask )
+	{
+		final long start = System.currentTimeMillis();
+		
+		final int numChannels = input.getNChannels();
+		final int numSlices = input.getNSlices();
+		final int numFrames = input.getNFrames();
+		final int numVolumes = numChannels * numFrames;
+		final ImageStack[] results = new ImageStack[ numVolumes ];
+		
+		// split the threads between the volumes and their floodings
+		final int totalThreads = numThreads > 0 ? numThreads : Prefs.getThreads();
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = ThreadUtil.createThreadArray( 
+				Math.max( 1, Math.min( Math.min( parallelFrames, totalThreads ), numVolumes ) ) );
+		final int volumeThreads = Math.max( 1, totalThreads / threads.length );
+		for (int ithread = 0; ithread < threads.length; ithread++) 
+		{
+			threads[ithread] = new Thread() {
+				public void run() {
+					final Watershed_3D worker = copySettings();
+					worker.numThreads = volumeThreads;
+					for (int v = ai.getAndIncrement(); v < numVolumes; v = ai.getAndIncrement())
+					{
+						final int c = v % numChannels + 1;
+						final int t = v / numChannels + 1;
+						final ImagePlus volume = getVolume( input, c, t );
+						if( floodingMethod == 0 && usePriorityQueue == false && ( null == worker.workspace || worker.workspace.fits( volume ) == false ) )
+							worker.workspace = new WatershedWorkspace( volume );
+						if( null != labelDirectory )
+						{
+							final File directory = new File( labelDirectory, String.format( "c%02d-t%04d", c, t ) );
+							directory.mkdirs();
+							worker.labelDirectory = directory.getPath();
+						}
+						IJ.log( "-> Segmenting channel " + c + ", frame " + t + "..." );
+						final ImagePlus result = worker.process( volume, getVolume( seed, c, t ), 
+								null != mask ? getVolume( mask, c, t ) : null );
+						results[ v ] = null != worker.workspace ? 
+								copyStack( result.getStack() ) : result.getStack();
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+		
+		// assemble the hyperstack (32-bit if one of the volumes is, with 
+		// integer labels if one of the volumes has them)
+		boolean floatLabels = false;
+		boolean intLabels = false;
+		for( final ImageStack result : results )
+		{
+			floatLabels |= result.getBitDepth() == 32;
+			intLabels |= result instanceof IntLabelStack;
+		}
+		final ImageStack labelStack = intLabels ? 
+				new IntLabelStack( input.getWidth(), input.getHeight(), 0 ) :
+				new ImageStack( input.getWidth(), input.getHeight() );
+		for( int t = 0; t < numFrames; ++t )
+			for( int z = 1; z <= numSlices; ++z )
+				for( int c = 0; c < numChannels; ++c )
+				{
+					final ImageStack result = results[ t * numChannels + c ];
+					if( intLabels )
+						labelStack.addSlice( "", result instanceof IntLabelStack ?
+								(Object) ( (IntLabelStack) result ).getLabels( z ) : result.getPixels( z ) );
+					else
+					{
+						final ImageProcessor ip = result.getProcessor( z );
+						labelStack.addSlice( "", floatLabels ? ip.convertToFloat() : ip );
+					}
+				}
+		
+		final ImagePlus resultImage = new ImagePlus( "watershed", labelStack );
+		resultImage.setDimensions( numChannels, numSlices, numFrames );
+		resultImage.setOpenAsHyperStack( true );
+		resultImage.setCalibration( input.getCalibration() );
+		
+		final long end = System.currentTimeMillis();
+		IJ.log( "Hyperstack (" + numVolumes + " volumes) took " + (end-start) + " ms.");
+		return resultImage;
+	}
+	
+	/**
+	 * Get a volume of a hyperstack (sharing its pixels). Single channel
+	 * or single frame images give the same volume for all the channels
+	 * or frames.
+	 * @param image hyperstack
+	 * @param channel channel index (1-based)
+	 * @param frame frame index (1-based)
+	 * @return image with the slices of the volume
+	 */
+	static ImagePlus getVolume( 
+			final ImagePlus image, 
+			final int channel, 
+			final int frame )
+	{
+		final int c = Math.min( channel, image.getNChannels() );
+		final int t = Math.min( frame, image.getNFrames() );
+		final ImageStack stack = image.getStack();
+		final ImageStack volume = stack instanceof IntLabelStack ? 
+				new IntLabelStack( image.getWidth(), image.getHeight(), 0 ) :
+				new ImageStack( image.getWidth(), image.getHeight() );
+		for( int z = 1; z <= image.getNSlices(); ++z )
+		{
+			final int n = image.getStackIndex( c, z, t );
+			volume.addSlice( "", stack instanceof IntLabelStack ? 
+					(Object) ( (IntLabelStack) stack ).getLabels( n ) : stack.getPixels( n ) );
+		}
+		final ImagePlus result = new ImagePlus( image.getTitle(), volume );
+		result.setCalibration( image.getCalibration() );
+		return result;
+	}
+	
+	/**
+	 * Copy the pixels of a stack (to keep a result that shares the
+	 * buffers of a workspace)
+	 * @param stack stack to copy
+	 * @return copy of the stack
+	 */
+	static ImageStack copyStack( final ImageStack stack )
+	{
+		if( stack instanceof IntLabelStack )
+		{
+			final IntLabelStack labels = (IntLabelStack) stack;
+			final IntLabelStack copy = new IntLabelStack( stack.getWidth(), stack.getHeight(), 0 );
+			for( int z = 1; z <= stack.getSize(); ++z )
+				copy.addSlice( "", labels.getLabels( z ).clone() );
+			return copy;
+		}
+		final ImageStack copy = new ImageStack( stack.getWidth(), stack.getHeight() );
+		for( int z = 1; z <= stack.getSize(); ++z )
+		{
+			final Object pixels = stack.getPixels( z );
+			copy.addSlice( "", pixels instanceof byte[] ? (Object) ( (byte[]) pixels ).clone() : 
+					pixels instanceof short[] ? (Object) ( (short[]) pixels ).clone() : 
+					( (float[]) pixels ).clone() );
+		}
+		return copy;
+	}
+	
+	/**
+	 * @return new instance of the plugin with the same settings (but no workspace)
+	 */
+	Watershed_3D copySettings()
+	{
+		final Watershed_3D copy = new Watershed_3D();
+		copy.floodingMethod = floodingMethod;
+		copy.usePriorityQueue = usePriorityQueue;
+		copy.connectivity = connectivity;
+		copy.slabDepth = slabDepth;
+		copy.labelDirectory = labelDirectory;
+		copy.quantizationLevels = quantizationLevels;
+		copy.resolutionFactor = resolutionFactor;
+		copy.parallelFrames = parallelFrames;
+		copy.numThreads = numThreads;
+		return copy;
+	}
+
 	public void showAbout() {
 		IJ.showMessage("Watershed 3D",
 			"a plugin for 3D watershed"
@@ -184,7 +478,12 @@ public class Watershed_3D implements PlugIn
         gd.addChoice( "Input image", names, names[spot] );
         gd.addChoice( "Image to seed from", names, names[seed] );
         gd.addChoice( "Mask", namesMask, namesMask[ nbima > 2 ? 3 : 0 ] );
-        gd.addCheckbox( "Use priority queue", usePriorityQueue );
+        gd.addChoice( "Flooding method", floodingMethods, floodingMethods[ usePriorityQueue ? 1 : floodingMethod ] );
+        gd.addChoice( "Connectivity", connectivities, Integer.toString( connectivity ) );
+        gd.addNumericField( "Slab depth (streaming)", slabDepth, 0 );
+        gd.addNumericField( "Quantization levels (32-bit)", quantizationLevels, 0 );
+        gd.addNumericField( "Downsampling factor (coarse to fine)", resolutionFactor, 0 );
+        gd.addNumericField( "Frames in parallel (hyperstacks)", parallelFrames, 0 );
 
         gd.showDialog();
         
@@ -193,13 +492,27 @@ public class Watershed_3D implements PlugIn
             spot = gd.getNextChoiceIndex();
             seed = gd.getNextChoiceIndex();
             int maskIndex = gd.getNextChoiceIndex();
-            usePriorityQueue = gd.getNextBoolean();
+            floodingMethod = gd.getNextChoiceIndex();
+            usePriorityQueue = false;
+            connectivity = Integer.parseInt( connectivities[ gd.getNextChoiceIndex() ] );
+            slabDepth = Math.max( 1, (int) gd.getNextNumber() );
+            quantizationLevels = Math.min( 65536, Math.max( 2, (int) gd.getNextNumber() ) );
+            resolutionFactor = Math.max( 1, (int) gd.getNextNumber() );
+            parallelFrames = Math.max( 1, (int) gd.getNextNumber() );
+            if( floodingMethod == 4 )
+            {
+            	labelDirectory = IJ.getDirectory( "Directory to save the labels to" );
+            	if( null == labelDirectory )
+            		return;
+            }
 
             ImagePlus inputImage = WindowManager.getImage(spot + 1);
             ImagePlus seedImage = WindowManager.getImage(seed + 1);
             ImagePlus maskImage = maskIndex > 0 ? WindowManager.getImage( maskIndex ) : null;
             
-            ImagePlus result = process( inputImage, seedImage, maskImage );
+            ImagePlus result = inputImage.getNChannels() * inputImage.getNFrames() > 1 ?
+            		processHyperstack( inputImage, seedImage, maskImage ) :
+            		process( inputImage, seedImage, maskImage );
             
             // Adjust range to visualize result
             //if( result.getImageStackSize() > 1 )
@@ -0,0 +1,231 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+/**
+ * Hierarchical (bucket) queue of voxel indices for integer gray levels.
+ * There is one FIFO per gray level, stored as a circular primitive
+ * array, so insertions and removals take constant time and voxels of
+ * the same level come out in the order they went in. Voxel values are
+ * mapped to levels by {@link #quantize(float, float, float, int)}. The
+ * FIFO of a level is kept once drained, so refilling it does not 
+ * allocate again.
+ */
+public class BucketQueue implements VoxelQueue
+{
+	/** initial capacity of each level FIFO (power of 2) */
+	static final int INITIAL_CAPACITY = 16;
+
+	/** circular buffer of voxel indices for each gray level */
+	final long[][] buckets;
+	/** position of the first element of each buffer */
+	final int[] first;
+	/** number of elements in each buffer */
+	final int[] count;
+	/** lowest level that may contain elements */
+	int currentLevel = 0;
+	/** total number of elements in the queue */
+	int size = 0;
+	/** value of level 0 */
+	final float min;
+	/** number of levels per unit */
+	final float scale;
+
+	/**
+	 * Create an empty bucket queue for integer values
+	 * @param numLevels number of gray levels (256 for 8-bit, 65536 for 16-bit)
+	 */
+	public BucketQueue( final int numLevels )
+	{
+		this( numLevels, 0, 1 );
+	}
+
+	/**
+	 * Create an empty bucket queue quantizing the voxel values
+	 * @param numLevels number of levels
+	 * @param min value of level 0
+	 * @param scale number of levels per unit
+	 */
+	public BucketQueue( final int numLevels, final float min, final float scale )
+	{
+		this.buckets = new long[ numLevels ][];
+		this.first = new int[ numLevels ];
+		this.count = new int[ numLevels ];
+		this.currentLevel = numLevels;
+		this.min = min;
+		this.scale = scale;
+	}
+
+	/**
+	 * Quantize a voxel value
+	 * @param value voxel value
+	 * @param min value of level 0
+	 * @param scale number of levels per unit
+	 * @param numLevels number of levels
+	 * @return level of the value (rounded to the nearest level)
+	 */
+	public static int quantize( 
+			final float value, 
+			final float min, 
+			final float scale, 
+			final int numLevels )
+	{
+		final int level = (int) ( ( value - min ) * scale + 0.5f );
+		return level < 0 ? 0 : level >= numLevels ? numLevels - 1 : level;
+	}
+
+	/**
+	 * Add a voxel index at the end of the FIFO of the level of its value
+	 * @param index voxel index
+	 * @param value voxel value
+	 */
+	public void add( final long index, final float value )
+	{
+		add( index, quantize( value, min, scale, buckets.length ) );
+	}
+
+	/**
+	 * Add many voxels at once, quantizing their values
+	 * (see {@link #addAll(long[], int[], int)})
+	 * @param indices voxel indices
+	 * @param values voxel values
+	 * @param n number of voxels to add
+	 */
+	public void addAll( final long[] indices, final float[] values, final int n )
+	{
+		final int[] levels = new int[ n ];
+		for( int i = 0; i < n; ++i )
+			levels[ i ] = quantize( values[ i ], min, scale, buckets.length );
+		addAll( indices, levels, n );
+	}
+
+	/**
+	 * Add a voxel index at the end of the FIFO of its gray level
+	 * @param index voxel index
+	 * @param level gray level of the voxel
+	 */
+	public void add( final long index, final int level )
+	{
+		long[] bucket = buckets[ level ];
+		if( null == bucket )
+		{
+			bucket = new long[ INITIAL_CAPACITY ];
+			buckets[ level ] = bucket;
+			first[ level ] = 0;
+		}
+		else if( count[ level ] == bucket.length )
+			bucket = grow( level );
+
+		bucket[ ( first[ level ] + count[ level ] ) & ( bucket.length - 1 ) ] = index;
+		count[ level ]++;
+		size++;
+
+		if( level < currentLevel )
+			currentLevel = level;
+	}
+
+	/**
+	 * Add many voxels at once: the levels are counted first so each
+	 * FIFO grows at most once. Voxels of the same level keep their order.
+	 * @param indices voxel indices
+	 * @param levels gray level of each voxel
+	 * @param n number of voxels to add
+	 */
+	public void addAll( final long[] indices, final int[] levels, final int n )
+	{
+		final int[] added = new int[ buckets.length ];
+		for( int i = 0; i < n; ++i )
+			added[ levels[ i ] ]++;
+
+		for( int level = 0; level < buckets.length; ++level )
+		{
+			if( added[ level ] == 0 )
+				continue;
+			final int needed = count[ level ] + added[ level ];
+			final int capacity = Integer.highestOneBit( Math.max( needed, INITIAL_CAPACITY ) - 1 ) << 1;
+			if( null == buckets[ level ] )
+			{
+				buckets[ level ] = new long[ capacity ];
+				first[ level ] = 0;
+			}
+			else if( buckets[ level ].length < needed )
+			{
+				while( buckets[ level ].length < capacity )
+					grow( level );
+			}
+			if( level < currentLevel )
+				currentLevel = level;
+		}
+
+		for( int i = 0; i < n; ++i )
+		{
+			final int level = levels[ i ];
+			final long[] bucket = buckets[ level ];
+			bucket[ ( first[ level ] + count[ level ] ) & ( bucket.length - 1 ) ] = indices[ i ];
+			count[ level ]++;
+		}
+		size += n;
+	}
+
+	/**
+	 * Remove the first voxel index of the lowest non-empty level
+	 * @return voxel index
+	 */
+	public long poll()
+	{
+		while( count[ currentLevel ] == 0 )
+			currentLevel++;
+
+		final long[] bucket = buckets[ currentLevel ];
+		final long index = bucket[ first[ currentLevel ] ];
+		first[ currentLevel ] = ( first[ currentLevel ] + 1 ) & ( bucket.length - 1 );
+		count[ currentLevel ]--;
+		size--;
+		return index;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Double the capacity of a full level FIFO, unrolling its contents
+	 * @param level gray level to grow
+	 * @return the new buffer
+	 */
+	long[] grow( final int level )
+	{
+		final long[] bucket = buckets[ level ];
+		final long[] larger = new long[ bucket.length << 1 ];
+		final int head = first[ level ];
+		System.arraycopy( bucket, head, larger, 0, bucket.length - head );
+		System.arraycopy( bucket, 0, larger, bucket.length - head, head );
+		buckets[ level ] = larger;
+		first[ level ] = 0;
+		return larger;
+	}
+}
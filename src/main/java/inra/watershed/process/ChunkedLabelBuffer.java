@@ -0,0 +1,107 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+import java.util.Arrays;
+
+/**
+ * Label buffer stored on the heap in chunks of 2^CHUNK_BITS labels,
+ * for the volumes whose padded buffer does not fit in a single array
+ * (more than 2^31 voxels). The chunk and the position in the chunk
+ * are the upper and lower bits of the padded index.
+ */
+public class ChunkedLabelBuffer extends LabelBuffer
+{
+	/** default number of bits of the index within a chunk */
+	static final int CHUNK_BITS = 28;
+
+	/** number of bits of the index within a chunk */
+	final int chunkBits;
+	/** mask of the index within a chunk */
+	final int chunkMask;
+	/** labels of each chunk */
+	final int[][] chunks;
+
+	/**
+	 * Allocate a chunked label buffer for a volume, with all voxels
+	 * unlabeled (0) and the border set to BORDER
+	 * @param width volume width
+	 * @param height volume height
+	 * @param depth volume depth
+	 */
+	public ChunkedLabelBuffer(
+			final int width,
+			final int height,
+			final int depth )
+	{
+		this( width, height, depth, CHUNK_BITS );
+	}
+
+	/**
+	 * Allocate a chunked label buffer with a given chunk size
+	 * @param width volume width
+	 * @param height volume height
+	 * @param depth volume depth
+	 * @param chunkBits number of bits of the index within a chunk
+	 */
+	ChunkedLabelBuffer(
+			final int width,
+			final int height,
+			final int depth,
+			final int chunkBits )
+	{
+		super( width, height, depth, null );
+		this.chunkBits = chunkBits;
+		this.chunkMask = ( 1 << chunkBits ) - 1;
+
+		final long size = paddedSize( width, height, depth );
+		final int numChunks = (int) ( ( size + chunkMask ) >> chunkBits );
+		this.chunks = new int[ numChunks ][];
+		for( int c = 0; c < numChunks; ++c )
+			chunks[ c ] = new int[ (int) Math.min( size - ( (long) c << chunkBits ), 1L << chunkBits ) ];
+
+		fillBorder();
+	}
+
+	@Override
+	protected void fill( final long from, final long to, final int value )
+	{
+		for( long start = from; start < to; )
+		{
+			final int c = (int) ( start >>> chunkBits );
+			final long end = Math.min( to, (long) ( c + 1 ) << chunkBits );
+			Arrays.fill( chunks[ c ], (int) ( start & chunkMask ), (int) ( ( end - 1 ) & chunkMask ) + 1, value );
+			start = end;
+		}
+	}
+
+	@Override
+	public int get( final long index )
+	{
+		return chunks[ (int) ( index >>> chunkBits ) ][ (int) index & chunkMask ];
+	}
+
+	@Override
+	public void set( final long index, final int label )
+	{
+		chunks[ (int) ( index >>> chunkBits ) ][ (int) index & chunkMask ] = label;
+	}
+}
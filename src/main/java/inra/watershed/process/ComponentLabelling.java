@@ -20,13 +20,10 @@ package inra.watershed.process;
  * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
  */
 
-import java.util.ArrayList;
+import java.util.Arrays;
 
-import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.process.ImageProcessor;
-import ij.process.StackConverter;
 
 /**
  * This class calculates the connected components of a binary image
@@ -40,8 +37,12 @@ public class ComponentLabelling
 	ImagePlus inputImage = null;
 	/** number of current labels */
 	int numLabels = 0;
-	/** list of labels */
-	ArrayList<Integer> labelTable = null;
+	/** voxel connectivity (6, 18 or 26) */
+	int connectivity = 6;
+	/** buffers to reuse (null to allocate new ones) */
+	WatershedWorkspace workspace = null;
+	/** listener of the status and progress of the labelling */
+	ProgressListener progressListener = ImageJProgressListener.getDefault();
 
 	/**
 	 * Constructor for the connected components class
@@ -53,371 +54,176 @@ public class ComponentLabelling
 	}
 
 	/**
-	 * Increases the number of current labels by one
-	 * @return current number of labels
+	 * Set the connectivity used to connect the voxels of a component
+	 * @param connectivity 6, 18 or 26
 	 */
-	int newLabel()
+	public void setConnectivity( final int connectivity )
 	{
-		++numLabels;
-		
-		labelTable.add( numLabels );
-
-		return numLabels;
+		NeighborOffsets.getShifts( connectivity );
+		this.connectivity = connectivity;
 	}
 	
 	/**
-	 * Compare 3 labels and update them to the minimum one 
-	 * @param l1 label 1
-	 * @param l2 label 2
-	 * @param l3 label 3
-	 * @return minimum label between the 3
+	 * @return voxel connectivity (6, 18 or 26)
 	 */
-	int equivLabel( int l1, int l2, int l3 )
+	public int getConnectivity()
 	{
-	  int min = 0;
-
-	  if ( l1 < l2 )
-	  {
-	    min = l1;
-	    labelTable.set( l2, l1 );
-	    labelTable.set( l3, l1 );
-	  }
-	  else
-	  {
-	    min = l2;
-	    labelTable.set( l1, l2 );
-	    labelTable.set( l3, l2 );
-	  }
-
-	  if ( l3 < min )
-	  {
-	    min = l3;
-	    labelTable.set( l1, l3 );
-	    labelTable.set( l2, l3 );
-	    labelTable.set( l3, l3 );
-	  }
-
-	  return min;
+		return connectivity;
 	}
-
+	
+	/**
+	 * Set the workspace to take the output and union-find buffers from.
+	 * The output image is then overwritten by the next run with the 
+	 * same workspace.
+	 * @param workspace workspace of the size of the input (null to allocate new buffers)
+	 */
+	public void setWorkspace( final WatershedWorkspace workspace )
+	{
+		this.workspace = workspace;
+	}
+	
+	/**
+	 * Set the listener of the status and progress of the labelling
+	 * (the ImageJ status bar by default, nothing in headless mode)
+	 * @param progressListener progress listener
+	 */
+	public void setProgressListener( final ProgressListener progressListener )
+	{
+		this.progressListener = null != progressListener ? progressListener : ProgressListener.NONE;
+	}
+	
 	/**
 	 * Apply 2-pass connected components to the input
-	 * image with 6-voxel connectivity.
+	 * image with 6, 18 or 26-voxel connectivity.
 	 * @return 32-bit image with the found connected components
 	 */
 	public ImagePlus apply()
 	{
-		ImagePlus imageOutput = inputImage.duplicate();
-		// Make sure output image is 32-bit
-		if( imageOutput.getType() != ImagePlus.GRAY32 )
+		final IntLabelStack labels = (IntLabelStack) applyToIntLabels().getStack();
+		final ImageStack outputStack = new ImageStack( labels.getWidth(), labels.getHeight() );
+		for( int k = 1; k <= labels.getSize(); ++k )
+			outputStack.addSlice( "", labels.getPixels( k ) );
+		final ImagePlus imageOutput = new ImagePlus( "connected-components-" + inputImage.getTitle(), outputStack );
+		imageOutput.setCalibration( inputImage.getCalibration() );
+		return imageOutput;
+	}
+	
+	/**
+	 * Apply 2-pass connected components to the input image, keeping
+	 * the labels as integers (exact for any number of components)
+	 * @return image of the connected components on an {@link IntLabelStack}
+	 */
+	public ImagePlus applyToIntLabels()
+	{
+		final ImageStack inputStack = inputImage.getStack();
+		final IntLabelStack labels = null != workspace ? workspace.getComponentLabels() :
+				new IntLabelStack( inputStack.getWidth(), inputStack.getHeight(), inputStack.getSize() );
+		for( int k = 1; k <= labels.getSize(); ++k )
 		{
-			if( imageOutput.getImageStackSize() > 1 )
-				(new StackConverter( imageOutput )).convertToGray32();
-			else
-			{
-				ImageProcessor ip = imageOutput.getProcessor();
-				ip.resetMinAndMax();	// important not to lose the ones
-										// in the conversion
-				imageOutput = new ImagePlus( imageOutput.getTitle(), 
-						 						ip.convertToFloat());
-			}
-					
+			final Object in = inputStack.getPixels( k );
+			final int[] out = labels.getLabels( k );
+			for( int i = 0; i < out.length; ++i )
+				out[ i ] = WatershedTransform3D.getValue( in, i ) != 0 ? 1 : 0;
 		}
-		
-		final ImageStack outputStack = imageOutput.getStack();
-		
-		
-		final ImageStack inputStack = inputImage.getStack();
-	    final int size1 = inputStack.getWidth();
-	    final int size2 = inputStack.getHeight();
-	    final int size3 = inputStack.getSize();
-	    
-		int v1, v2, v3;  // previous voxels along dimension 1, 2, 3
-		int i, j, k;
+		labelWithUnionFind( labels );
+		final ImagePlus imageOutput = new ImagePlus( "connected-components-" + inputImage.getTitle(), labels );
+		imageOutput.setCalibration( inputImage.getCalibration() );
+		return imageOutput;
+	}
 
-		labelTable = new ArrayList<Integer>( );
+	/**
+	 * Label the connected components of a label stack in place. Each
+	 * voxel is compared with its neighbors already visited in the scan
+	 * order (slices, then columns, then rows), and the provisional 
+	 * labels are merged in a union-find table. Labels are then 
+	 * renumbered in the order of the first voxel of each component.
+	 * 
+	 * @param stack label stack, non-zero voxels are foreground
+	 */
+	void labelWithUnionFind( final IntLabelStack stack )
+	{
+		final int size1 = stack.getWidth();
+		final int size2 = stack.getHeight();
+		final int size3 = stack.getSize();
+		
+		// neighbors visited before the current voxel
+		final int[][] shifts = NeighborOffsets.getShifts( connectivity );
+		int numBackward = 0;
+		final int[][] backward = new int[ shifts.length / 2 ][];
+		for( final int[] s : shifts )
+			if( s[ 2 ] < 0 || ( s[ 2 ] == 0 && ( s[ 0 ] < 0 || ( s[ 0 ] == 0 && s[ 1 ] < 0 ) ) ) )
+				backward[ numBackward++ ] = s;
 		
-		labelTable.add( 0 );
+		final int[][] pixels = new int[ size3 ][];
+		for( int k = 0; k < size3; ++k )
+			pixels[ k ] = stack.getLabels( k + 1 );
 		
+		int[] parent = null != workspace ? workspace.parent : new int[ 1024 ];
 		numLabels = 0;
-
-		IJ.showStatus( "Calculated connected components..." );
 		
-
-		// first plane of the volume, first voxel
-		if ( outputStack.getVoxel( 0,0,0 ) != 0 )
-		{
-			outputStack.setVoxel( 0,0,0, newLabel() );
-		}
-
-		// first plane, first column
-		k = i = 0;
-		for (j = 1 ; j < size2; ++j)
-		{
-			if ( outputStack.getVoxel(i,j,k) != 0 )
-			{
-				v2 = (int) outputStack.getVoxel(i,j-1,k) ;
-				outputStack.setVoxel( i,j,k, v2 != 0 ? v2: newLabel() );
-			}
-		}
-
-		// rest of first plane
-		for (k = 0, i = 1; i < size1; ++i)
-		{
-			// first voxel in the column
-			if ( outputStack.getVoxel(i, 0, 0) != 0 )
-			{
-				v1 = (int)( outputStack.getVoxel(i-1,0,0) );
-				outputStack.setVoxel( i,0,0, v1 != 0 ? v1: newLabel() );
-			}
-
-			// other voxel in the column
-			for (j = 1; j < size2; ++j)
-			{
-				if ( outputStack.getVoxel( i,j,k ) != 0 )
-				{
-					v1 = (int)( outputStack.getVoxel(i-1,j,k) );
-					v2 = (int)( outputStack.getVoxel(i,j-1,k) );
-
-					if ( v1 != 0 )
-					{
-						if ( v2 != 0 )
-						{
-							while ( v1 != labelTable.get( v1 ) ) 
-								v1 = labelTable.get( v1 );
-							while ( v2 != labelTable.get( v2 ) ) 
-								v2 = labelTable.get( v2 );
-							if( v1 < v2 )
-							{
-								labelTable.set( v2, v1 );
-								outputStack.setVoxel( i,j,k, v1 );
-							}
-							else
-							{
-								labelTable.set( v1, v2 );
-								outputStack.setVoxel( i,j,k, v2 );
-							}
-							 
-						}
-						else
-						{
-							outputStack.setVoxel( i,j,k, v1 );
-						}
-					}
-					else
-					{
-						outputStack.setVoxel( i,j,k, v2 != 0 ? v2: newLabel() );
-					}
-				}
-			}
-		}
-
-
-
-		// rest of planes
-		// first column of other planes in the volume
-		for (k = 1; k < size3; ++k)
-		{
-			for (i = 0, j = 1; j < size2; ++j)
-			{
-				if ( outputStack.getVoxel( i,j,k ) != 0 )
-				{
-					v2 = (int)( outputStack.getVoxel( i, j-1, k   ) );
-					v3 = (int)( outputStack.getVoxel( i,   j, k-1 ) );
-
-					if ( v2 != 0 )
-					{
-						if ( v3 != 0 )
-						{
-							while ( v2 != labelTable.get( v2 ) ) 
-								v2 = labelTable.get( v2 );
-							while ( v3 != labelTable.get( v3 ) ) v3 = labelTable.get( v3 );
-							if( v2 < v3 )
-							{
-								outputStack.setVoxel( i,j,k, v2 );
-								labelTable.set( v3, v2 );
-							}
-							else
-							{
-								outputStack.setVoxel( i,j,k, v3 );
-								labelTable.set( v2, v3 );
-							}
-						}
-						else
-						{
-							outputStack.setVoxel( i,j,k, v2 );							
-						}
-					}
-					else
-					{
-						outputStack.setVoxel( i,j,k, v3 != 0  ? v3: newLabel() );
-					}
-				}
-			}
-		}
-
-		// rest of planes: rest of columns
-		for (k = 1; k < size3; ++k)
+		progressListener.setStatus( "Calculating connected components..." );
+		final ProgressTracker progress = new ProgressTracker( progressListener, size3 );
+		
+		for( int k = 0; k < size3; ++k )
 		{
-			for (i = 1; i < size1; ++i)
-			{
-				// first voxel of the column
-				if ( outputStack.getVoxel(i,0,k) != 0 )
+			progress.set( k );
+			for( int i = 0; i < size1; ++i )
+				for( int j = 0; j < size2; ++j )
 				{
-					v1 = (int)( outputStack.getVoxel(i-1,0,k) );
-					v3 = (int)( outputStack.getVoxel(i,0,k-1) );
-
-					if ( v1 != 0 )
+					final int index = i + j * size1;
+					if( pixels[ k ][ index ] == 0 )
+						continue;
+					
+					int label = 0;
+					for( final int[] s : backward )
 					{
-						if ( v3 != 0 )
-						{
-							while ( v1 != labelTable.get( v1 ) ) 
-								v1 = labelTable.get( v1 );
-							while ( v3 != labelTable.get( v3 ) ) 
-								v3 = labelTable.get( v3 );
-							
-							if( v1 < v3 )
-							{
-								outputStack.setVoxel( i,0,k, v1);
-								labelTable.set( v3, v1 );	
-							}
-							else
-							{
-								outputStack.setVoxel( i,0,k, v3);
-								labelTable.set( v1, v3 );
-							}																					
-						}
-						else
+						final int ii = i + s[ 0 ];
+						final int jj = j + s[ 1 ];
+						final int kk = k + s[ 2 ];
+						if( ii < 0 || ii >= size1 || jj < 0 || jj >= size2 || kk < 0 )
+							continue;
+						int neighborLabel = pixels[ kk ][ ii + jj * size1 ];
+						if( neighborLabel == 0 )
+							continue;
+						while( parent[ neighborLabel ] != neighborLabel )
+							neighborLabel = parent[ neighborLabel ];
+						if( label == 0 )
+							label = neighborLabel;
+						else if( neighborLabel < label )
 						{
-							outputStack.setVoxel( i,0,k, v1);
+							parent[ label ] = neighborLabel;
+							label = neighborLabel;
 						}
+						else if( neighborLabel > label )
+							parent[ neighborLabel ] = label;
 					}
-					else
+					if( label == 0 )
 					{
-						outputStack.setVoxel( i,0,k, v3 != 0 ? v3: newLabel() );
+						label = ++numLabels;
+						if( label == parent.length )
+							parent = Arrays.copyOf( parent, parent.length << 1 );
+						parent[ label ] = label;
 					}
+					pixels[ k ][ index ] = label;
 				}
-
-				// other voxels of the column
-				for (j = 1; j < size2; ++j)
-				{
-					if ( outputStack.getVoxel(i,j,k) != 0 )
-					{
-						v1 = (int)( outputStack.getVoxel(i-1,j,k) );
-						v2 = (int)( outputStack.getVoxel(i,j-1,k) );
-						v3 = (int)( outputStack.getVoxel(i,j,k-1) );
-
-						if ( v2 != 0 )
-						{
-							if ( v1 != 0 )
-							{
-								if ( v3 != 0 )
-								{
-									while ( v1 != labelTable.get( v1 ) ) v1 = labelTable.get( v1 );
-									while ( v2 != labelTable.get( v2 ) ) v2 = labelTable.get( v2 );
-									while ( v3 != labelTable.get( v3 ) ) v3 = labelTable.get( v3 );
-									outputStack.setVoxel( i,j,k, equivLabel( v1, v2, v3 ) );
-								}
-								else
-								{
-									while ( v1 != labelTable.get( v1 ) ) v1 = labelTable.get( v1 );
-									while ( v2 != labelTable.get( v2 ) ) v2 = labelTable.get( v2 );
-									if( v1 < v2 )
-									{
-										outputStack.setVoxel( i,j,k, v1 );
-										labelTable.set( v2, v1 );
-									}
-									else
-									{
-										outputStack.setVoxel( i,j,k, v2 );
-										labelTable.set( v1, v2 );
-									}
-								}
-							}
-							else
-							{
-								if ( v3 != 0 )
-								{
-									while ( v2 != labelTable.get( v2 ) ) v2 = labelTable.get( v2 );
-									while ( v3 != labelTable.get( v3 ) ) v3 = labelTable.get( v3 );
-									if( v2 < v3 )
-									{
-										outputStack.setVoxel( i,j,k, v2 );
-										labelTable.set( v3, v2 );
-									}
-									else
-									{
-										outputStack.setVoxel( i,j,k, v3 );
-										labelTable.set( v2, v3 );
-									}
-								}
-								else
-								{
-									outputStack.setVoxel( i,j,k, v2 );
-								}
-							}
-						}
-						else
-						{
-							if ( v1 != 0 )
-							{
-								if ( v3 != 0 )
-								{
-									while ( v1 != labelTable.get( v1 ) ) v1 = labelTable.get( v1 );
-									while ( v3 != labelTable.get( v3 ) ) v3 = labelTable.get( v3 );
-									
-									if( v1 < v3 )
-									{
-										outputStack.setVoxel( i,j,k, v1 );
-										labelTable.set( v3, v1 );
-									}
-									else
-									{
-										outputStack.setVoxel( i,j,k, v3 );
-										labelTable.set( v1, v3 );
-									}									
-								}
-								else
-								{
-									outputStack.setVoxel( i,j,k, v1 );
-								}
-							}
-							else
-							{
-								outputStack.setVoxel( i,j,k, v3 != 0 ? v3: newLabel() );
-							}
-						}
-					}
-				}
-			}
-			
 		}
-
-		// update equivalence table
-		int numEquivalences = 0;
 		
-		for (int v = 1; v <= numLabels; v++)
+		// final labels (the root of each set is its smallest label)
+		int numComponents = 0;
+		for( int v = 1; v <= numLabels; ++v )
+			parent[ v ] = parent[ v ] == v ? ++numComponents : parent[ parent[ v ] ];
+		numLabels = numComponents;
+		if( null != workspace )
+			workspace.parent = parent;
+		
+		// second sweep of the volume: update by equivalence table
+		for( int k = 0; k < size3; ++k )
 		{
-			if ( labelTable.get(v) == v )
-			{
-				labelTable.set( v, v - numEquivalences );
-			}
-			else
-			{
-				labelTable.set( v, labelTable.get( labelTable.get( v ) ) );
-				++numEquivalences;
-			}
+			final int[] slice = pixels[ k ];
+			for( int index = 0; index < slice.length; ++index )
+				slice[ index ] = parent[ slice[ index ] ];
 		}
-		numLabels -= numEquivalences;
-
-		// second sweep of the volume: update by equivalence table
-		for (k = 0; k < size3; k++)
-			for (i = 0; i < size1; i++)
-				for (j = 0; j < size2; j++)
-					outputStack.setVoxel( i,j,k, labelTable.get( (int) outputStack.getVoxel(i,j,k) ) );
-
-		imageOutput.setTitle("connected-components-" + inputImage.getTitle() );
-		return imageOutput;		
+		progress.finish();
 	}
 
-}
+}
\ No newline at end of file
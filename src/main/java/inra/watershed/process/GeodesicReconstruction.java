@@ -20,9 +20,6 @@ package inra.watershed.process;
 * Authors: Ignacio Arganda-Carreras
 */
 
-import java.util.LinkedList;
-
-import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 
@@ -44,6 +41,17 @@ public class GeodesicReconstruction
 	/** image depth */
 	int size3 = 0;
 	
+	/** voxel connectivity (6, 18 or 26) */
+	int connectivity = 26;
+	/** neighbor shifts {dx, dy, dz} */
+	int[][] shifts = null;
+	/** neighbors visited before the current voxel in a forward scan (N+) */
+	int[][] plusShifts = null;
+	/** neighbors visited before the current voxel in a backward scan (N-) */
+	int[][] minusShifts = null;
+	/** listener of the status and progress of the reconstruction */
+	ProgressListener progressListener = ImageJProgressListener.getDefault();
+	
 	/**
 	 * Constructs a geodesic reconstruction object
 	 * @param marker the marker image
@@ -59,6 +67,48 @@ public class GeodesicReconstruction
 		this.size1 = mask.getWidth();
 		this.size2 = mask.getHeight();
 		this.size3 = mask.getImageStackSize();
+		
+		setConnectivity( connectivity );
+	}
+	
+	/**
+	 * Set the connectivity used for the reconstruction
+	 * @param connectivity 6, 18 or 26
+	 */
+	public void setConnectivity( final int connectivity )
+	{
+		this.shifts = NeighborOffsets.getShifts( connectivity );
+		this.connectivity = connectivity;
+		
+		// split the neighborhood in the halves before and after the
+		// current voxel in scan order (z, then y, then x)
+		plusShifts = new int[ shifts.length / 2 ][];
+		minusShifts = new int[ shifts.length / 2 ][];
+		int n = 0;
+		for( final int[] s : shifts )
+			if( s[ 2 ] < 0 || ( s[ 2 ] == 0 && ( s[ 1 ] < 0 || ( s[ 1 ] == 0 && s[ 0 ] < 0 ) ) ) )
+			{
+				plusShifts[ n ] = s;
+				minusShifts[ n++ ] = new int[]{ -s[ 0 ], -s[ 1 ], -s[ 2 ] };
+			}
+	}
+	
+	/**
+	 * @return voxel connectivity (6, 18 or 26)
+	 */
+	public int getConnectivity()
+	{
+		return connectivity;
+	}
+	
+	/**
+	 * Set the listener of the status and progress of the reconstruction
+	 * (the ImageJ status bar by default, nothing in headless mode)
+	 * @param progressListener progress listener
+	 */
+	public void setProgressListener( final ProgressListener progressListener )
+	{
+		this.progressListener = null != progressListener ? progressListener : ProgressListener.NONE;
 	}
 	
 	/**
@@ -73,77 +123,92 @@ public class GeodesicReconstruction
 		ImageStack outStack = output.getStack();
 		ImageStack maskStack = mask.getStack();
 		
-		LinkedList<int[]> q = new LinkedList<int[]>();
+		// (slice, position) pairs of the voxels to propagate from
+		final IntFifo q = new IntFifo();
 		
 		// initialization
 		RegionalMaximaFilter rmf = new RegionalMaximaFilter( marker );
+		rmf.setConnectivity( connectivity );
+		rmf.setProgressListener( progressListener );
 		final ImagePlus m = rmf.apply();
 		final ImageStack maxStack = m.getStack();
 		
-		IJ.showStatus("Initialization...");
+		progressListener.setStatus( "Initialization..." );
+		ProgressTracker progress = new ProgressTracker( progressListener, size3 );
 		for (int k = 0; k < size3; ++k)
 		{
-			IJ.showProgress(k+1, size3);
+			progress.set( k );
 			for (int j = 0; j < size2; ++j)
 				for (int i = 0; i < size1; ++i)
 				{
-					for (int u = i-1; u <= i+1; ++u) 
-		  				for (int v = j-1; v <= j+1; ++v) 
-		  					for (int w = k-1; w <= k+1; ++w) 
-		  					{
-		  						if ( u >= 0 && u < size1 && v >= 0 && v < size2 && w >= 0 && w < size3 )
-		  						{
-		  							if( maxStack.getVoxel(u, v, w) < 1 )
-		  							{
-		  								q.addLast( new int[]{ i, j, k } );
-		  								break;
-		  							}
-		  						}
-		  					}
+					if( maxStack.getVoxel(i, j, k) < 1 )
+					{
+						q.add( k );
+						q.add( j * size1 + i );
+						continue;
+					}
+					for (final int[] shift : shifts) 
+					{
+						final int u = i + shift[ 0 ];
+						final int v = j + shift[ 1 ];
+						final int w = k + shift[ 2 ];
+						if ( u >= 0 && u < size1 && v >= 0 && v < size2 && w >= 0 && w < size3 )
+						{
+							if( maxStack.getVoxel(u, v, w) < 1 )
+							{
+								q.add( k );
+								q.add( j * size1 + i );
+								break;
+							}
+						}
+					}
 				}
 		}
 
-		IJ.showProgress ( 1.0 );
+		progress.finish();
 		
-		int total = q.size();
+		int total = q.size() / 2;
 		int iter = 1;
 		
 		// propagation
-		IJ.showStatus( "Propagating..." );
+		progressListener.setStatus( "Propagating..." );
+		progress = new ProgressTracker( progressListener, total );
 		while ( q.isEmpty() == false )
 		{
-			IJ.showProgress( iter, total );
+			if( iter % ProgressTracker.BATCH_SIZE == 0 )
+				progress.set( iter, total );
 
-			final int[] p = q.poll();
-			final int i = p[ 0 ];
-			final int j = p[ 1 ];
-			final int k = p[ 2 ];
+			final int k = q.poll();
+			final int ij = q.poll();
+			final int i = ij % size1;
+			final int j = ij / size1;
 
-			for (int u = i-1; u <= i+1; ++u) 
-				for (int v = j-1; v <= j+1; ++v) 
-					for (int w = k-1; w <= k+1; ++w) 
+			final double op = outStack.getVoxel( i, j, k );
+			for (final int[] shift : shifts) 
+			{
+				final int u = i + shift[ 0 ];
+				final int v = j + shift[ 1 ];
+				final int w = k + shift[ 2 ];
+				if ( u >= 0 && u < size1 && v >= 0 && v < size2 && w >= 0 && w < size3 )
+				{
+					final double on = outStack.getVoxel( u, v, w );
+					final double gn = maskStack.getVoxel( u, v, w );
+					if( on < op && on != gn )
 					{
-						if ( u >= 0 && u < size1 && v >= 0 && v < size2 && w >= 0 && w < size3 )
-						{
-							final double on = outStack.getVoxel( u, v, w );
-							final double op = outStack.getVoxel( i, j, k );
-							final double gn = maskStack.getVoxel( u, v, w );
-							if( on < op && on != gn )
-							{
-								final double value = Math.min( op, gn );
-								outStack.setVoxel( u, v, w, value );
-								q.addLast( new int[]{ u, v, w } );
-								total++;
-								break;
-							}
-						}
+						final double value = Math.min( op, gn );
+						outStack.setVoxel( u, v, w, value );
+						q.add( w );
+						q.add( v * size1 + u );
+						total++;
 					}
+				}
+			}
 
 			iter++;
 		}
 
-		IJ.showProgress( 1.0 );
-		IJ.showStatus( "Done" );
+		progress.finish();
+		progressListener.setStatus( "Done" );
 
 		output.setTitle( "geodesic-reconstruction-by-dilation" );
 		
@@ -173,15 +238,17 @@ public class GeodesicReconstruction
 		ImageStack outStack = output.getStack();
 		ImageStack maskStack = mask.getStack();
 		
-		LinkedList<int[]> q = new LinkedList<int[]>();
+		// (slice, position) pairs of the voxels to propagate from
+		final IntFifo q = new IntFifo();
 		
 		// 2-pass sequence
 		
 		// forwards
-		IJ.showStatus("Forward pass...");
+		progressListener.setStatus( "Forward pass..." );
+		ProgressTracker progress = new ProgressTracker( progressListener, size3 );
 		for (int k = 0; k < size3; ++k)
 		{
-			IJ.showProgress(k+1, size3);
+			progress.set( k );
 			for (int j = 0; j < size2; ++j)
 				for (int i = 0; i < size1; ++i)
 				{
@@ -193,10 +260,11 @@ public class GeodesicReconstruction
 				}
 		}
 		// backwards
-		IJ.showStatus("Backward pass...");
+		progressListener.setStatus( "Backward pass..." );
+		progress = new ProgressTracker( progressListener, size3 );
 		for (int k = size3 - 1; k >= 0; --k)
 		{
-			IJ.showProgress( size3-k, size3 );
+			progress.set( size3-1-k );
 			
 			for (int j = size2-1; j >= 0; --j)
 				for (int i = size1-1; i >= 0; --i)				
@@ -213,44 +281,48 @@ public class GeodesicReconstruction
 				}
 		}
 				
-		int total = q.size();
+		int total = q.size() / 2;
 		int iter = 1;
 
 		// propagation
-		IJ.showStatus( "Propagating..." );
+		progressListener.setStatus( "Propagating..." );
+		progress = new ProgressTracker( progressListener, total );
 		while ( q.isEmpty() == false )
 		{
-			IJ.showProgress( iter, total );
+			if( iter % ProgressTracker.BATCH_SIZE == 0 )
+				progress.set( iter, total );
 
-			final int[] p = q.poll();
-			final int i = p[ 0 ];
-			final int j = p[ 1 ];
-			final int k = p[ 2 ];
+			final int k = q.poll();
+			final int ij = q.poll();
+			final int i = ij % size1;
+			final int j = ij / size1;
 
-			for (int u = i-1; u <= i+1; ++u) 
-				for (int v = j-1; v <= j+1; ++v) 
-					for (int w = k-1; w <= k+1; ++w) 
+			final double op = outStack.getVoxel( i, j, k );
+			for (final int[] shift : shifts) 
+			{
+				final int u = i + shift[ 0 ];
+				final int v = j + shift[ 1 ];
+				final int w = k + shift[ 2 ];
+				if ( u >= 0 && u < size1 && v >= 0 && v < size2 && w >= 0 && w < size3 )
+				{
+					final double on = outStack.getVoxel( u, v, w );
+					final double gn = maskStack.getVoxel( u, v, w );
+					if( on < op && on != gn )
 					{
-  						if ( u >= 0 && u < size1 && v >= 0 && v < size2 && w >= 0 && w < size3 )
-  						{
-  							final double on = outStack.getVoxel( u, v, w );
-  							final double op = outStack.getVoxel( i, j, k );
-  							final double gn = maskStack.getVoxel( u, v, w );
-  							if( on < op && on != gn )
-  							{
-  								final double value = Math.min( op, gn );
-  								outStack.setVoxel( u, v, w, value );
-  								q.addLast( new int[]{ u, v, w } );
-  								total++;
-  								break;
-  							}
-  						}
-  					}
+						final double value = Math.min( op, gn );
+						outStack.setVoxel( u, v, w, value );
+						q.add( w );
+						q.add( v * size1 + u );
+						total++;
+					}
+				}
+			}
+
 			iter++;
 		}
 		
-		IJ.showProgress( 1.0 );
-		IJ.showStatus( "Done" );
+		progress.finish();
+		progressListener.setStatus( "Done" );
 		
 		output.setTitle( "geodesic-reconstruction-by-dilation" );
 		return output;
@@ -272,27 +344,17 @@ public class GeodesicReconstruction
 	{
 		double max = o.getVoxel(x, y, z);
 		
-		for ( int w = -1; w <= 1; ++w)
+		for ( final int[] shift : plusShifts )
 		{
-			for( int v=-1; v<=0; ++v )
+			final int x2 = x + shift[ 0 ];
+			final int y2 = y + shift[ 1 ];
+			final int z2 = z + shift[ 2 ];
+			
+			if ( x2 >= 0 && x2 < size1 && y2 >= 0 && y2 < size2 && z2 >= 0 && z2 < size3 )
 			{
-				final int maxX = v < 0 ? 1 : (w<0 ? 0 : -1);
-
-				for( int u = -1; u<=maxX; u ++ )
-				{
-					final int x2 = x + u;
-					final int y2 = y + v;
-					final int z2 = z + w;
-					
-					if ( x2 >= 0 && x2 < size1 && y2 >= 0 && y2 < size2 && z2 >= 0 && z2 < size3 )
-					{
-						double neighborValue = o.getVoxel( x2, y2, z2 );
-						if( neighborValue > max )
-							max = neighborValue;
-					}
-				}
-					
-					
+				final double neighborValue = o.getVoxel( x2, y2, z2 );
+				if( neighborValue > max )
+					max = neighborValue;
 			}
 		}
 		
@@ -310,7 +372,7 @@ public class GeodesicReconstruction
 	 * @param z z-coordinate
 	 * @param o output image
 	 * @param mask mask image
-	 * @param q queue of coordinates to be visited
+	 * @param q queue of (slice, position) pairs to be visited
 	 */
 	public void pushQueueNeighborhoodPlus( 
 			final int x, 
@@ -318,30 +380,24 @@ public class GeodesicReconstruction
 			final int z, 
 			final ImageStack o,
 			final ImageStack mask,
-			final LinkedList<int[]> q)
+			final IntFifo q)
 	{
 		
-		for ( int w = -1; w <= 1; ++w)
+		for ( final int[] shift : plusShifts )
 		{
-			for( int v=-1; v<=0; ++v )
+			final int x2 = x + shift[ 0 ];
+			final int y2 = y + shift[ 1 ];
+			final int z2 = z + shift[ 2 ];
+			
+			if ( x2 >= 0 && x2 < size1 && y2 >= 0 && y2 < size2 && z2 >= 0 && z2 < size3 )
 			{
-				final int maxX = v < 0 ? 1 : (w<0 ? 0 : -1);
-
-				for( int u = -1; u<=maxX; u ++ )
+				final double neighborValue = o.getVoxel( x2, y2, z2 );
+				if( neighborValue < o.getVoxel(x, y, z) && neighborValue < mask.getVoxel( x2, y2, z2 ) )
 				{
-					final int x2 = x + u;
-					final int y2 = y + v;
-					final int z2 = z + w;
-					
-					if ( x2 >= 0 && x2 < size1 && y2 >= 0 && y2 < size2 && z2 >= 0 && z2 < size3 )
-					{
-						double neighborValue = o.getVoxel( x2, y2, z2 );
-						if( neighborValue < o.getVoxel(x, y, z) && neighborValue < mask.getVoxel( x2, y2, z2 ) )
-							q.addLast( new int[]{ x, y, z } );
-					}
+					q.add( z );
+					q.add( y * size1 + x );
+					return;
 				}
-					
-					
 			}
 		}
 	}
@@ -356,7 +412,7 @@ public class GeodesicReconstruction
 	 * @param z z-coordinate
 	 * @param o output image
 	 * @param mask mask image
-	 * @param q queue of coordinates to be visited
+	 * @param q queue of (slice, position) pairs to be visited
 	 */
 	public void pushQueueNeighborhoodMinus( 
 			final int x, 
@@ -364,30 +420,24 @@ public class GeodesicReconstruction
 			final int z, 
 			final ImageStack o,
 			final ImageStack mask,
-			final LinkedList<int[]> q)
+			final IntFifo q)
 	{
 		
-		for ( int w = -1; w <= 1; ++w)
+		for ( final int[] shift : minusShifts )
 		{
-			for( int v=0; v<=1; ++v )
+			final int x2 = x + shift[ 0 ];
+			final int y2 = y + shift[ 1 ];
+			final int z2 = z + shift[ 2 ];
+			
+			if ( x2 >= 0 && x2 < size1 && y2 >= 0 && y2 < size2 && z2 >= 0 && z2 < size3 )
 			{
-				final int minX = v > 0 ? -1 : (w>0 ? 0 : 1);
-
-				for( int u = minX; u<=1; u ++ )
+				final double neighborValue = o.getVoxel( x2, y2, z2 );
+				if( neighborValue < o.getVoxel(x, y, z) && neighborValue < mask.getVoxel( x2, y2, z2 ) )
 				{
-					final int x2 = x + u;
-					final int y2 = y + v;
-					final int z2 = z + w;
-					
-					if ( x2 >= 0 && x2 < size1 && y2 >= 0 && y2 < size2 && z2 >= 0 && z2 < size3 )
-					{
-						double neighborValue = o.getVoxel( x2, y2, z2 );
-						if( neighborValue < o.getVoxel(x, y, z) && neighborValue < mask.getVoxel( x2, y2, z2 ) )
-							q.addLast( new int[]{ x, y, z } );
-					}
+					q.add( z );
+					q.add( y * size1 + x );
+					return;
 				}
-					
-					
 			}
 		}
 	}
@@ -408,27 +458,17 @@ public class GeodesicReconstruction
 	{
 		double max = o.getVoxel(x, y, z);
 
-		for ( int w = -1; w <= 1; ++w)
+		for ( final int[] shift : minusShifts )
 		{
-			for( int v=0; v<=1; ++v )
+			final int x2 = x + shift[ 0 ];
+			final int y2 = y + shift[ 1 ];
+			final int z2 = z + shift[ 2 ];
+			
+			if ( x2 >= 0 && x2 < size1 && y2 >= 0 && y2 < size2 && z2 >= 0 && z2 < size3 )
 			{
-				final int minX = v > 0 ? -1 : (w>0 ? 0 : 1);
-
-				for( int u = minX; u<=1; u ++ )				
-				{
-					final int x2 = x + u;
-					final int y2 = y + v;
-					final int z2 = z + w;
-
-					if ( x2 >= 0 && x2 < size1 && y2 >= 0 && y2 < size2 && z2 >= 0 && z2 < size3 )
-					{
-						double neighborValue = o.getVoxel( x2, y2, z2 );
-						if( neighborValue > max )
-							max = neighborValue;
-					}
-				}
-
-
+				final double neighborValue = o.getVoxel( x2, y2, z2 );
+				if( neighborValue > max )
+					max = neighborValue;
 			}
 		}
 
@@ -19,42 +19,36 @@ package inra.watershed.process;
  *
  * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
  */
-public class VoxelRecord implements Comparable<VoxelRecord>{
 
-		int i = 0;
-		int j = 0;
-		int k = 0;
-		double value = 0;
-		
-		public VoxelRecord(
-				final int i,
-				final int j,
-				final int k,
-				final double value)
-		{
-			this.i = i;
-			this.j = j;
-			this.k = k;
-			this.value = value;
-		}
-		
-		public int getI(){ return this.i; }
-		public int getJ(){ return this.j; }
-		public int getK(){ return this.k; }
-		
-		public int[] getCoordinates()
-		{
-			return new int[]{ i, j, k };
-		}
-		
-		public double getValue()
-		{
-			return value;
-		}
+import java.awt.GraphicsEnvironment;
 
-		@Override
-		public int compareTo(VoxelRecord voxelRecord) 
-		{
-			return Double.compare( value, voxelRecord.value );	    		   
-		}
+import ij.IJ;
+
+/**
+ * Progress listener showing the status and progress in the ImageJ
+ * status bar.
+ */
+public class ImageJProgressListener implements ProgressListener
+{
+	/**
+	 * Get the default listener: the ImageJ status bar, or no
+	 * listener at all in headless mode
+	 * @return progress listener
+	 */
+	public static ProgressListener getDefault()
+	{
+		if( GraphicsEnvironment.isHeadless() )
+			return ProgressListener.NONE;
+		return new ImageJProgressListener();
+	}
+
+	public void setStatus( final String status )
+	{
+		IJ.showStatus( status );
+	}
+
+	public void setProgress( final long done, final long total )
+	{
+		IJ.showProgress( total > 0 ? (double) done / total : 1.0 );
+	}
 }
@@ -0,0 +1,85 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+/**
+ * Growable circular FIFO of ints (voxel indices).
+ */
+public class IntFifo
+{
+	/** circular buffer (its length is a power of 2) */
+	int[] buffer;
+	/** position of the first element */
+	int first = 0;
+	/** number of elements */
+	int size = 0;
+
+	public IntFifo()
+	{
+		this( 1024 );
+	}
+
+	/**
+	 * @param capacity initial capacity (rounded up to a power of 2)
+	 */
+	public IntFifo( final int capacity )
+	{
+		this.buffer = new int[ Integer.highestOneBit( Math.max( capacity, 2 ) - 1 ) << 1 ];
+	}
+
+	public void add( final int value )
+	{
+		if( size == buffer.length )
+		{
+			final int[] larger = new int[ buffer.length << 1 ];
+			System.arraycopy( buffer, first, larger, 0, buffer.length - first );
+			System.arraycopy( buffer, 0, larger, buffer.length - first, first );
+			buffer = larger;
+			first = 0;
+		}
+		buffer[ ( first + size ) & ( buffer.length - 1 ) ] = value;
+		size++;
+	}
+
+	public int poll()
+	{
+		final int value = buffer[ first ];
+		first = ( first + 1 ) & ( buffer.length - 1 );
+		size--;
+		return value;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public void clear()
+	{
+		first = 0;
+		size = 0;
+	}
+}
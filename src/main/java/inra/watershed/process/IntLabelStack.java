@@ -0,0 +1,306 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+
+
+import java.util.ArrayList;
+
+import ij.VirtualStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Stack of 32-bit integer labels. The labels are kept in int[] slices,
+ * so the watershed can read and write more than 2^24 labels exactly
+ * (a float stack only holds integers up to 2^24). ImageJ sees it as a 
+ * virtual 32-bit stack: each slice is converted to a float processor
+ * when it is displayed or read with {@link #getPixels(int)}, while
+ * {@link #getLabels(int)}, {@link #getLabel(int, int, int)} and 
+ * {@link #setLabel(int, int, int, int)} work on the integer labels.
+ * As in any virtual stack, the float view is a copy: edits are kept
+ * once they are written back with {@link #setPixels(Object, int)} or
+ * {@link #setProcessor(ImageProcessor, int)}. Slices can be added,
+ * deleted and given labels like in a regular stack.
+ */
+public class IntLabelStack extends VirtualStack
+{
+	/** labels of each slice */
+	final ArrayList<int[]> labels;
+	/** label (name) of each slice */
+	final ArrayList<String> sliceLabels;
+	
+	/**
+	 * Create a stack of empty labels
+	 * @param width stack width
+	 * @param height stack height
+	 * @param depth number of slices
+	 */
+	public IntLabelStack( final int width, final int height, final int depth )
+	{
+		this( width, height, new int[ depth ][ width * height ] );
+	}
+	
+	/**
+	 * Create a stack on existing label slices
+	 * @param width stack width
+	 * @param height stack height
+	 * @param labels labels of each slice (x + y * width)
+	 */
+	public IntLabelStack( final int width, final int height, final int[][] labels )
+	{
+		super( width, height, null, null );
+		this.labels = new ArrayList<int[]>( labels.length );
+		this.sliceLabels = new ArrayList<String>( labels.length );
+		for( final int[] slice : labels )
+		{
+			this.labels.add( slice );
+			this.sliceLabels.add( null );
+		}
+	}
+	
+	/**
+	 * @param n slice number (1-based)
+	 * @return labels of the slice (not a copy)
+	 */
+	public int[] getLabels( final int n )
+	{
+		checkSlice( n );
+		return labels.get( n - 1 );
+	}
+	
+	/**
+	 * @return largest label of the stack
+	 */
+	public int getMaxLabel()
+	{
+		int maxLabel = 0;
+		for( final int[] slice : labels )
+			for( final int label : slice )
+				if( label > maxLabel )
+					maxLabel = label;
+		return maxLabel;
+	}
+	
+	public int getSize()
+	{
+		return labels.size();
+	}
+	
+	public int getBitDepth()
+	{
+		return 32;
+	}
+	
+	/**
+	 * Float view of a slice (labels above 2^24 are rounded)
+	 */
+	public ImageProcessor getProcessor( final int n )
+	{
+		final int[] slice = getLabels( n );
+		final float[] pixels = new float[ slice.length ];
+		for( int i = 0; i < slice.length; ++i )
+			pixels[ i ] = slice[ i ];
+		return new FloatProcessor( getWidth(), getHeight(), pixels );
+	}
+	
+	/**
+	 * Float copy of a slice (see {@link #getProcessor(int)})
+	 */
+	public Object getPixels( final int n )
+	{
+		return getProcessor( n ).getPixels();
+	}
+	
+	/**
+	 * Write the pixels of a slice back into its integer labels
+	 * @param pixels byte[], short[], float[] or int[] pixels of the slice
+	 * @param n slice number (1-based)
+	 */
+	public void setPixels( final Object pixels, final int n )
+	{
+		toLabels( pixels, getLabels( n ) );
+	}
+	
+	/**
+	 * Write the pixels of a processor back into the integer labels of 
+	 * a slice
+	 * @param ip slice processor
+	 * @param n slice number (1-based)
+	 */
+	public void setProcessor( final ImageProcessor ip, final int n )
+	{
+		if( ip.getWidth() != getWidth() || ip.getHeight() != getHeight() )
+			throw new IllegalArgumentException( "Wrong dimensions for this stack" );
+		setPixels( ip.getPixels(), n );
+	}
+	
+	/**
+	 * Add a slice at the end of the stack
+	 * @param sliceLabel label (name) of the slice
+	 * @param pixels byte[], short[], float[] or int[] pixels (int[] 
+	 * pixels are used as they are, the others are converted)
+	 */
+	public void addSlice( final String sliceLabel, final Object pixels )
+	{
+		final int[] slice;
+		if( pixels instanceof int[] )
+			slice = (int[]) pixels;
+		else
+			toLabels( pixels, slice = new int[ getWidth() * getHeight() ] );
+		labels.add( slice );
+		sliceLabels.add( sliceLabel );
+	}
+	
+	/**
+	 * Add a slice at the end of the stack
+	 * @param sliceLabel label (name) of the slice
+	 * @param ip slice processor (converted to integer labels)
+	 */
+	public void addSlice( final String sliceLabel, final ImageProcessor ip )
+	{
+		if( ip.getWidth() != getWidth() || ip.getHeight() != getHeight() )
+			throw new IllegalArgumentException( "Dimensions do not match" );
+		addSlice( sliceLabel, ip.getPixels() );
+	}
+	
+	/**
+	 * Add an empty slice at the end of the stack
+	 * @param sliceLabel label (name) of the slice
+	 */
+	public void addSlice( final String sliceLabel )
+	{
+		addSlice( sliceLabel, new int[ getWidth() * getHeight() ] );
+	}
+	
+	/**
+	 * Delete a slice
+	 * @param n slice number (1-based)
+	 */
+	public void deleteSlice( final int n )
+	{
+		checkSlice( n );
+		labels.remove( n - 1 );
+		sliceLabels.remove( n - 1 );
+	}
+	
+	public void deleteLastSlice()
+	{
+		if( labels.size() > 0 )
+			deleteSlice( labels.size() );
+	}
+	
+	public String getSliceLabel( final int n )
+	{
+		checkSlice( n );
+		return sliceLabels.get( n - 1 );
+	}
+	
+	public void setSliceLabel( final String label, final int n )
+	{
+		checkSlice( n );
+		sliceLabels.set( n - 1, label );
+	}
+	
+	public String getFileName( final int n )
+	{
+		return getSliceLabel( n );
+	}
+	
+	/**
+	 * @return float copies of all the slices
+	 */
+	public Object[] getImageArray()
+	{
+		final Object[] slices = new Object[ labels.size() ];
+		for( int n = 1; n <= slices.length; ++n )
+			slices[ n - 1 ] = getPixels( n );
+		return slices;
+	}
+	
+	/**
+	 * @param x x- coordinate
+	 * @param y y- coordinate
+	 * @param z z- coordinate (0-based)
+	 * @return label of the voxel
+	 */
+	public int getLabel( final int x, final int y, final int z )
+	{
+		return labels.get( z )[ x + y * getWidth() ];
+	}
+	
+	/**
+	 * @param x x- coordinate
+	 * @param y y- coordinate
+	 * @param z z- coordinate (0-based)
+	 * @param label new label of the voxel
+	 */
+	public void setLabel( final int x, final int y, final int z, final int label )
+	{
+		labels.get( z )[ x + y * getWidth() ] = label;
+	}
+	
+	/**
+	 * Check a slice number
+	 * @param n slice number (1-based)
+	 */
+	void checkSlice( final int n )
+	{
+		if( n < 1 || n > labels.size() )
+			throw new IllegalArgumentException( "Argument out of range: " + n );
+	}
+	
+	/**
+	 * Convert slice pixels into integer labels (rounding real values)
+	 * @param pixels byte[], short[], float[] or int[] pixels
+	 * @param slice labels to write to
+	 */
+	static void toLabels( final Object pixels, final int[] slice )
+	{
+		if( pixels instanceof int[] )
+		{
+			final int[] values = (int[]) pixels;
+			if( values != slice )
+				System.arraycopy( values, 0, slice, 0, slice.length );
+		}
+		else if( pixels instanceof float[] )
+		{
+			final float[] values = (float[]) pixels;
+			for( int i = 0; i < slice.length; ++i )
+				slice[ i ] = Math.round( values[ i ] );
+		}
+		else if( pixels instanceof short[] )
+		{
+			final short[] values = (short[]) pixels;
+			for( int i = 0; i < slice.length; ++i )
+				slice[ i ] = values[ i ] & 0xffff;
+		}
+		else if( pixels instanceof byte[] )
+		{
+			final byte[] values = (byte[]) pixels;
+			for( int i = 0; i < slice.length; ++i )
+				slice[ i ] = values[ i ] & 0xff;
+		}
+		else
+			throw new IllegalArgumentException( "Unsupported pixel type: " + 
+					( null == pixels ? "null" : pixels.getClass().getSimpleName() ) );
+	}
+}
@@ -0,0 +1,305 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+import java.util.Arrays;
+
+/**
+ * Flat buffer of voxel labels with a one-voxel border around the
+ * volume. The border voxels hold the BORDER value, so neighbors can be
+ * visited by adding precomputed offsets (see {@link NeighborOffsets})
+ * without any bounds checking. Voxels are addressed by long indices;
+ * this class stores them in a single array, and {@link #create(int, int, int)}
+ * switches to a {@link ChunkedLabelBuffer} for the volumes that do 
+ * not fit in one.
+ */
+public class LabelBuffer
+{
+	/** label of the voxels around the volume (and outside the mask) */
+	public static final int BORDER = -2;
+	/** largest number of voxels of a buffer stored in a single array */
+	static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	/** volume width */
+	final int width;
+	/** volume height */
+	final int height;
+	/** volume depth */
+	final int depth;
+	/** distance between two rows of the padded buffer */
+	final int strideY;
+	/** distance between two slices of the padded buffer */
+	final int strideZ;
+	/** padded label array (null if the labels are stored elsewhere) */
+	final int[] labels;
+
+	/**
+	 * Allocate a label buffer for a volume in a single array, with 
+	 * all voxels unlabeled (0) and the border set to BORDER
+	 * @param width volume width
+	 * @param height volume height
+	 * @param depth volume depth
+	 * @throws IllegalArgumentException if the padded volume does not
+	 * fit in an array (see {@link #create(int, int, int)})
+	 */
+	public LabelBuffer(
+			final int width,
+			final int height,
+			final int depth )
+	{
+		this( width, height, depth, new int[ arraySize( width, height, depth ) ] );
+		fillBorder();
+	}
+
+	/**
+	 * Allocate a label buffer for a volume of any size, with all 
+	 * voxels unlabeled (0) and the border set to BORDER. The labels
+	 * are stored in a single array when they fit in one, and in 
+	 * chunks otherwise (then {@link #getArray()} is not available).
+	 * @param width volume width
+	 * @param height volume height
+	 * @param depth volume depth
+	 * @return label buffer
+	 */
+	public static LabelBuffer create(
+			final int width,
+			final int height,
+			final int depth )
+	{
+		if( paddedSize( width, height, depth ) <= MAX_ARRAY_SIZE )
+			return new LabelBuffer( width, height, depth );
+		return new ChunkedLabelBuffer( width, height, depth );
+	}
+
+	/**
+	 * Number of voxels of the padded buffer of a volume
+	 * @param width volume width
+	 * @param height volume height
+	 * @param depth volume depth
+	 * @return number of voxels with a 1-voxel border
+	 */
+	static long paddedSize(
+			final int width,
+			final int height,
+			final int depth )
+	{
+		return (long) ( width + 2 ) * ( height + 2 ) * ( depth + 2 );
+	}
+
+	/**
+	 * Number of voxels of the padded buffer of a volume stored in
+	 * a single array
+	 * @param width volume width
+	 * @param height volume height
+	 * @param depth volume depth
+	 * @return number of voxels with a 1-voxel border
+	 * @throws IllegalArgumentException if it does not fit in an array
+	 */
+	static int arraySize(
+			final int width,
+			final int height,
+			final int depth )
+	{
+		final long size = paddedSize( width, height, depth );
+		if( size > MAX_ARRAY_SIZE )
+			throw new IllegalArgumentException( "Volume too large for a single label array: " + size + " voxels" );
+		return (int) size;
+	}
+
+	/**
+	 * Create a label buffer on an existing padded label array
+	 * (the border is not initialized)
+	 * @param width volume width
+	 * @param height volume height
+	 * @param depth volume depth
+	 * @param labels padded label array (null for another storage)
+	 */
+	protected LabelBuffer(
+			final int width,
+			final int height,
+			final int depth,
+			final int[] labels )
+	{
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.strideY = width + 2;
+		this.strideZ = strideY * ( height + 2 );
+		this.labels = labels;
+	}
+
+	/**
+	 * Set the border voxels of the padded buffer to BORDER
+	 */
+	protected void fillBorder()
+	{
+		// first and last slices
+		fill( 0, strideZ, BORDER );
+		fill( (long) strideZ * ( depth + 1 ), (long) strideZ * ( depth + 2 ), BORDER );
+		// first and last rows, first and last columns of the rest
+		for( int z = 1; z <= depth; ++z )
+		{
+			final long start = (long) z * strideZ;
+			fill( start, start + strideY, BORDER );
+			fill( start + ( height + 1 ) * strideY, start + strideZ, BORDER );
+			for( int y = 1; y <= height; ++y )
+			{
+				set( start + y * strideY, BORDER );
+				set( start + y * strideY + width + 1, BORDER );
+			}
+		}
+	}
+
+	/**
+	 * Set a range of the padded buffer to the same value
+	 * @param from first padded index
+	 * @param to last padded index (exclusive)
+	 * @param value label value
+	 */
+	protected void fill( final long from, final long to, final int value )
+	{
+		Arrays.fill( labels, (int) from, (int) to, value );
+	}
+
+	/**
+	 * Get the label of a voxel given its padded index
+	 * @param index padded index
+	 * @return voxel label
+	 */
+	public int get( final long index )
+	{
+		return labels[ (int) index ];
+	}
+
+	/**
+	 * Set the label of a voxel given its padded index
+	 * @param index padded index
+	 * @param label voxel label
+	 */
+	public void set( final long index, final int label )
+	{
+		labels[ (int) index ] = label;
+	}
+
+	/**
+	 * Index of a voxel in the padded buffer
+	 * @param x x-coordinate (0 <= x < width)
+	 * @param y y-coordinate (0 <= y < height)
+	 * @param z z-coordinate (0 <= z < depth)
+	 * @return padded index
+	 */
+	public final long index( final int x, final int y, final int z )
+	{
+		return ( x + 1 ) + ( y + 1 ) * strideY + ( z + 1 ) * (long) strideZ;
+	}
+
+	/**
+	 * Index of a voxel in the padded label array (see {@link #getArray()})
+	 * @param x x-coordinate (0 <= x < width)
+	 * @param y y-coordinate (0 <= y < height)
+	 * @param z z-coordinate (0 <= z < depth)
+	 * @return padded index
+	 */
+	public final int arrayIndex( final int x, final int y, final int z )
+	{
+		return ( x + 1 ) + ( y + 1 ) * strideY + ( z + 1 ) * strideZ;
+	}
+
+	/**
+	 * Slice of a voxel given its padded index
+	 * @param index padded index
+	 * @return z-coordinate
+	 */
+	public final int getSlice( final int index )
+	{
+		return index / strideZ - 1;
+	}
+
+	/**
+	 * Slice of a voxel given its padded index
+	 * @param index padded index
+	 * @return z-coordinate
+	 */
+	public final int getSlice( final long index )
+	{
+		return (int) ( index / strideZ ) - 1;
+	}
+
+	/**
+	 * Position of a voxel within its slice (x + y * width) given
+	 * its padded index
+	 * @param index padded index
+	 * @return index in the slice pixel array
+	 */
+	public final int getSliceOffset( final int index )
+	{
+		final int r = index % strideZ;
+		return ( r % strideY - 1 ) + ( r / strideY - 1 ) * width;
+	}
+
+	/**
+	 * Position of a voxel within its slice (x + y * width) given
+	 * its padded index
+	 * @param index padded index
+	 * @return index in the slice pixel array
+	 */
+	public final int getSliceOffset( final long index )
+	{
+		final int r = (int) ( index % strideZ );
+		return ( r % strideY - 1 ) + ( r / strideY - 1 ) * width;
+	}
+
+	public final int get( final int x, final int y, final int z )
+	{
+		return get( index( x, y, z ) );
+	}
+
+	public final void set( final int x, final int y, final int z, final int label )
+	{
+		set( index( x, y, z ), label );
+	}
+
+	/**
+	 * @return the padded label array
+	 * @throws UnsupportedOperationException if the labels are not stored in an array
+	 */
+	public int[] getArray()
+	{
+		if( null == labels )
+			throw new UnsupportedOperationException( "Labels are not stored in an array" );
+		return labels;
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public int getDepth()
+	{
+		return depth;
+	}
+}
@@ -0,0 +1,269 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+
+
+import java.util.Arrays;
+
+/**
+ * Statistics of the watershed domains, accumulated while the labels
+ * are written to the output image: number of voxels, bounding box, 
+ * centroid and input value range and mean of each label. The values
+ * are kept by column (one primitive array per measure, indexed by 
+ * label), about 76 bytes per label. A single table is shared by all
+ * the threads: each thread buffers its voxels by label range in an
+ * {@link Accumulator} and adds them to the table under the lock of 
+ * that range, so the threads only add a small fixed buffer each
+ * instead of a copy of the table.
+ */
+public class LabelStatistics
+{
+	/** number of label ranges locked separately */
+	static final int NUM_STRIPES = 64;
+	/** number of voxels of a label range buffered by an accumulator */
+	static final int BUFFER_SIZE = 512;
+	
+	/** largest label */
+	final int numLabels;
+	/** number of voxels of each label */
+	final long[] count;
+	/** bounding box of each label (voxel coordinates, inclusive) */
+	final int[] minX, maxX, minY, maxY, minZ, maxZ;
+	/** sums of the voxel coordinates of each label */
+	final double[] sumX, sumY, sumZ;
+	/** sum of the input values of each label */
+	final double[] sumValue;
+	/** input value range of each label */
+	final float[] minValue, maxValue;
+	/** number of labels of each label range */
+	final int stripeSize;
+	/** lock of each label range */
+	final Object[] locks;
+	
+	/**
+	 * Create an empty table
+	 * @param numLabels largest label
+	 */
+	public LabelStatistics( final int numLabels )
+	{
+		this.numLabels = numLabels;
+		final int n = numLabels + 1;
+		count = new long[ n ];
+		minX = new int[ n ];
+		maxX = new int[ n ];
+		minY = new int[ n ];
+		maxY = new int[ n ];
+		minZ = new int[ n ];
+		maxZ = new int[ n ];
+		sumX = new double[ n ];
+		sumY = new double[ n ];
+		sumZ = new double[ n ];
+		sumValue = new double[ n ];
+		minValue = new float[ n ];
+		maxValue = new float[ n ];
+		Arrays.fill( minX, Integer.MAX_VALUE );
+		Arrays.fill( minY, Integer.MAX_VALUE );
+		Arrays.fill( minZ, Integer.MAX_VALUE );
+		Arrays.fill( maxX, -1 );
+		Arrays.fill( maxY, -1 );
+		Arrays.fill( maxZ, -1 );
+		Arrays.fill( minValue, Float.POSITIVE_INFINITY );
+		Arrays.fill( maxValue, Float.NEGATIVE_INFINITY );
+		stripeSize = n / NUM_STRIPES + 1;
+		locks = new Object[ NUM_STRIPES ];
+		for( int s = 0; s < NUM_STRIPES; ++s )
+			locks[ s ] = new Object();
+	}
+	
+	/**
+	 * @return new accumulator of voxels for a thread
+	 */
+	Accumulator newAccumulator()
+	{
+		return new Accumulator();
+	}
+	
+	/**
+	 * Add a voxel to a label
+	 * @param label voxel label (between 1 and the largest label)
+	 * @param x x- voxel coordinate
+	 * @param y y- voxel coordinate
+	 * @param z z- voxel coordinate
+	 * @param value input value of the voxel
+	 */
+	final void add( final int label, final int x, final int y, final int z, final float value )
+	{
+		count[ label ]++;
+		if( x < minX[ label ] ) minX[ label ] = x;
+		if( x > maxX[ label ] ) maxX[ label ] = x;
+		if( y < minY[ label ] ) minY[ label ] = y;
+		if( y > maxY[ label ] ) maxY[ label ] = y;
+		if( z < minZ[ label ] ) minZ[ label ] = z;
+		if( z > maxZ[ label ] ) maxZ[ label ] = z;
+		sumX[ label ] += x;
+		sumY[ label ] += y;
+		sumZ[ label ] += z;
+		sumValue[ label ] += value;
+		if( value < minValue[ label ] ) minValue[ label ] = value;
+		if( value > maxValue[ label ] ) maxValue[ label ] = value;
+	}
+	
+	/**
+	 * @return largest label
+	 */
+	public int getNumLabels()
+	{
+		return numLabels;
+	}
+	
+	/**
+	 * @param label domain label
+	 * @return number of voxels of the domain
+	 */
+	public long getCount( final int label )
+	{
+		return count[ label ];
+	}
+	
+	/**
+	 * Bounding box of a domain
+	 * @param label domain label
+	 * @return { xmin, xmax, ymin, ymax, zmin, zmax } (inclusive, empty if 
+	 * xmax < xmin)
+	 */
+	public int[] getBoundingBox( final int label )
+	{
+		return new int[]{ minX[ label ], maxX[ label ], minY[ label ], 
+				maxY[ label ], minZ[ label ], maxZ[ label ] };
+	}
+	
+	/**
+	 * Centroid of a domain (in voxel coordinates)
+	 * @param label domain label
+	 * @return { x, y, z } (NaN if the domain is empty)
+	 */
+	public double[] getCentroid( final int label )
+	{
+		final double n = count[ label ];
+		return new double[]{ sumX[ label ] / n, sumY[ label ] / n, sumZ[ label ] / n };
+	}
+	
+	/**
+	 * @param label domain label
+	 * @return mean input value of the domain (NaN if the domain is empty)
+	 */
+	public double getMean( final int label )
+	{
+		return sumValue[ label ] / count[ label ];
+	}
+	
+	/**
+	 * @param label domain label
+	 * @return lowest input value of the domain
+	 */
+	public float getMin( final int label )
+	{
+		return minValue[ label ];
+	}
+	
+	/**
+	 * @param label domain label
+	 * @return highest input value of the domain
+	 */
+	public float getMax( final int label )
+	{
+		return maxValue[ label ];
+	}
+	
+	/**
+	 * Buffer of the voxels added by a thread. The voxels are kept by 
+	 * label range and added to the shared table, under the lock of
+	 * their range, when the buffer of the range is full or when the
+	 * accumulator is flushed (about 10 kB per label range in use).
+	 */
+	final class Accumulator
+	{
+		/** buffered labels, coordinates and values of each label range */
+		final int[][] labels = new int[ NUM_STRIPES ][];
+		final int[][] xs = new int[ NUM_STRIPES ][];
+		final int[][] ys = new int[ NUM_STRIPES ][];
+		final int[][] zs = new int[ NUM_STRIPES ][];
+		final float[][] values = new float[ NUM_STRIPES ][];
+		/** number of buffered voxels of each label range */
+		final int[] sizes = new int[ NUM_STRIPES ];
+		
+		/**
+		 * Add a voxel to a label (see {@link LabelStatistics#add})
+		 * @param label voxel label (between 1 and the largest label)
+		 * @param x x- voxel coordinate
+		 * @param y y- voxel coordinate
+		 * @param z z- voxel coordinate
+		 * @param value input value of the voxel
+		 */
+		final void add( final int label, final int x, final int y, final int z, final float value )
+		{
+			final int s = label / stripeSize;
+			if( null == labels[ s ] )
+			{
+				labels[ s ] = new int[ BUFFER_SIZE ];
+				xs[ s ] = new int[ BUFFER_SIZE ];
+				ys[ s ] = new int[ BUFFER_SIZE ];
+				zs[ s ] = new int[ BUFFER_SIZE ];
+				values[ s ] = new float[ BUFFER_SIZE ];
+			}
+			final int n = sizes[ s ];
+			labels[ s ][ n ] = label;
+			xs[ s ][ n ] = x;
+			ys[ s ][ n ] = y;
+			zs[ s ][ n ] = z;
+			values[ s ][ n ] = value;
+			sizes[ s ] = n + 1;
+			if( n + 1 == BUFFER_SIZE )
+				flush( s );
+		}
+		
+		/**
+		 * Add the buffered voxels of a label range to the table
+		 * @param s label range
+		 */
+		void flush( final int s )
+		{
+			synchronized( locks[ s ] )
+			{
+				for( int i = 0; i < sizes[ s ]; ++i )
+					LabelStatistics.this.add( labels[ s ][ i ], xs[ s ][ i ], ys[ s ][ i ], 
+							zs[ s ][ i ], values[ s ][ i ] );
+			}
+			sizes[ s ] = 0;
+		}
+		
+		/**
+		 * Add all the buffered voxels to the table
+		 */
+		void flush()
+		{
+			for( int s = 0; s < NUM_STRIPES; ++s )
+				if( sizes[ s ] > 0 )
+					flush( s );
+		}
+	}
+}
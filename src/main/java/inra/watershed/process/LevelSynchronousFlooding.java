@@ -0,0 +1,322 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import ij.util.ThreadUtil;
+
+/**
+ * Immersion flooding where all the voxels of a wave (the voxels of the
+ * current level at the same distance from the lower levels) are
+ * processed concurrently. Unlabeled voxels are claimed by a
+ * compare-and-set on a bit set of claimed voxels, so each one is queued
+ * by a single thread, and the threads meet at a barrier between waves 
+ * and levels. The labels are read and written in place in the label
+ * buffer: the bit set only adds one bit per padded voxel.
+ * The labels of a wave only depend on the labels of the previous waves,
+ * so the result is the same as the sequential immersion flooding.
+ */
+class LevelSynchronousFlooding
+{
+	/** number of voxels of a wave handled at once by a thread */
+	static final int CHUNK_SIZE = 256;
+
+	/** label buffer */
+	final LabelBuffer labels;
+	/** labels of the padded buffer */
+	final int[] tabLabels;
+	/** claimed voxels of the padded buffer (one bit per voxel) */
+	final AtomicIntegerArray claimed;
+	/** input values */
+	final VoxelValues values;
+	/** neighbor offsets */
+	final NeighborOffsets neighbors;
+	/** number of threads */
+	final int numThreads;
+
+	/** voxels of the future levels, one heap per thread */
+	final VoxelHeap[] heaps;
+	/** voxels of the next wave, one list per thread */
+	final IntFifo[] nextWaves;
+
+	/** voxels of the current wave and their labels */
+	int[] wave = new int[ 1024 ];
+	int[] waveLabels = new int[ 1024 ];
+	int waveSize = 0;
+	/** level being flooded */
+	float level = Float.NEGATIVE_INFINITY;
+	/** true when the next wave starts a new level */
+	boolean newLevel = true;
+	/** true when there is nothing left to flood */
+	boolean done = false;
+	/** next chunk of the wave to process */
+	final AtomicInteger nextChunk = new AtomicInteger( 0 );
+	/** number of levels flooded */
+	int numLevels = 0;
+
+	/**
+	 * @param labels label buffer initialized with the seeds (and BORDER outside the mask)
+	 * @param values input values
+	 * @param connectivity voxel connectivity (6, 18 or 26)
+	 * @param numThreads number of threads
+	 */
+	LevelSynchronousFlooding(
+			final LabelBuffer labels,
+			final VoxelValues values,
+			final int connectivity,
+			final int numThreads )
+	{
+		this.labels = labels;
+		this.tabLabels = labels.getArray();
+		this.claimed = new AtomicIntegerArray( ( tabLabels.length + 31 ) >>> 5 );
+		this.values = values;
+		this.neighbors = new NeighborOffsets( connectivity, labels );
+		this.numThreads = numThreads;
+		this.heaps = new VoxelHeap[ numThreads ];
+		this.nextWaves = new IntFifo[ numThreads ];
+		for( int t = 0; t < numThreads; ++t )
+		{
+			heaps[ t ] = new VoxelHeap();
+			nextWaves[ t ] = new IntFifo();
+		}
+	}
+
+	/**
+	 * Flood the volume (the labels are written into the label buffer)
+	 */
+	void flood()
+	{
+		// queue the unlabeled neighbors of the seeds, slab by slab
+		final int dec = (int) Math.ceil( (double) labels.depth / (double) numThreads );
+		final CyclicBarrier barrier = new CyclicBarrier( numThreads );
+		final CyclicBarrier gather = new CyclicBarrier( numThreads, new Runnable() {
+			public void run() {
+				nextWave();
+			}
+		});
+
+		final Thread[] threads = ThreadUtil.createThreadArray( numThreads );
+		for( int ithread = 0; ithread < threads.length; ithread++ )
+		{
+			final int t = ithread;
+			threads[ ithread ] = new Thread() {
+				public void run() {
+					try
+					{
+						queueSeedNeighbors( t, dec * t, Math.min( dec * ( t + 1 ), labels.depth ) );
+						gather.await();
+						while( done == false )
+						{
+							if( waveSize > 0 )
+							{
+								processWave( t );
+								barrier.await();
+								commitWave( t );
+							}
+							if( newLevel )
+								drainLevel( t );
+							gather.await();
+						}
+					}
+					catch( InterruptedException e )
+					{
+						Thread.currentThread().interrupt();
+					}
+					catch( BrokenBarrierException e )
+					{
+						// another thread was interrupted
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin( threads );
+	}
+
+	/**
+	 * Claim an unlabeled voxel and queue it, either in the next wave
+	 * or in the heap of the future levels. Other threads may still
+	 * read the voxel as unlabeled until the next barrier, but only the
+	 * thread that sets its claim bit queues it.
+	 * @param t thread index
+	 * @param index padded index of the voxel
+	 * @param value voxel value
+	 */
+	final void claim( final int t, final int index, final float value )
+	{
+		final int word = index >>> 5;
+		final int bit = 1 << ( index & 31 );
+		int bits;
+		do
+		{
+			bits = claimed.get( word );
+			if( ( bits & bit ) != 0 )
+				return;
+		}
+		while( claimed.compareAndSet( word, bits, bits | bit ) == false );
+
+		tabLabels[ index ] = WatershedTransform3D.INQUEUE;
+		if( value <= level )
+			nextWaves[ t ].add( index );
+		else
+			heaps[ t ].add( index, value );
+	}
+
+	/**
+	 * Queue the unlabeled neighbors of the seeds of a range of slices
+	 * @param t thread index
+	 * @param zmin first slice
+	 * @param zmax last slice (exclusive)
+	 */
+	void queueSeedNeighbors( final int t, final int zmin, final int zmax )
+	{
+		for( int z = zmin; z < zmax; ++z )
+			for( int y = 0; y < labels.height; ++y )
+			{
+				int index = labels.arrayIndex( 0, y, z );
+				for( int x = 0, xy = y * labels.width; x < labels.width; ++x, ++xy, ++index )
+					if( tabLabels[ index ] > 0 )
+						for( int n = 0; n < neighbors.size; ++n )
+						{
+							final int neighbor = index + neighbors.padded[ n ];
+							if( tabLabels[ neighbor ] == 0 )
+								claim( t, neighbor, values.get( z + neighbors.slice[ n ], xy + neighbors.inSlice[ n ] ) );
+						}
+			}
+	}
+
+	/**
+	 * Move the voxels of the current level from the heap of a thread
+	 * to its next wave
+	 * @param t thread index
+	 */
+	void drainLevel( final int t )
+	{
+		final VoxelHeap heap = heaps[ t ];
+		while( heap.isEmpty() == false && heap.peekValue() == level )
+			nextWaves[ t ].add( (int) heap.poll() );
+	}
+
+	/**
+	 * Compute the labels of the voxels of the current wave (by chunks)
+	 * and claim their unlabeled neighbors
+	 * @param t thread index
+	 */
+	void processWave( final int t )
+	{
+		final int[] offsets = neighbors.padded;
+		final int[] sliceOffsets = neighbors.inSlice;
+		final int[] slices = neighbors.slice;
+		final int numNeighbors = neighbors.size;
+
+		for( int start = nextChunk.getAndAdd( CHUNK_SIZE ); start < waveSize;
+				start = nextChunk.getAndAdd( CHUNK_SIZE ) )
+		{
+			final int end = Math.min( start + CHUNK_SIZE, waveSize );
+			for( int w = start; w < end; ++w )
+			{
+				final int index = wave[ w ];
+				final int k = labels.getSlice( index );
+				final int xy = labels.getSliceOffset( index );
+
+				float voxelValue = Float.MAX_VALUE;
+				int voxelLabel = 0;
+
+				for( int m = 0; m < numNeighbors; ++m )
+				{
+					final int neighbor = index + offsets[ m ];
+					final int label = tabLabels[ neighbor ];
+					if( label == 0 )
+						claim( t, neighbor, values.get( k + slices[ m ], xy + sliceOffsets[ m ] ) );
+					else if( label > 0 )
+					{
+						// assign label of smallest neighbor
+						final float value = values.get( k + slices[ m ], xy + sliceOffsets[ m ] );
+						if( value <= voxelValue )
+						{
+							voxelLabel = label;
+							voxelValue = value;
+						}
+					}
+				}
+				waveLabels[ w ] = voxelLabel;
+			}
+		}
+	}
+
+	/**
+	 * Write the labels of a part of the current wave
+	 * @param t thread index
+	 */
+	void commitWave( final int t )
+	{
+		final int start = (int) ( (long) waveSize * t / numThreads );
+		final int end = (int) ( (long) waveSize * ( t + 1 ) / numThreads );
+		for( int w = start; w < end; ++w )
+			tabLabels[ wave[ w ] ] = waveLabels[ w ];
+	}
+
+	/**
+	 * Gather the next wave from the lists of all threads, or move to
+	 * the next level when the current one is done (called by a single
+	 * thread while the others wait at the barrier)
+	 */
+	void nextWave()
+	{
+		waveSize = 0;
+		for( final IntFifo next : nextWaves )
+			waveSize += next.size();
+		nextChunk.set( 0 );
+
+		if( waveSize > 0 )
+		{
+			if( wave.length < waveSize )
+			{
+				wave = new int[ waveSize ];
+				waveLabels = new int[ waveSize ];
+			}
+			int w = 0;
+			for( final IntFifo next : nextWaves )
+				while( next.isEmpty() == false )
+					wave[ w++ ] = next.poll();
+			newLevel = false;
+			return;
+		}
+
+		// current level is done: lowest value left in the heaps
+		float nextLevel = Float.POSITIVE_INFINITY;
+		boolean empty = true;
+		for( final VoxelHeap heap : heaps )
+			if( heap.isEmpty() == false )
+			{
+				nextLevel = Math.min( nextLevel, heap.peekValue() );
+				empty = false;
+			}
+		done = empty;
+		level = nextLevel;
+		newLevel = true;
+		if( empty == false )
+			numLevels++;
+	}
+}
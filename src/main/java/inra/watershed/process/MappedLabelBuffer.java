@@ -0,0 +1,164 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Label buffer stored in a memory-mapped file instead of the Java
+ * heap, so very large volumes rely on the page cache of the system
+ * rather than on the maximum heap size. The file holds the padded
+ * buffer as 32-bit big-endian integers (width + 2, height + 2,
+ * depth + 2), mapped in chunks of 2^CHUNK_BITS labels, so it has no
+ * size limit. Once flooded, it is read without any copy into the 
+ * heap through a {@link MappedLabelStack}, or as a raw image.
+ */
+public class MappedLabelBuffer extends LabelBuffer implements Closeable
+{
+	/** number of bits of the index within a mapped chunk */
+	static final int CHUNK_BITS = 28;
+	/** mask of the index within a mapped chunk */
+	static final int CHUNK_MASK = ( 1 << CHUNK_BITS ) - 1;
+
+	/** file holding the labels */
+	final File file;
+	/** channel of the file */
+	final FileChannel channel;
+	/** mapped chunks of the file (at most 2^CHUNK_BITS labels each) */
+	final MappedByteBuffer[] maps;
+	/** labels of each mapped chunk */
+	final IntBuffer[] chunks;
+
+	/**
+	 * Map a label buffer for a volume onto a file, with all voxels
+	 * unlabeled (0) and the border set to BORDER
+	 * @param width volume width
+	 * @param height volume height
+	 * @param depth volume depth
+	 * @param file file to store the labels in (created or overwritten)
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public MappedLabelBuffer(
+			final int width,
+			final int height,
+			final int depth,
+			final File file ) throws IOException
+	{
+		super( width, height, depth, null );
+		this.file = file;
+
+		final long size = paddedSize( width, height, depth );
+
+		final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+		this.channel = raf.getChannel();
+		final int numChunks = (int) ( ( size + CHUNK_MASK ) >> CHUNK_BITS );
+		this.maps = new MappedByteBuffer[ numChunks ];
+		this.chunks = new IntBuffer[ numChunks ];
+
+		boolean mapped = false;
+		try
+		{
+			// a new file is filled with zeros (unlabeled voxels)
+			raf.setLength( 0 );
+			raf.setLength( size * 4 );
+			for( int c = 0; c < numChunks; ++c )
+			{
+				final long start = (long) c << CHUNK_BITS;
+				final long length = Math.min( size - start, 1L << CHUNK_BITS );
+				maps[ c ] = channel.map( FileChannel.MapMode.READ_WRITE, start * 4, length * 4 );
+				chunks[ c ] = maps[ c ].asIntBuffer();
+			}
+			mapped = true;
+		}
+		finally
+		{
+			// do not leak the file if it could not be mapped
+			if( mapped == false )
+				raf.close();
+		}
+
+		fillBorder();
+	}
+
+	/**
+	 * Create a label buffer on a temporary file, deleted when the
+	 * virtual machine exits
+	 * @param width volume width
+	 * @param height volume height
+	 * @param depth volume depth
+	 * @return mapped label buffer
+	 * @throws IOException if the file cannot be created or mapped
+	 */
+	public static MappedLabelBuffer createTemporary(
+			final int width,
+			final int height,
+			final int depth ) throws IOException
+	{
+		final File file = File.createTempFile( "labels", ".raw" );
+		file.deleteOnExit();
+		return new MappedLabelBuffer( width, height, depth, file );
+	}
+
+	@Override
+	protected void fill( final long from, final long to, final int value )
+	{
+		for( long i = from; i < to; ++i )
+			set( i, value );
+	}
+
+	@Override
+	public int get( final long index )
+	{
+		return chunks[ (int) ( index >>> CHUNK_BITS ) ].get( (int) index & CHUNK_MASK );
+	}
+
+	@Override
+	public void set( final long index, final int label )
+	{
+		chunks[ (int) ( index >>> CHUNK_BITS ) ].put( (int) index & CHUNK_MASK, label );
+	}
+
+	/**
+	 * @return the file holding the labels
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Write the labels to the file and close it (the labels stay
+	 * readable through the mapping, but must not be modified anymore)
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		for( final MappedByteBuffer map : maps )
+			map.force();
+		channel.close();
+	}
+}
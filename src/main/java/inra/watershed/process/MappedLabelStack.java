@@ -0,0 +1,116 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+import ij.VirtualStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Label image of a flooded {@link MappedLabelBuffer}, read directly
+ * from the mapped file instead of being copied into the heap. ImageJ
+ * sees it as a virtual stack: each slice is read from the mapped
+ * labels when it is displayed or read with {@link #getPixels(int)},
+ * as 16-bit pixels if all the labels fit and as 32-bit pixels
+ * otherwise (rounding labels above 2^24, see {@link #getLabel(int, int, int)}
+ * for the exact ones). As in any virtual stack, the slices are copies,
+ * and edits are not written back to the file.
+ */
+public class MappedLabelStack extends VirtualStack
+{
+	/** flooded labels */
+	final MappedLabelBuffer labels;
+	/** 16 if all the labels fit in 16 bits, 32 otherwise */
+	final int bitDepth;
+
+	/**
+	 * Create the label image of a flooded buffer
+	 * @param labels flooded labels
+	 * @param maxLabel largest label
+	 */
+	public MappedLabelStack( final MappedLabelBuffer labels, final int maxLabel )
+	{
+		super( labels.getWidth(), labels.getHeight(), null, null );
+		this.labels = labels;
+		this.bitDepth = maxLabel <= 65535 ? 16 : 32;
+	}
+
+	public int getSize()
+	{
+		return labels.getDepth();
+	}
+
+	public int getBitDepth()
+	{
+		return bitDepth;
+	}
+
+	/**
+	 * Slice of labels read from the mapped file (0 for the voxels
+	 * without label)
+	 */
+	public ImageProcessor getProcessor( final int n )
+	{
+		if( n < 1 || n > getSize() )
+			throw new IllegalArgumentException( "Argument out of range: " + n );
+		final Object pixels = bitDepth == 16 ?
+				new short[ getWidth() * getHeight() ] : (Object) new float[ getWidth() * getHeight() ];
+		WatershedTransform3D.copyLabels( labels, n - 1, 0, 1, new Object[]{ pixels } );
+		if( bitDepth == 16 )
+			return new ShortProcessor( getWidth(), getHeight(), (short[]) pixels, null );
+		return new FloatProcessor( getWidth(), getHeight(), (float[]) pixels );
+	}
+
+	/**
+	 * Copy of a slice (see {@link #getProcessor(int)})
+	 */
+	public Object getPixels( final int n )
+	{
+		return getProcessor( n ).getPixels();
+	}
+
+	public double getVoxel( final int x, final int y, final int z )
+	{
+		if( x < 0 || x >= getWidth() || y < 0 || y >= getHeight() || z < 0 || z >= getSize() )
+			return 0;
+		return getLabel( x, y, z );
+	}
+
+	/**
+	 * @param x x- coordinate
+	 * @param y y- coordinate
+	 * @param z z- coordinate (0-based)
+	 * @return label of the voxel (0 if it has none)
+	 */
+	public int getLabel( final int x, final int y, final int z )
+	{
+		return Math.max( 0, labels.get( x, y, z ) );
+	}
+
+	/**
+	 * @return buffer holding the labels
+	 */
+	public MappedLabelBuffer getLabelBuffer()
+	{
+		return labels;
+	}
+}
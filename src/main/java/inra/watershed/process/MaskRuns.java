@@ -0,0 +1,227 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.ImageStack;
+import ij.Prefs;
+import ij.util.ThreadUtil;
+
+/**
+ * Binary mask compiled into runs of foreground voxels along the rows
+ * of the volume, so the voxels of the mask can be visited without 
+ * testing every voxel of the bounding box. The runs of row (y, z) are
+ * the half-open intervals [start, end) of x-coordinates stored in
+ * the runs array between rowStart[ y + z * height ] and 
+ * rowStart[ y + z * height + 1 ].
+ */
+public class MaskRuns
+{
+	/** volume width */
+	final int width;
+	/** volume height */
+	final int height;
+	/** volume depth */
+	final int depth;
+	/** first run of each row (and total number of runs at the end) */
+	final int[] rowStart;
+	/** start and end x-coordinates of the runs */
+	final int[] runs;
+
+	/**
+	 * Compile a mask stack (voxels with a value above 0 are
+	 * foreground), reading one slice at a time (multi-threaded)
+	 * @param maskStack mask stack
+	 */
+	public MaskRuns( final ImageStack maskStack )
+	{
+		this( maskStack, Prefs.getThreads() );
+	}
+
+	/**
+	 * Compile a mask stack (voxels with a value above 0 are
+	 * foreground), reading one slice at a time
+	 * @param maskStack mask stack
+	 * @param numThreads number of threads
+	 */
+	public MaskRuns( final ImageStack maskStack, final int numThreads )
+	{
+		this.width = maskStack.getWidth();
+		this.height = maskStack.getHeight();
+		this.depth = maskStack.getSize();
+
+		// runs of each slice, computed in parallel
+		final int[][] sliceRuns = new int[ depth ][];
+		final int[][] sliceRowStarts = new int[ depth ][];
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = ThreadUtil.createThreadArray( Math.max( 1, Math.min( numThreads, depth ) ) );
+		for (int ithread = 0; ithread < threads.length; ithread++) 
+		{
+			threads[ithread] = new Thread() {
+				public void run() {
+					for (int z = ai.getAndIncrement(); z < depth; z = ai.getAndIncrement())
+					{
+						final Object pixels = maskStack.getPixels( z + 1 );
+						final int[] starts = new int[ height + 1 ];
+						int[] slice = new int[ 2 * height ];
+						int n = 0;
+						for( int y = 0; y < height; ++y )
+						{
+							starts[ y ] = n / 2;
+							int x = 0;
+							while( x < width )
+							{
+								while( x < width && WatershedTransform3D.getValue( pixels, x + y * width ) <= 0 )
+									x++;
+								if( x == width )
+									break;
+								final int start = x;
+								while( x < width && WatershedTransform3D.getValue( pixels, x + y * width ) > 0 )
+									x++;
+								if( n + 2 > slice.length )
+									slice = Arrays.copyOf( slice, slice.length << 1 );
+								slice[ n++ ] = start;
+								slice[ n++ ] = x;
+							}
+						}
+						starts[ height ] = n / 2;
+						sliceRuns[ z ] = Arrays.copyOf( slice, n );
+						sliceRowStarts[ z ] = starts;
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+
+		// concatenate the slices
+		this.rowStart = new int[ height * depth + 1 ];
+		int numRuns = 0;
+		for( int z = 0; z < depth; ++z )
+		{
+			for( int y = 0; y < height; ++y )
+				rowStart[ y + z * height ] = numRuns + sliceRowStarts[ z ][ y ];
+			numRuns += sliceRowStarts[ z ][ height ];
+		}
+		rowStart[ height * depth ] = numRuns;
+		this.runs = new int[ 2 * numRuns ];
+		for( int z = 0, r = 0; z < depth; ++z )
+		{
+			System.arraycopy( sliceRuns[ z ], 0, runs, r, sliceRuns[ z ].length );
+			r += sliceRuns[ z ].length;
+			sliceRuns[ z ] = null;
+		}
+	}
+
+	/**
+	 * Compile a mask stored as a 3D array (voxels with a value above
+	 * 0 are foreground)
+	 * @param mask mask values, indexed by [x][y][z]
+	 */
+	public MaskRuns( final double[][][] mask )
+	{
+		this.width = mask.length;
+		this.height = mask[ 0 ].length;
+		this.depth = mask[ 0 ][ 0 ].length;
+		this.rowStart = new int[ height * depth + 1 ];
+
+		int[] list = new int[ 2 * height * depth ];
+		int n = 0;
+		for( int z = 0; z < depth; ++z )
+			for( int y = 0; y < height; ++y )
+			{
+				rowStart[ y + z * height ] = n / 2;
+				int x = 0;
+				while( x < width )
+				{
+					while( x < width && mask[ x ][ y ][ z ] <= 0 )
+						x++;
+					if( x == width )
+						break;
+					final int start = x;
+					while( x < width && mask[ x ][ y ][ z ] > 0 )
+						x++;
+					if( n + 2 > list.length )
+						list = Arrays.copyOf( list, list.length << 1 );
+					list[ n++ ] = start;
+					list[ n++ ] = x;
+				}
+			}
+		rowStart[ height * depth ] = n / 2;
+		this.runs = Arrays.copyOf( list, n );
+	}
+
+	/**
+	 * Index of the first run of a row
+	 * @param y y-coordinate
+	 * @param z z-coordinate
+	 * @return run index
+	 */
+	public final int getFirstRun( final int y, final int z )
+	{
+		return rowStart[ y + z * height ];
+	}
+
+	/**
+	 * Index after the last run of a row
+	 * @param y y-coordinate
+	 * @param z z-coordinate
+	 * @return run index (exclusive)
+	 */
+	public final int getLastRun( final int y, final int z )
+	{
+		return rowStart[ y + z * height + 1 ];
+	}
+
+	/**
+	 * @param run run index
+	 * @return first x-coordinate of the run
+	 */
+	public final int getStart( final int run )
+	{
+		return runs[ 2 * run ];
+	}
+
+	/**
+	 * @param run run index
+	 * @return x-coordinate after the end of the run
+	 */
+	public final int getEnd( final int run )
+	{
+		return runs[ 2 * run + 1 ];
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public int getDepth()
+	{
+		return depth;
+	}
+}
@@ -0,0 +1,99 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+/**
+ * Precomputed neighbor offsets of a 3D neighborhood (6, 18 or 26
+ * connectivity), both in a padded label buffer and in the unpadded
+ * pixel arrays of an image stack. The center voxel is not included.
+ * Neighbors are listed with x as the outermost and z as the innermost
+ * coordinate, as in the 3x3x3 loops of the rest of the package.
+ */
+public class NeighborOffsets
+{
+	/** number of neighbors */
+	final int size;
+	/** relative positions {dx, dy, dz} of each neighbor */
+	final int[][] shifts;
+	/** linear offsets in the padded label buffer */
+	final int[] padded;
+	/** offsets within a slice of the (unpadded) pixel arrays */
+	final int[] inSlice;
+	/** slice offsets */
+	final int[] slice;
+
+	/**
+	 * Compute the neighbor offsets for a given connectivity and buffer
+	 * @param connectivity 6, 18 or 26
+	 * @param labels padded label buffer the offsets will be applied to
+	 */
+	public NeighborOffsets(
+			final int connectivity,
+			final LabelBuffer labels )
+	{
+		this.shifts = getShifts( connectivity );
+		this.size = shifts.length;
+		this.padded = new int[ size ];
+		this.inSlice = new int[ size ];
+		this.slice = new int[ size ];
+
+		for( int n = 0; n < size; ++n )
+		{
+			final int[] s = shifts[ n ];
+			padded[ n ] = s[ 0 ] + s[ 1 ] * labels.strideY + s[ 2 ] * labels.strideZ;
+			inSlice[ n ] = s[ 0 ] + s[ 1 ] * labels.width;
+			slice[ n ] = s[ 2 ];
+		}
+	}
+
+	/**
+	 * Get the relative positions of the neighbors of a voxel
+	 * @param connectivity 6, 18 or 26
+	 * @return array of {dx, dy, dz} shifts
+	 */
+	public static int[][] getShifts( final int connectivity )
+	{
+		if( connectivity != 6 && connectivity != 18 && connectivity != 26 )
+			throw new IllegalArgumentException(
+					"Connectivity must be 6, 18 or 26 (got " + connectivity + ")" );
+
+		final int maxDistance = connectivity == 6 ? 1 : ( connectivity == 18 ? 2 : 3 );
+		final int[][] shifts = new int[ connectivity ][];
+		int n = 0;
+		for( int dx = -1; dx <= 1; ++dx )
+			for( int dy = -1; dy <= 1; ++dy )
+				for( int dz = -1; dz <= 1; ++dz )
+				{
+					final int distance = Math.abs( dx ) + Math.abs( dy ) + Math.abs( dz );
+					if( distance > 0 && distance <= maxDistance )
+						shifts[ n++ ] = new int[]{ dx, dy, dz };
+				}
+		return shifts;
+	}
+
+	/**
+	 * @return number of neighbors
+	 */
+	public int size()
+	{
+		return size;
+	}
+}
@@ -0,0 +1,461 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.ImageStack;
+import ij.Prefs;
+import ij.util.ThreadUtil;
+
+/**
+ * Regional extrema detection by plateau labelling. The plateaus 
+ * (connected voxels of equal value) are built in a union-find forest 
+ * over the voxel indices, each thread joining the voxels of its own
+ * slab of slices; the slabs are then joined at their border slices. 
+ * A plateau is a regional minimum (maximum) if none of its voxels has
+ * a lower (higher) neighbor, which is read from a 
+ * {@link SlidingExtremumFilter} while the plateaus are built and kept
+ * in the parent entry of the roots, so the forest takes 4 bytes per
+ * voxel. The root of each tree is its smallest voxel index, so the 
+ * result does not depend on the scheduling of the threads. The volumes
+ * whose forest does not fit in the heap are processed one slice at a
+ * time instead, flooding the output from the voxels with a lower 
+ * (higher) neighbor (single-threaded, with only the three slices of
+ * the filter window as extra memory).
+ */
+public class PlateauUnionFind
+{
+	/** parent entry of the root of a plateau without lower (higher) neighbor */
+	static final int ROOT = -1;
+	/** parent entry of the root of a plateau with a lower (higher) neighbor */
+	static final int FLAGGED_ROOT = -2;
+	/** parent entry of the voxels outside the mask */
+	static final int OUTSIDE = -3;
+	
+	/** input stack */
+	final ImageStack stack;
+	/** compiled mask (null for no mask) */
+	final MaskRuns mask;
+	/** voxel connectivity (6, 18 or 26) */
+	final int connectivity;
+	/** true for regional maxima, false for regional minima */
+	final boolean maximum;
+	final int width;
+	final int height;
+	final int depth;
+	
+	/** parent of each voxel (x + y * width + z * width * height), or
+	 * root/outside entry (null to flood one slice at a time) */
+	final int[] parent;
+	/** shifts of the neighbors visited from each voxel (one of each pair of opposite shifts) */
+	final int[][] backward;
+	/** number of threads (0 for the ImageJ threads) */
+	int numThreads = 0;
+	/** listener of the progress of the labelling */
+	ProgressListener progressListener = ProgressListener.NONE;
+	
+	/**
+	 * Create the plateau labelling of a stack
+	 * @param stack input stack
+	 * @param mask compiled mask (null for no mask)
+	 * @param connectivity voxel connectivity (6, 18 or 26)
+	 * @param maximum true for regional maxima, false for regional minima
+	 */
+	public PlateauUnionFind( 
+			final ImageStack stack, 
+			final MaskRuns mask, 
+			final int connectivity, 
+			final boolean maximum )
+	{
+		this( stack, mask, connectivity, maximum, (WatershedWorkspace) null );
+	}
+	
+	/**
+	 * Create the plateau labelling of a stack, with the union-find 
+	 * forest of a workspace
+	 * @param stack input stack
+	 * @param mask compiled mask (null for no mask)
+	 * @param connectivity voxel connectivity (6, 18 or 26)
+	 * @param maximum true for regional maxima, false for regional minima
+	 * @param workspace workspace of the size of the input (null to allocate 
+	 * a new forest if it fits in the heap)
+	 */
+	public PlateauUnionFind( 
+			final ImageStack stack, 
+			final MaskRuns mask, 
+			final int connectivity, 
+			final boolean maximum,
+			final WatershedWorkspace workspace )
+	{
+		this( stack, mask, connectivity, maximum, null != workspace ? workspace.getPlateauParent() : 
+			allocateForest( stack.getWidth(), stack.getHeight(), stack.getSize() ) );
+	}
+	
+	/**
+	 * Create the plateau labelling of a stack with a given forest
+	 * @param stack input stack
+	 * @param mask compiled mask (null for no mask)
+	 * @param connectivity voxel connectivity (6, 18 or 26)
+	 * @param maximum true for regional maxima, false for regional minima
+	 * @param parent union-find forest of the size of the input (null to
+	 * flood one slice at a time)
+	 */
+	PlateauUnionFind( 
+			final ImageStack stack, 
+			final MaskRuns mask, 
+			final int connectivity, 
+			final boolean maximum,
+			final int[] parent )
+	{
+		final int[][] shifts = NeighborOffsets.getShifts( connectivity );
+		this.stack = stack;
+		this.mask = mask;
+		this.connectivity = connectivity;
+		this.maximum = maximum;
+		this.width = stack.getWidth();
+		this.height = stack.getHeight();
+		this.depth = stack.getSize();
+		this.parent = parent;
+		
+		int numBackward = 0;
+		backward = new int[ shifts.length / 2 ][];
+		for( final int[] s : shifts )
+			if( s[ 2 ] < 0 || ( s[ 2 ] == 0 && ( s[ 1 ] < 0 || ( s[ 1 ] == 0 && s[ 0 ] < 0 ) ) ) )
+				backward[ numBackward++ ] = s;
+	}
+	
+	/**
+	 * Allocate the union-find forest of a volume
+	 * @param width volume width
+	 * @param height volume height
+	 * @param depth volume depth
+	 * @return forest (null if the volume does not fit in one array or
+	 * its forest would take more than half of the free heap)
+	 */
+	static int[] allocateForest( final int width, final int height, final int depth )
+	{
+		final long size = (long) width * height * depth;
+		if( size > LabelBuffer.MAX_ARRAY_SIZE || WatershedTransform3D.fitsInHeap( 4 * size ) == false )
+			return null;
+		return new int[ (int) size ];
+	}
+	
+	/**
+	 * Set the number of threads of the labelling (the ImageJ threads,
+	 * {@link Prefs#getThreads()}, by default)
+	 * @param numThreads number of threads (0 for the ImageJ threads)
+	 */
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 0, numThreads );
+	}
+	
+	/**
+	 * @return number of threads of the labelling
+	 */
+	public int getNumThreads()
+	{
+		return numThreads > 0 ? numThreads : Prefs.getThreads();
+	}
+	
+	/**
+	 * Set the listener of the progress of the labelling (nothing by default)
+	 * @param progressListener progress listener
+	 */
+	public void setProgressListener( final ProgressListener progressListener )
+	{
+		this.progressListener = null != progressListener ? progressListener : ProgressListener.NONE;
+	}
+	
+	/**
+	 * Find the regional extrema and write them to a binary stack
+	 * @param output stack of the size of the input (8, 16 or 32-bit), 
+	 * set to 1 on the regional extrema and 0 elsewhere
+	 */
+	public void apply( final ImageStack output )
+	{
+		final VoxelValues values = VoxelValues.of( stack );
+		final VoxelValues outputValues = VoxelValues.of( output );
+		if( null == parent )
+		{
+			floodSlices( values, outputValues );
+			return;
+		}
+		
+		final int numSlabs = Math.max( 1, Math.min( getNumThreads(), depth ) );
+		final int dec = (int) Math.ceil( (double) depth / (double) numSlabs );
+		// each slice is labelled, then written
+		final ProgressTracker progress = new ProgressTracker( progressListener, 2L * depth );
+		
+		// plateaus of each slab
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = ThreadUtil.createThreadArray( numSlabs );
+		for (int ithread = 0; ithread < threads.length; ithread++) 
+		{
+			threads[ithread] = new Thread() {
+				public void run() {
+					final SlidingExtremumFilter filter = new SlidingExtremumFilter( stack, mask, connectivity, maximum );
+					for (int s = ai.getAndIncrement(); s < numSlabs; s = ai.getAndIncrement())
+						for( int z = dec * s; z < Math.min( depth, dec * ( s + 1 ) ); ++z )
+						{
+							labelSlice( values, z, dec * s, filter.filter( z ) );
+							progress.add( 1 );
+						}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+		
+		// join the plateaus across the borders of the slabs
+		for( int z = dec; z < depth; z += dec )
+			joinSlices( values, z );
+		
+		// write the voxels of the plateaus without lower (higher) neighbor
+		final AtomicInteger az = new AtomicInteger(0);
+		threads = ThreadUtil.createThreadArray( Math.min( getNumThreads(), depth ) );
+		for (int ithread = 0; ithread < threads.length; ithread++) 
+		{
+			threads[ithread] = new Thread() {
+				public void run() {
+					for (int z = az.getAndIncrement(); z < depth; z = az.getAndIncrement())
+					{
+						writeSlice( outputValues, z );
+						progress.add( 1 );
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+		progress.finish();
+	}
+	
+	/**
+	 * Join the voxels of a slice with their equal neighbors of the same
+	 * slab, and flag the voxels with a lower (higher) neighbor
+	 * @param values input values
+	 * @param z slice (0-based)
+	 * @param zmin first slice of the slab
+	 * @param extrema filtered slice (extremum of the neighborhood of each voxel)
+	 */
+	void labelSlice( 
+			final VoxelValues values, 
+			final int z, 
+			final int zmin, 
+			final float[] extrema )
+	{
+		final int planeSize = width * height;
+		for( int y = 0; y < height; ++y )
+		{
+			final int firstRun = null != mask ? mask.getFirstRun( y, z ) : 0;
+			final int lastRun = null != mask ? mask.getLastRun( y, z ) : 1;
+			int x = 0;
+			for( int r = firstRun; r < lastRun; ++r )
+			{
+				final int start = null != mask ? mask.getStart( r ) : 0;
+				final int end = null != mask ? mask.getEnd( r ) : width;
+				for( ; x < start; ++x )
+					parent[ z * planeSize + y * width + x ] = OUTSIDE;
+				for( ; x < end; ++x )
+				{
+					final int xy = y * width + x;
+					final int index = z * planeSize + xy;
+					final float value = values.get( z, xy );
+					parent[ index ] = value != extrema[ xy ] ? FLAGGED_ROOT : ROOT;
+					for( final int[] s : backward )
+					{
+						final int xx = x + s[ 0 ];
+						final int yy = y + s[ 1 ];
+						final int zz = z + s[ 2 ];
+						if( xx < 0 || xx >= width || yy < 0 || yy >= height || zz < zmin )
+							continue;
+						final int neighbor = zz * planeSize + yy * width + xx;
+						if( parent[ neighbor ] != OUTSIDE 
+								&& values.get( zz, yy * width + xx ) == value )
+							union( index, neighbor );
+					}
+				}
+			}
+			for( ; x < width; ++x )
+				parent[ z * planeSize + y * width + x ] = OUTSIDE;
+		}
+	}
+	
+	/**
+	 * Join the plateaus of a slice with the equal neighbors of the slice
+	 * below (the border between two slabs)
+	 * @param values input values
+	 * @param z slice (0-based, > 0)
+	 */
+	void joinSlices( final VoxelValues values, final int z )
+	{
+		final int planeSize = width * height;
+		for( int y = 0; y < height; ++y )
+			for( int x = 0; x < width; ++x )
+			{
+				final int index = z * planeSize + y * width + x;
+				if( parent[ index ] == OUTSIDE )
+					continue;
+				final float value = values.get( z, y * width + x );
+				for( final int[] s : backward )
+				{
+					if( s[ 2 ] == 0 )
+						continue;
+					final int xx = x + s[ 0 ];
+					final int yy = y + s[ 1 ];
+					if( xx < 0 || xx >= width || yy < 0 || yy >= height )
+						continue;
+					final int neighbor = index - planeSize + s[ 1 ] * width + s[ 0 ];
+					if( parent[ neighbor ] != OUTSIDE 
+							&& values.get( z - 1, yy * width + xx ) == value )
+						union( index, neighbor );
+				}
+			}
+	}
+	
+	/**
+	 * Write the binary slice of the regional extrema (the forest is
+	 * only read, so the slices can be written in parallel)
+	 * @param output output values
+	 * @param z slice (0-based)
+	 */
+	void writeSlice( final VoxelValues output, final int z )
+	{
+		final int planeSize = width * height;
+		for( int xy = 0; xy < planeSize; ++xy )
+		{
+			int entry = parent[ z * planeSize + xy ];
+			while( entry >= 0 )
+				entry = parent[ entry ];
+			output.set( z, xy, entry == ROOT ? 1 : 0 );
+		}
+	}
+	
+	/**
+	 * Find the regional extrema without forest: the output is set to 1
+	 * inside the mask, then each plateau holding a voxel with a lower
+	 * (higher) neighbor is flooded with 0 when that voxel is reached, 
+	 * filtering the slices in increasing order
+	 * @param values input values
+	 * @param output output values
+	 */
+	void floodSlices( final VoxelValues values, final VoxelValues output )
+	{
+		final int[][] shifts = NeighborOffsets.getShifts( connectivity );
+		final ProgressTracker progress = new ProgressTracker( progressListener, 2L * depth );
+		for( int z = 0; z < depth; ++z )
+		{
+			for( int y = 0; y < height; ++y )
+			{
+				for( int x = 0; x < width; ++x )
+					output.set( z, y * width + x, 0 );
+				final int firstRun = null != mask ? mask.getFirstRun( y, z ) : 0;
+				final int lastRun = null != mask ? mask.getLastRun( y, z ) : 1;
+				for( int r = firstRun; r < lastRun; ++r )
+				{
+					final int end = null != mask ? mask.getEnd( r ) : width;
+					for( int x = null != mask ? mask.getStart( r ) : 0; x < end; ++x )
+						output.set( z, y * width + x, 1 );
+				}
+			}
+			progress.add( 1 );
+		}
+		
+		// (slice, position) pairs of the plateau being flooded
+		final IntFifo queue = new IntFifo();
+		final SlidingExtremumFilter filter = new SlidingExtremumFilter( stack, mask, connectivity, maximum );
+		for( int z = 0; z < depth; ++z )
+		{
+			final float[] extrema = filter.filter( z );
+			for( int xy = 0; xy < width * height; ++xy )
+			{
+				final float value = values.get( z, xy );
+				if( output.get( z, xy ) == 0 || value == extrema[ xy ] )
+					continue;
+				output.set( z, xy, 0 );
+				queue.add( z );
+				queue.add( xy );
+				while( queue.isEmpty() == false )
+				{
+					final int zc = queue.poll();
+					final int xyc = queue.poll();
+					final int xc = xyc % width;
+					final int yc = xyc / width;
+					for( final int[] s : shifts )
+					{
+						final int xx = xc + s[ 0 ];
+						final int yy = yc + s[ 1 ];
+						final int zz = zc + s[ 2 ];
+						if( xx < 0 || xx >= width || yy < 0 || yy >= height || zz < 0 || zz >= depth )
+							continue;
+						final int neighbor = yy * width + xx;
+						if( output.get( zz, neighbor ) != 0 && values.get( zz, neighbor ) == value )
+						{
+							output.set( zz, neighbor, 0 );
+							queue.add( zz );
+							queue.add( neighbor );
+						}
+					}
+				}
+			}
+			progress.add( 1 );
+		}
+		progress.finish();
+	}
+	
+	/**
+	 * Root of the tree of a voxel (halving the path to the root)
+	 * @param index voxel index
+	 * @return root voxel index
+	 */
+	final int find( int index )
+	{
+		while( parent[ index ] >= 0 )
+		{
+			final int next = parent[ index ];
+			if( parent[ next ] < 0 )
+				return next;
+			parent[ index ] = parent[ next ];
+			index = parent[ index ];
+		}
+		return index;
+	}
+	
+	/**
+	 * Join the trees of two voxels (the smallest root becomes the root,
+	 * flagged if one of the plateaus was)
+	 * @param a first voxel index
+	 * @param b second voxel index
+	 */
+	final void union( final int a, final int b )
+	{
+		final int ra = find( a );
+		final int rb = find( b );
+		if( ra == rb )
+			return;
+		final int root = Math.min( ra, rb );
+		final int child = Math.max( ra, rb );
+		parent[ root ] = Math.min( parent[ root ], parent[ child ] );
+		parent[ child ] = root;
+	}
+}
@@ -0,0 +1,48 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+/**
+ * Receives the status and progress of a long operation. Calls are
+ * rate-limited by {@link ProgressTracker}, so implementations can
+ * update a user interface directly.
+ */
+public interface ProgressListener
+{
+	/** listener ignoring all the updates (e.g. in headless mode) */
+	ProgressListener NONE = new ProgressListener() {
+		public void setStatus( final String status ) {}
+		public void setProgress( final long done, final long total ) {}
+	};
+
+	/**
+	 * Called when a new step of the operation starts
+	 * @param status description of the step
+	 */
+	void setStatus( String status );
+
+	/**
+	 * Called when the current step progressed
+	 * @param done amount of work done
+	 * @param total total amount of work of the step
+	 */
+	void setProgress( long done, long total );
+}
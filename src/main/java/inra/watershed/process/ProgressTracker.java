@@ -0,0 +1,128 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe progress counter of one step of an operation. Worker
+ * threads add the work they did and the listener is notified at most
+ * once every {@link #MIN_INTERVAL} ms, whatever the thread. Callers of
+ * tight loops should also add their work by batches (see 
+ * {@link #BATCH_SIZE}) instead of once per voxel.
+ */
+public class ProgressTracker
+{
+	/** minimum time between two notifications (in ms) */
+	public static final long MIN_INTERVAL = 100;
+	/** suggested number of voxels between two calls to {@link #add(long)} */
+	public static final int BATCH_SIZE = 4096;
+
+	/** listener to notify */
+	final ProgressListener listener;
+	/** total amount of work of the step */
+	final long total;
+	/** amount of work done */
+	final AtomicLong done = new AtomicLong( 0 );
+	/** time of the next allowed notification (in ns) */
+	final AtomicLong nextNotification;
+
+	/**
+	 * Start tracking the progress of a step
+	 * @param listener listener to notify
+	 * @param total total amount of work of the step
+	 */
+	public ProgressTracker(
+			final ProgressListener listener,
+			final long total )
+	{
+		this.listener = listener;
+		this.total = total;
+		this.nextNotification = new AtomicLong( System.nanoTime() );
+	}
+
+	/**
+	 * Add some work done (from any thread)
+	 * @param work amount of work
+	 */
+	public void add( final long work )
+	{
+		report( done.addAndGet( work ) );
+	}
+
+	/**
+	 * Set the amount of work done (from a single thread)
+	 * @param value amount of work done
+	 */
+	public void set( final long value )
+	{
+		done.set( value );
+		report( value );
+	}
+
+	/**
+	 * Set the amount of work done when the total amount of work grows
+	 * during the step, as in queue-based propagations (from a single 
+	 * thread)
+	 * @param value amount of work done
+	 * @param currentTotal current total amount of work
+	 */
+	public void set( final long value, final long currentTotal )
+	{
+		done.set( value );
+		report( value, currentTotal );
+	}
+
+	/**
+	 * Notify the listener that the step is complete
+	 */
+	public void finish()
+	{
+		done.set( total );
+		listener.setProgress( total, total );
+	}
+
+	/**
+	 * Notify the listener, unless it was notified less than
+	 * MIN_INTERVAL ms ago
+	 * @param value amount of work done
+	 */
+	void report( final long value )
+	{
+		report( value, total );
+	}
+
+	/**
+	 * Notify the listener, unless it was notified less than
+	 * MIN_INTERVAL ms ago
+	 * @param value amount of work done
+	 * @param total total amount of work
+	 */
+	void report( final long value, final long total )
+	{
+		if( listener == ProgressListener.NONE )
+			return;
+		final long now = System.nanoTime();
+		final long next = nextNotification.get();
+		if( now - next >= 0 && nextNotification.compareAndSet( next, now + MIN_INTERVAL * 1000000L ) )
+			listener.setProgress( value, total );
+	}
+}
@@ -0,0 +1,545 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.util.ThreadUtil;
+
+/**
+ * Region adjacency graph of the watershed domains. Each edge links two
+ * touching domains and keeps the height of their lowest saddle (the
+ * smallest value of the higher voxel of a contact) and their contact
+ * area (number of touching voxel pairs). Each domain keeps its lowest
+ * value and its size. The domains can then be merged by saddle height
+ * or by dynamics, giving a lookup table of new labels, without 
+ * flooding the volume again. While the graph is built, the domain 
+ * tables are shared by all the threads (each thread buffers its voxels
+ * by label range in a {@link RegionAccumulator} and adds them under 
+ * the lock of that range, as {@link LabelStatistics} does), and only
+ * the hash tables of the edges are kept per thread.
+ */
+public class RegionAdjacencyGraph
+{
+	/** largest region label */
+	final int numRegions;
+	/** lowest value of each region (indexed by label) */
+	final float[] minValue;
+	/** number of voxels of each region (indexed by label) */
+	final long[] size;
+
+	/** number of edges */
+	int numEdges = 0;
+	/** labels of the regions of each edge (regionA < regionB) */
+	int[] regionA = new int[ 64 ];
+	int[] regionB = new int[ 64 ];
+	/** lowest saddle of each edge */
+	float[] saddle = new float[ 64 ];
+	/** contact area of each edge */
+	long[] area = new long[ 64 ];
+
+	/** hash table of the edges (key: regionA << 32 | regionB, 0 if empty) */
+	long[] keys = new long[ 128 ];
+	/** edge of each entry of the hash table */
+	int[] entries = new int[ 128 ];
+
+	/** number of labels of each label range */
+	final int stripeSize;
+	/** lock of each label range */
+	final Object[] locks;
+
+	/**
+	 * Create a graph without edges
+	 * @param numRegions largest region label
+	 */
+	public RegionAdjacencyGraph( final int numRegions )
+	{
+		this.numRegions = numRegions;
+		this.minValue = new float[ numRegions + 1 ];
+		this.size = new long[ numRegions + 1 ];
+		Arrays.fill( minValue, Float.POSITIVE_INFINITY );
+		stripeSize = ( numRegions + 1 ) / LabelStatistics.NUM_STRIPES + 1;
+		locks = new Object[ LabelStatistics.NUM_STRIPES ];
+		for( int s = 0; s < LabelStatistics.NUM_STRIPES; ++s )
+			locks[ s ] = new Object();
+	}
+
+	/**
+	 * Build the graph of a flooded label buffer (multi-threaded, each
+	 * thread visiting a range of slices and collecting its edges in a
+	 * graph without regions)
+	 * @param labels label buffer after flooding
+	 * @param values input values
+	 * @param connectivity voxel connectivity (6, 18 or 26)
+	 * @param numRegions largest region label
+	 * @param numThreads number of threads
+	 * @return region adjacency graph
+	 */
+	public static RegionAdjacencyGraph build(
+			final LabelBuffer labels,
+			final VoxelValues values,
+			final int connectivity,
+			final int numRegions,
+			final int numThreads )
+	{
+		final NeighborOffsets neighbors = new NeighborOffsets( connectivity, labels );
+		// neighbors after the voxel in the buffer, to visit each pair once
+		int numForward = 0;
+		final int[] forward = new int[ neighbors.size ];
+		for( int n = 0; n < neighbors.size; ++n )
+			if( neighbors.padded[ n ] > 0 )
+				forward[ numForward++ ] = n;
+		final int numNeighbors = numForward;
+
+		final int threads = Math.max( 1, Math.min( numThreads, labels.depth ) );
+		final int dec = (int) Math.ceil( (double) labels.depth / (double) threads );
+		final RegionAdjacencyGraph graph = new RegionAdjacencyGraph( numRegions );
+		final RegionAdjacencyGraph[] edges = new RegionAdjacencyGraph[ threads ];
+
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] workers = ThreadUtil.createThreadArray( threads );
+		for (int ithread = 0; ithread < workers.length; ithread++) 
+		{
+			workers[ithread] = new Thread() {
+				public void run() {
+					final RegionAccumulator regions = graph.new RegionAccumulator();
+					for (int t = ai.getAndIncrement(); t < threads; t = ai.getAndIncrement())
+					{
+						final RegionAdjacencyGraph contacts = new RegionAdjacencyGraph( 0 );
+						final int zmax = Math.min( dec * ( t + 1 ), labels.depth );
+						for( int z = dec * t; z < zmax; ++z )
+							for( int y = 0; y < labels.height; ++y )
+							{
+								long index = labels.index( 0, y, z );
+								for( int x = 0, xy = y * labels.width; x < labels.width; ++x, ++xy, ++index )
+								{
+									final int label = labels.get( index );
+									if( label <= 0 )
+										continue;
+									final float value = values.get( z, xy );
+									regions.add( label, value );
+									for( int m = 0; m < numNeighbors; ++m )
+									{
+										final int n = forward[ m ];
+										final int neighborLabel = labels.get( index + neighbors.padded[ n ] );
+										if( neighborLabel <= 0 || neighborLabel == label )
+											continue;
+										final float neighborValue = values.get( 
+												z + neighbors.slice[ n ], xy + neighbors.inSlice[ n ] );
+										contacts.addContact( label, neighborLabel, Math.max( value, neighborValue ), 1 );
+									}
+								}
+							}
+						edges[ t ] = contacts;
+					}
+					regions.flush();
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(workers);
+
+		for( int t = 0; t < threads; ++t )
+			graph.addEdges( edges[ t ] );
+		return graph;
+	}
+
+	/**
+	 * Add a voxel to a region
+	 * @param label region label
+	 * @param value voxel value
+	 */
+	void addVoxel( final int label, final float value )
+	{
+		size[ label ]++;
+		if( value < minValue[ label ] )
+			minValue[ label ] = value;
+	}
+
+	/**
+	 * Add contacts between two regions
+	 * @param a label of the first region
+	 * @param b label of the second region (different from a)
+	 * @param height saddle height of the contacts
+	 * @param contacts number of contacts
+	 */
+	void addContact( final int a, final int b, final float height, final long contacts )
+	{
+		final long key = a < b ? ( (long) a << 32 ) | b : ( (long) b << 32 ) | a;
+		int slot = hash( key ) & ( keys.length - 1 );
+		while( keys[ slot ] != 0 && keys[ slot ] != key )
+			slot = ( slot + 1 ) & ( keys.length - 1 );
+
+		if( keys[ slot ] == key )
+		{
+			final int e = entries[ slot ];
+			if( height < saddle[ e ] )
+				saddle[ e ] = height;
+			area[ e ] += contacts;
+			return;
+		}
+
+		if( numEdges == regionA.length )
+		{
+			regionA = Arrays.copyOf( regionA, numEdges << 1 );
+			regionB = Arrays.copyOf( regionB, numEdges << 1 );
+			saddle = Arrays.copyOf( saddle, numEdges << 1 );
+			area = Arrays.copyOf( area, numEdges << 1 );
+		}
+		regionA[ numEdges ] = Math.min( a, b );
+		regionB[ numEdges ] = Math.max( a, b );
+		saddle[ numEdges ] = height;
+		area[ numEdges ] = contacts;
+		keys[ slot ] = key;
+		entries[ slot ] = numEdges++;
+
+		// keep the table at most half full
+		if( numEdges << 1 > keys.length )
+			rehash( keys.length << 1 );
+	}
+
+	/**
+	 * Add the edges of another graph to this one
+	 * @param other graph of the same regions (or without regions)
+	 */
+	void addEdges( final RegionAdjacencyGraph other )
+	{
+		for( int e = 0; e < other.numEdges; ++e )
+			addContact( other.regionA[ e ], other.regionB[ e ], other.saddle[ e ], other.area[ e ] );
+	}
+
+	/**
+	 * Resize the hash table of the edges
+	 * @param capacity new number of slots (a power of 2)
+	 */
+	void rehash( final int capacity )
+	{
+		keys = new long[ capacity ];
+		entries = new int[ capacity ];
+		for( int e = 0; e < numEdges; ++e )
+		{
+			final long key = ( (long) regionA[ e ] << 32 ) | regionB[ e ];
+			int slot = hash( key ) & ( capacity - 1 );
+			while( keys[ slot ] != 0 )
+				slot = ( slot + 1 ) & ( capacity - 1 );
+			keys[ slot ] = key;
+			entries[ slot ] = e;
+		}
+	}
+
+	/**
+	 * Buffer of the voxels added by a thread to the regions. The voxels
+	 * are kept by label range and added to the graph, under the lock of
+	 * their range, when the buffer of the range is full or when the 
+	 * accumulator is flushed.
+	 */
+	final class RegionAccumulator
+	{
+		/** buffered labels and values of each label range */
+		final int[][] labels = new int[ LabelStatistics.NUM_STRIPES ][];
+		final float[][] values = new float[ LabelStatistics.NUM_STRIPES ][];
+		/** number of buffered voxels of each label range */
+		final int[] sizes = new int[ LabelStatistics.NUM_STRIPES ];
+
+		/**
+		 * Add a voxel to a region (see {@link RegionAdjacencyGraph#addVoxel})
+		 * @param label region label
+		 * @param value voxel value
+		 */
+		final void add( final int label, final float value )
+		{
+			final int s = label / stripeSize;
+			if( null == labels[ s ] )
+			{
+				labels[ s ] = new int[ LabelStatistics.BUFFER_SIZE ];
+				values[ s ] = new float[ LabelStatistics.BUFFER_SIZE ];
+			}
+			final int n = sizes[ s ];
+			labels[ s ][ n ] = label;
+			values[ s ][ n ] = value;
+			sizes[ s ] = n + 1;
+			if( n + 1 == LabelStatistics.BUFFER_SIZE )
+				flush( s );
+		}
+
+		/**
+		 * Add the buffered voxels of a label range to the regions
+		 * @param s label range
+		 */
+		void flush( final int s )
+		{
+			synchronized( locks[ s ] )
+			{
+				for( int i = 0; i < sizes[ s ]; ++i )
+					addVoxel( labels[ s ][ i ], values[ s ][ i ] );
+			}
+			sizes[ s ] = 0;
+		}
+
+		/**
+		 * Add all the buffered voxels to the regions
+		 */
+		void flush()
+		{
+			for( int s = 0; s < LabelStatistics.NUM_STRIPES; ++s )
+				if( sizes[ s ] > 0 )
+					flush( s );
+		}
+	}
+
+	static int hash( final long key )
+	{
+		final long h = key * 0x9E3779B97F4A7C15L;
+		return (int) ( h ^ ( h >>> 32 ) );
+	}
+
+	/**
+	 * @return largest region label
+	 */
+	public int getNumRegions()
+	{
+		return numRegions;
+	}
+
+	/**
+	 * @return number of edges
+	 */
+	public int getNumEdges()
+	{
+		return numEdges;
+	}
+
+	/**
+	 * @param edge edge index
+	 * @return smaller label of the regions of the edge
+	 */
+	public int getRegionA( final int edge )
+	{
+		return regionA[ edge ];
+	}
+
+	/**
+	 * @param edge edge index
+	 * @return larger label of the regions of the edge
+	 */
+	public int getRegionB( final int edge )
+	{
+		return regionB[ edge ];
+	}
+
+	/**
+	 * @param edge edge index
+	 * @return height of the lowest saddle between the regions of the edge
+	 */
+	public float getSaddle( final int edge )
+	{
+		return saddle[ edge ];
+	}
+
+	/**
+	 * @param edge edge index
+	 * @return number of touching voxel pairs between the regions of the edge
+	 */
+	public long getContactArea( final int edge )
+	{
+		return area[ edge ];
+	}
+
+	/**
+	 * @param label region label
+	 * @return lowest value of the region (infinity if it is empty)
+	 */
+	public float getMinValue( final int label )
+	{
+		return minValue[ label ];
+	}
+
+	/**
+	 * @param label region label
+	 * @return number of voxels of the region
+	 */
+	public long getSize( final int label )
+	{
+		return size[ label ];
+	}
+
+	/**
+	 * Merge the regions linked by a saddle lower than or equal to a 
+	 * threshold
+	 * @param maxSaddle highest saddle to merge through
+	 * @return lookup table from the old to the new labels
+	 */
+	public int[] mergeBySaddle( final float maxSaddle )
+	{
+		final int[] parent = createSets();
+		for( int e = 0; e < numEdges; ++e )
+			if( saddle[ e ] <= maxSaddle )
+				union( parent, regionA[ e ], regionB[ e ] );
+		return createLut( parent );
+	}
+
+	/**
+	 * Merge the regions whose dynamics is lower than a threshold. The 
+	 * edges are visited by increasing saddle height, and two regions 
+	 * are merged when the higher of their minima is less than minDynamics
+	 * below the saddle. The merged region keeps the lowest minimum.
+	 * @param minDynamics smallest dynamics of the regions to keep
+	 * @return lookup table from the old to the new labels
+	 */
+	public int[] mergeByDynamics( final float minDynamics )
+	{
+		final long[] order = new long[ numEdges ];
+		for( int e = 0; e < numEdges; ++e )
+			order[ e ] = ( (long) VoxelHeap.sortableBits( saddle[ e ] ) << 32 ) | e;
+		Arrays.sort( order );
+
+		final int[] parent = createSets();
+		final float[] setMin = minValue.clone();
+		for( final long entry : order )
+		{
+			final int e = (int) entry;
+			final int a = find( parent, regionA[ e ] );
+			final int b = find( parent, regionB[ e ] );
+			if( a == b || saddle[ e ] - Math.max( setMin[ a ], setMin[ b ] ) >= minDynamics )
+				continue;
+			final float min = Math.min( setMin[ a ], setMin[ b ] );
+			setMin[ union( parent, a, b ) ] = min;
+		}
+		return createLut( parent );
+	}
+
+	/**
+	 * @return union-find table with each region in its own set
+	 */
+	int[] createSets()
+	{
+		final int[] parent = new int[ numRegions + 1 ];
+		for( int label = 0; label <= numRegions; ++label )
+			parent[ label ] = label;
+		return parent;
+	}
+
+	/**
+	 * Find the root of the set of a region (with path halving)
+	 * @param parent union-find table
+	 * @param label region label
+	 * @return root label of its set
+	 */
+	static int find( final int[] parent, int label )
+	{
+		while( parent[ label ] != label )
+		{
+			parent[ label ] = parent[ parent[ label ] ];
+			label = parent[ label ];
+		}
+		return label;
+	}
+
+	/**
+	 * Merge the sets of two regions (the smallest label becomes the root)
+	 * @param parent union-find table
+	 * @param a first region label
+	 * @param b second region label
+	 * @return root label of the merged set
+	 */
+	static int union( final int[] parent, final int a, final int b )
+	{
+		final int ra = find( parent, a );
+		final int rb = find( parent, b );
+		if( ra < rb )
+			parent[ rb ] = ra;
+		else
+			parent[ ra ] = rb;
+		return Math.min( ra, rb );
+	}
+
+	/**
+	 * Number the sets of a union-find table consecutively, in the
+	 * order of their smallest label
+	 * @param parent union-find table
+	 * @return lookup table from the region labels to the set numbers (0 stays 0)
+	 */
+	int[] createLut( final int[] parent )
+	{
+		final int[] lut = new int[ numRegions + 1 ];
+		int numSets = 0;
+		for( int label = 1; label <= numRegions; ++label )
+		{
+			final int root = find( parent, label );
+			lut[ label ] = root == label ? ++numSets : lut[ root ];
+		}
+		return lut;
+	}
+
+	/**
+	 * Relabel a watershed domains image with a lookup table
+	 * @param labels watershed domains image (16 or 32-bit, or integer labels)
+	 * @param lut lookup table given by a merge
+	 * @return new image with the merged labels
+	 */
+	public static ImagePlus relabel( final ImagePlus labels, final int[] lut )
+	{
+		final ImageStack stack = labels.getStack();
+		ImageStack merged = new ImageStack( stack.getWidth(), stack.getHeight() );
+		if( stack instanceof IntLabelStack )
+		{
+			final IntLabelStack in = (IntLabelStack) stack;
+			final IntLabelStack out = new IntLabelStack( stack.getWidth(), stack.getHeight(), stack.getSize() );
+			for( int z = 1; z <= stack.getSize(); ++z )
+			{
+				final int[] inLabels = in.getLabels( z );
+				final int[] outLabels = out.getLabels( z );
+				for( int i = 0; i < inLabels.length; ++i )
+					outLabels[ i ] = lut[ inLabels[ i ] ];
+			}
+			merged = out;
+		}
+		else
+		{
+			for( int z = 1; z <= stack.getSize(); ++z )
+			{
+				final Object pixels = stack.getPixels( z );
+				if( pixels instanceof short[] )
+				{
+					final short[] in = (short[]) pixels;
+					final short[] out = new short[ in.length ];
+					for( int i = 0; i < in.length; ++i )
+						out[ i ] = (short) lut[ in[ i ] & 0xffff ];
+					merged.addSlice( "", out );
+				}
+				else
+				{
+					final float[] in = (float[]) pixels;
+					final float[] out = new float[ in.length ];
+					for( int i = 0; i < in.length; ++i )
+						out[ i ] = lut[ (int) in[ i ] ];
+					merged.addSlice( "", out );
+				}
+			}
+		}
+		final ImagePlus result = new ImagePlus( "merged-" + labels.getTitle(), merged );
+		result.setCalibration( labels.getCalibration() );
+		return result;
+	}
+}
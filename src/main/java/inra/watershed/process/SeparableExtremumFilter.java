@@ -0,0 +1,288 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.util.ThreadUtil;
+
+/**
+ * 3D erosion (minimum) and dilation (maximum) by a box of any radius,
+ * filtering the lines along x, then y, then z. Each line is filtered
+ * with the van Herk/Gil-Werman algorithm: the line is cut into blocks
+ * of the window size, and the extremum of a window is the extremum of
+ * a suffix of one block and a prefix of the next, so the cost per voxel
+ * does not depend on the radius. The lines are filtered in place in
+ * a copy of the input, through a float buffer of one line, so the 
+ * filter needs no other copy of the volume. The lines of each pass 
+ * are shared between threads (slices for x and y, rows for z). The watershed
+ * pipeline does not call it: callers filter their seed image with it
+ * (e.g. before the {@link RegionalMinimaFilter}) when they need to.
+ */
+public class SeparableExtremumFilter
+{
+	/** radius of the box along each axis */
+	final int radiusX;
+	final int radiusY;
+	final int radiusZ;
+	/** listener of the status of the filter */
+	ProgressListener progressListener = ImageJProgressListener.getDefault();
+	
+	/**
+	 * Create a filter by a box of (2r+1) voxels along each axis
+	 * @param radiusX radius along x (0 to skip the axis)
+	 * @param radiusY radius along y (0 to skip the axis)
+	 * @param radiusZ radius along z (0 to skip the axis)
+	 */
+	public SeparableExtremumFilter( 
+			final int radiusX, 
+			final int radiusY, 
+			final int radiusZ )
+	{
+		if( radiusX < 0 || radiusY < 0 || radiusZ < 0 )
+			throw new IllegalArgumentException( "Negative filter radius: " 
+					+ radiusX + ", " + radiusY + ", " + radiusZ );
+		this.radiusX = radiusX;
+		this.radiusY = radiusY;
+		this.radiusZ = radiusZ;
+	}
+	
+	/**
+	 * Set the listener of the status of the filter (the ImageJ 
+	 * status bar by default, nothing in headless mode)
+	 * @param progressListener progress listener
+	 */
+	public void setProgressListener( final ProgressListener progressListener )
+	{
+		this.progressListener = null != progressListener ? progressListener : ProgressListener.NONE;
+	}
+	
+	/**
+	 * Minimum filter (erosion) of an image
+	 * @param input 8, 16 or 32-bit image
+	 * @return filtered image of the same type
+	 */
+	public ImagePlus erode( final ImagePlus input )
+	{
+		return apply( input, false );
+	}
+	
+	/**
+	 * Maximum filter (dilation) of an image
+	 * @param input 8, 16 or 32-bit image
+	 * @return filtered image of the same type
+	 */
+	public ImagePlus dilate( final ImagePlus input )
+	{
+		return apply( input, true );
+	}
+	
+	/**
+	 * Filter an image (the values are negated for a maximum filter, so
+	 * the lines are always filtered by their minimum)
+	 * @param input 8, 16 or 32-bit image
+	 * @param maximum true for a maximum filter, false for a minimum filter
+	 * @return filtered image of the same type
+	 */
+	ImagePlus apply( final ImagePlus input, final boolean maximum )
+	{
+		final ImageStack output = input.duplicate().getStack();
+		final int width = output.getWidth();
+		final int height = output.getHeight();
+		final int depth = output.getSize();
+		final VoxelValues values = VoxelValues.of( output );
+		final float sign = maximum ? -1 : 1;
+		
+		progressListener.setStatus( ( maximum ? "Maximum" : "Minimum" ) + " filter " 
+				+ ( 2 * radiusX + 1 ) + "x" + ( 2 * radiusY + 1 ) + "x" + ( 2 * radiusZ + 1 ) + "..." );
+		if( radiusX > 0 )
+			filterSlices( values, width, height, depth, radiusX, sign, true );
+		if( radiusY > 0 )
+			filterSlices( values, width, height, depth, radiusY, sign, false );
+		if( radiusZ > 0 && depth > 1 )
+			filterColumns( values, width, height, depth, radiusZ, sign );
+		
+		final ImagePlus result = new ImagePlus( ( maximum ? "dilated-" : "eroded-" ) + input.getTitle(), output );
+		result.setCalibration( input.getCalibration() );
+		return result;
+	}
+	
+	/**
+	 * Filter the rows or the columns of every slice (one thread per slice)
+	 * @param values values of each slice (filtered in place)
+	 * @param width slice width
+	 * @param height slice height
+	 * @param depth number of slices
+	 * @param radius filter radius
+	 * @param sign 1 for a minimum filter, -1 for a maximum filter
+	 * @param rows true to filter the rows, false for the columns
+	 */
+	static void filterSlices(
+			final VoxelValues values,
+			final int width,
+			final int height,
+			final int depth,
+			final int radius,
+			final float sign,
+			final boolean rows )
+	{
+		final int length = rows ? width : height;
+		final int numLines = rows ? height : width;
+		final int step = rows ? 1 : width;
+		final int lineStep = rows ? width : 1;
+		
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = ThreadUtil.createThreadArray( Math.min( Prefs.getThreads(), depth ) );
+		for (int ithread = 0; ithread < threads.length; ithread++) 
+		{
+			threads[ithread] = new Thread() {
+				public void run() {
+					final LineFilter filter = new LineFilter( length, radius, sign );
+					for (int z = ai.getAndIncrement(); z < depth; z = ai.getAndIncrement())
+						for( int line = 0; line < numLines; ++line )
+							filter.filter( values, z, line * lineStep, step );
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+	}
+	
+	/**
+	 * Filter the lines along z (one thread per row of voxels)
+	 * @param values values of each slice (filtered in place)
+	 * @param width slice width
+	 * @param height slice height
+	 * @param depth number of slices
+	 * @param radius filter radius
+	 * @param sign 1 for a minimum filter, -1 for a maximum filter
+	 */
+	static void filterColumns(
+			final VoxelValues values,
+			final int width,
+			final int height,
+			final int depth,
+			final int radius,
+			final float sign )
+	{
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = ThreadUtil.createThreadArray( Math.min( Prefs.getThreads(), height ) );
+		for (int ithread = 0; ithread < threads.length; ithread++) 
+		{
+			threads[ithread] = new Thread() {
+				public void run() {
+					final LineFilter filter = new LineFilter( depth, radius, sign );
+					for (int y = ai.getAndIncrement(); y < height; y = ai.getAndIncrement())
+						for( int x = 0, i = y * width; x < width; ++x, ++i )
+							filter.filter( values, i );
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+	}
+	
+	/**
+	 * Van Herk/Gil-Werman minimum filter of lines of the same length,
+	 * with the buffers of one thread. The values are multiplied by a 
+	 * sign when they are read and written back, so the same minimum 
+	 * filter gives the maximum. Voxels beyond the ends of the line are
+	 * ignored.
+	 */
+	static class LineFilter
+	{
+		final int length;
+		final int radius;
+		/** 1 for a minimum filter, -1 for a maximum filter */
+		final float sign;
+		/** window size */
+		final int size;
+		/** line padded with r voxels on each side and up to a multiple of the window size */
+		final float[] line;
+		/** prefix and suffix minima inside each block */
+		final float[] prefix;
+		final float[] suffix;
+		
+		LineFilter( final int length, final int radius, final float sign )
+		{
+			this.length = length;
+			this.radius = radius;
+			this.sign = sign;
+			this.size = 2 * radius + 1;
+			final int padded = ( ( length + 2 * radius + size - 1 ) / size ) * size;
+			line = new float[ padded ];
+			prefix = new float[ padded ];
+			suffix = new float[ padded ];
+			Arrays.fill( line, Float.POSITIVE_INFINITY );
+		}
+		
+		/**
+		 * Filter a line of a slice
+		 * @param values values of each slice
+		 * @param z slice of the line
+		 * @param start index of the first voxel of the line in the slice
+		 * @param step distance between two voxels of the line
+		 */
+		void filter( final VoxelValues values, final int z, final int start, final int step )
+		{
+			for( int x = 0, i = start; x < length; ++x, i += step )
+				line[ radius + x ] = sign * values.get( z, i );
+			filterLine();
+			for( int x = 0, i = start; x < length; ++x, i += step )
+				values.set( z, i, sign * Math.min( suffix[ x ], prefix[ x + size - 1 ] ) );
+		}
+		
+		/**
+		 * Filter a line along z
+		 * @param values values of each slice
+		 * @param index position of the line in the slices
+		 */
+		void filter( final VoxelValues values, final int index )
+		{
+			for( int z = 0; z < length; ++z )
+				line[ radius + z ] = sign * values.get( z, index );
+			filterLine();
+			for( int z = 0; z < length; ++z )
+				values.set( z, index, sign * Math.min( suffix[ z ], prefix[ z + size - 1 ] ) );
+		}
+		
+		/**
+		 * Compute the prefix and suffix minima of each block of the line
+		 */
+		void filterLine()
+		{
+			for( int b = 0; b < line.length; b += size )
+			{
+				final int end = b + size - 1;
+				prefix[ b ] = line[ b ];
+				for( int i = b + 1; i <= end; ++i )
+					prefix[ i ] = Math.min( prefix[ i - 1 ], line[ i ] );
+				suffix[ end ] = line[ end ];
+				for( int i = end - 1; i >= b; --i )
+					suffix[ i ] = Math.min( suffix[ i + 1 ], line[ i ] );
+			}
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+
+
+import java.util.Arrays;
+
+import ij.ImageStack;
+
+/**
+ * Minimum (or maximum) filter over the 6, 18 or 26-neighborhood of 
+ * each voxel, computed one slice at a time with a rolling window of 
+ * three slices. For each slice of the window, the filter keeps the 
+ * voxel values, their extremum over the in-plane cross (x and y
+ * neighbors) and over the in-plane 3x3 box, both computed from the 
+ * row-wise extrema. The extremum of a voxel is then taken over three
+ * of these planes:
+ * <ul>
+ * <li>6-neighborhood: cross of the slice, values of the slices above and below</li>
+ * <li>18-neighborhood: box of the slice, crosses of the slices above and below</li>
+ * <li>26-neighborhood: boxes of the slice and of the slices above and below</li>
+ * </ul>
+ * Voxels outside the mask are ignored. Each thread needs its own filter.
+ */
+public class SlidingExtremumFilter
+{
+	/** input stack */
+	final ImageStack stack;
+	/** compiled mask (null for no mask) */
+	final MaskRuns mask;
+	/** voxel connectivity (6, 18 or 26) */
+	final int connectivity;
+	/** true for a maximum filter, false for a minimum filter */
+	final boolean maximum;
+	final int width;
+	final int height;
+	final int depth;
+	
+	/** values, cross and box extrema of the slices of the window, at 
+	 * index z % 3 (values are negated for a maximum filter) */
+	final float[][] values = new float[ 3 ][];
+	final float[][] cross = new float[ 3 ][];
+	final float[][] box = new float[ 3 ][];
+	/** slice held at each index of the window (-1 if none) */
+	final int[] loaded = { -1, -1, -1 };
+	/** row-wise extrema of the slice being loaded */
+	final float[] rows;
+	/** filtered slice */
+	final float[] result;
+	
+	/**
+	 * Create a filter on a stack
+	 * @param stack input stack
+	 * @param mask compiled mask (null for no mask)
+	 * @param connectivity voxel connectivity (6, 18 or 26)
+	 * @param maximum true for a maximum filter, false for a minimum filter
+	 */
+	public SlidingExtremumFilter( 
+			final ImageStack stack, 
+			final MaskRuns mask, 
+			final int connectivity, 
+			final boolean maximum )
+	{
+		NeighborOffsets.getShifts( connectivity );
+		this.stack = stack;
+		this.mask = mask;
+		this.connectivity = connectivity;
+		this.maximum = maximum;
+		this.width = stack.getWidth();
+		this.height = stack.getHeight();
+		this.depth = stack.getSize();
+		final int size = width * height;
+		for( int w = 0; w < 3; ++w )
+		{
+			values[ w ] = new float[ size ];
+			cross[ w ] = new float[ size ];
+			box[ w ] = new float[ size ];
+		}
+		rows = new float[ size ];
+		result = new float[ size ];
+	}
+	
+	/**
+	 * Filter a slice. Consecutive slices reuse the window, so the 
+	 * slices should be filtered in increasing order.
+	 * @param z slice to filter (0-based)
+	 * @return extremum of the neighborhood of each voxel (x + y * width),
+	 * overwritten by the next call (only valid inside the mask)
+	 */
+	public float[] filter( final int z )
+	{
+		for( int s = Math.max( 0, z - 1 ); s <= Math.min( depth - 1, z + 1 ); ++s )
+			if( loaded[ s % 3 ] != s )
+				load( s );
+		
+		final int w = z % 3;
+		final float[] center = connectivity == 6 ? cross[ w ] : box[ w ];
+		final float[][] planes = connectivity == 6 ? values : connectivity == 18 ? cross : box;
+		final float[] below = z > 0 ? planes[ ( z - 1 ) % 3 ] : null;
+		final float[] above = z < depth - 1 ? planes[ ( z + 1 ) % 3 ] : null;
+		
+		for( int i = 0; i < result.length; ++i )
+		{
+			float value = center[ i ];
+			if( null != below && below[ i ] < value )
+				value = below[ i ];
+			if( null != above && above[ i ] < value )
+				value = above[ i ];
+			result[ i ] = maximum ? -value : value;
+		}
+		return result;
+	}
+	
+	/**
+	 * Load a slice into the window and compute its cross and box extrema
+	 * @param z slice to load (0-based)
+	 */
+	void load( final int z )
+	{
+		final int w = z % 3;
+		final float[] v = values[ w ];
+		final float[] c = cross[ w ];
+		final float[] b = box[ w ];
+		loaded[ w ] = z;
+		
+		// values of the slice (voxels outside the mask never win)
+		final Object pixels = stack.getPixels( z + 1 );
+		final float sign = maximum ? -1 : 1;
+		if( null == mask )
+			for( int i = 0; i < v.length; ++i )
+				v[ i ] = sign * WatershedTransform3D.getValue( pixels, i );
+		else
+		{
+			Arrays.fill( v, Float.POSITIVE_INFINITY );
+			for( int y = 0; y < height; ++y )
+			{
+				final int lastRun = mask.getLastRun( y, z );
+				for( int r = mask.getFirstRun( y, z ); r < lastRun; ++r )
+					for( int i = y * width + mask.getStart( r ); i < y * width + mask.getEnd( r ); ++i )
+						v[ i ] = sign * WatershedTransform3D.getValue( pixels, i );
+			}
+		}
+		
+		// row-wise extrema
+		for( int y = 0; y < height; ++y )
+		{
+			final int row = y * width;
+			for( int x = 0; x < width; ++x )
+			{
+				float value = v[ row + x ];
+				if( x > 0 && v[ row + x - 1 ] < value )
+					value = v[ row + x - 1 ];
+				if( x < width - 1 && v[ row + x + 1 ] < value )
+					value = v[ row + x + 1 ];
+				rows[ row + x ] = value;
+			}
+		}
+		
+		// cross (row extrema and column neighbors) and box (three row extrema)
+		for( int y = 0; y < height; ++y )
+		{
+			final int row = y * width;
+			for( int x = 0; x < width; ++x )
+			{
+				final int i = row + x;
+				float crossValue = rows[ i ];
+				float boxValue = rows[ i ];
+				if( y > 0 )
+				{
+					crossValue = Math.min( crossValue, v[ i - width ] );
+					boxValue = Math.min( boxValue, rows[ i - width ] );
+				}
+				if( y < height - 1 )
+				{
+					crossValue = Math.min( crossValue, v[ i + width ] );
+					boxValue = Math.min( boxValue, rows[ i + width ] );
+				}
+				c[ i ] = crossValue;
+				b[ i ] = boxValue;
+			}
+		}
+	}
+}
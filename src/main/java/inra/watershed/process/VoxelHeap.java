@@ -0,0 +1,198 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of voxels for 32-bit (float) gray levels. Entries 
+ * are stored in two parallel primitive arrays, the voxel values (as 
+ * order-preserving int bits) and the voxel indices, so no object is 
+ * allocated per queued voxel. Voxels with the same value come out by 
+ * increasing index.
+ */
+public class VoxelHeap implements VoxelQueue
+{
+	/** initial capacity of the heap */
+	static final int INITIAL_CAPACITY = 1024;
+
+	/** value bits of the heap entries */
+	int[] keys;
+	/** voxel indices of the heap entries */
+	long[] indices;
+	/** number of entries in the heap */
+	int size = 0;
+
+	/**
+	 * Create an empty heap
+	 */
+	public VoxelHeap()
+	{
+		this( INITIAL_CAPACITY );
+	}
+
+	/**
+	 * Create an empty heap with a given initial capacity
+	 * @param capacity initial number of entries
+	 */
+	public VoxelHeap( final int capacity )
+	{
+		this.keys = new int[ Math.max( capacity, 2 ) ];
+		this.indices = new long[ keys.length ];
+	}
+
+	/**
+	 * Convert a float value into an int with the same ordering
+	 * @param value float value
+	 * @return order-preserving int bits
+	 */
+	public static int sortableBits( final float value )
+	{
+		final int bits = Float.floatToIntBits( value );
+		return bits ^ ( ( bits >> 31 ) & 0x7fffffff );
+	}
+
+	/**
+	 * Convert back the order-preserving int bits of a float value
+	 * @param bits order-preserving int bits
+	 * @return float value
+	 */
+	public static float fromSortableBits( final int bits )
+	{
+		return Float.intBitsToFloat( bits ^ ( ( bits >> 31 ) & 0x7fffffff ) );
+	}
+
+	/**
+	 * Grow the heap arrays to hold at least a number of entries
+	 * @param capacity number of entries
+	 */
+	void ensureCapacity( final int capacity )
+	{
+		if( capacity <= keys.length )
+			return;
+		final int length = Math.max( capacity, keys.length << 1 );
+		keys = Arrays.copyOf( keys, length );
+		indices = Arrays.copyOf( indices, length );
+	}
+
+	/**
+	 * Add a voxel to the heap
+	 * @param index voxel index
+	 * @param value voxel value
+	 */
+	public void add( final long index, final float value )
+	{
+		ensureCapacity( size + 1 );
+		final int key = sortableBits( value );
+
+		// sift up
+		int pos = size++;
+		while( pos > 0 )
+		{
+			final int parent = ( pos - 1 ) >>> 1;
+			if( keys[ parent ] < key || ( keys[ parent ] == key && indices[ parent ] <= index ) )
+				break;
+			keys[ pos ] = keys[ parent ];
+			indices[ pos ] = indices[ parent ];
+			pos = parent;
+		}
+		keys[ pos ] = key;
+		indices[ pos ] = index;
+	}
+
+	/**
+	 * Add many voxels at once and restore the heap order bottom-up,
+	 * in linear time
+	 * @param indices voxel indices
+	 * @param values voxel values
+	 * @param n number of voxels to add
+	 */
+	public void addAll( final long[] indices, final float[] values, final int n )
+	{
+		ensureCapacity( size + n );
+		for( int i = 0; i < n; ++i )
+		{
+			this.keys[ size ] = sortableBits( values[ i ] );
+			this.indices[ size++ ] = indices[ i ];
+		}
+
+		for( int pos = ( size >>> 1 ) - 1; pos >= 0; --pos )
+			siftDown( pos, keys[ pos ], this.indices[ pos ] );
+	}
+
+	/**
+	 * Remove the voxel with the smallest value
+	 * @return voxel index
+	 */
+	public long poll()
+	{
+		final long top = indices[ 0 ];
+		--size;
+		siftDown( 0, keys[ size ], indices[ size ] );
+		return top;
+	}
+
+	/**
+	 * Move an entry down from a position of the heap until its
+	 * children are not smaller
+	 * @param start position of the entry
+	 * @param key value bits of the entry
+	 * @param index voxel index of the entry
+	 */
+	final void siftDown( final int start, final int key, final long index )
+	{
+		int pos = start;
+		final int half = size >>> 1;
+		while( pos < half )
+		{
+			int child = ( pos << 1 ) + 1;
+			if( child + 1 < size && ( keys[ child + 1 ] < keys[ child ] 
+					|| ( keys[ child + 1 ] == keys[ child ] && indices[ child + 1 ] < indices[ child ] ) ) )
+				child++;
+			if( key < keys[ child ] || ( key == keys[ child ] && index <= indices[ child ] ) )
+				break;
+			keys[ pos ] = keys[ child ];
+			indices[ pos ] = indices[ child ];
+			pos = child;
+		}
+		keys[ pos ] = key;
+		indices[ pos ] = index;
+	}
+
+	/**
+	 * Value of the voxel at the top of the heap (without removing it)
+	 * @return smallest value in the heap
+	 */
+	public float peekValue()
+	{
+		return fromSortableBits( keys[ 0 ] );
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+}
@@ -0,0 +1,55 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+/**
+ * Queue of voxel indices ordered by voxel value, used by the flooding
+ * from the seed borders (see {@link BucketQueue} and {@link VoxelHeap}).
+ * Indices are padded label buffer indices, which can exceed the int 
+ * range for large volumes.
+ */
+public interface VoxelQueue
+{
+	/**
+	 * Add a voxel to the queue
+	 * @param index voxel index
+	 * @param value voxel value
+	 */
+	void add( long index, float value );
+
+	/**
+	 * Add many voxels at once
+	 * @param indices voxel indices
+	 * @param values voxel values
+	 * @param n number of voxels to add
+	 */
+	void addAll( long[] indices, float[] values, int n );
+
+	/**
+	 * Remove the voxel with the lowest value
+	 * @return voxel index
+	 */
+	long poll();
+
+	boolean isEmpty();
+
+	int size();
+}
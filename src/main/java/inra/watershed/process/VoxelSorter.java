@@ -0,0 +1,213 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+import java.util.Arrays;
+
+import ij.util.ThreadUtil;
+
+/**
+ * Parallel LSD radix sort of voxels by an unsigned integer key, on
+ * primitive arrays. Keys of up to 16 bits (8 and 16-bit gray levels)
+ * are sorted with a single counting pass, and 32-bit keys (the
+ * order-preserving bits of float values, see {@link #floatKey(float)})
+ * with three passes of 11 bits. The sort is stable, so voxels with the
+ * same key keep their input order.
+ */
+public class VoxelSorter
+{
+	/** largest number of bits sorted in one pass */
+	static final int MAX_DIGIT_BITS = 16;
+	/** number of bits per pass for 32-bit keys */
+	static final int DIGIT_BITS = 11;
+
+	/**
+	 * Unsigned key with the same order as a float value
+	 * @param value float value
+	 * @return 32-bit key (to compare as unsigned)
+	 */
+	public static int floatKey( final float value )
+	{
+		return VoxelHeap.sortableBits( value ) ^ 0x80000000;
+	}
+
+	/**
+	 * Float value of an unsigned key
+	 * @param key key given by {@link #floatKey(float)}
+	 * @return float value
+	 */
+	public static float keyToFloat( final int key )
+	{
+		return VoxelHeap.fromSortableBits( key ^ 0x80000000 );
+	}
+
+	/**
+	 * Sort voxels by key (in place)
+	 * @param keys unsigned keys of the voxels (only the lowest keyBits bits are used)
+	 * @param voxels voxel indices
+	 * @param keyBits number of significant bits of the keys (up to 32)
+	 * @param numThreads number of threads
+	 */
+	public static void sort(
+			final int[] keys,
+			final int[] voxels,
+			final int keyBits,
+			final int numThreads )
+	{
+		final int n = keys.length;
+		sort( keys, voxels, n, keyBits, numThreads, new int[ n ], new int[ n ], null );
+	}
+
+	/**
+	 * Sort the first voxels of arrays by key (in place), using given
+	 * buffers for the passes of the sort
+	 * @param keys unsigned keys of the voxels (only the lowest keyBits bits are used)
+	 * @param voxels voxel indices
+	 * @param n number of voxels to sort
+	 * @param keyBits number of significant bits of the keys (up to 32)
+	 * @param numThreads number of threads
+	 * @param bufferKeys buffer of at least n keys
+	 * @param bufferVoxels buffer of at least n voxels
+	 * @param counts digit counts of each thread, at least numThreads x 2^16 (null to allocate them)
+	 */
+	public static void sort(
+			final int[] keys,
+			final int[] voxels,
+			final int n,
+			final int keyBits,
+			final int numThreads,
+			final int[] bufferKeys,
+			final int[] bufferVoxels,
+			final int[][] counts )
+	{
+		final int threads = Math.max( 1, Math.min( numThreads, n / 65536 + 1 ) );
+		final int digitBits = keyBits <= MAX_DIGIT_BITS ? keyBits : DIGIT_BITS;
+		final int[][] digitCounts = null != counts ? counts : new int[ threads ][ 1 << digitBits ];
+
+		int[] srcKeys = keys;
+		int[] srcVoxels = voxels;
+		int[] dstKeys = bufferKeys;
+		int[] dstVoxels = bufferVoxels;
+
+		for( int shift = 0; shift < keyBits; shift += digitBits )
+		{
+			final int bits = Math.min( digitBits, keyBits - shift );
+			if( sortPass( srcKeys, srcVoxels, dstKeys, dstVoxels, n, shift, bits, threads, digitCounts ) )
+			{
+				final int[] k = srcKeys; srcKeys = dstKeys; dstKeys = k;
+				final int[] v = srcVoxels; srcVoxels = dstVoxels; dstVoxels = v;
+			}
+		}
+
+		if( srcKeys != keys )
+		{
+			System.arraycopy( srcKeys, 0, keys, 0, n );
+			System.arraycopy( srcVoxels, 0, voxels, 0, n );
+		}
+	}
+
+	/**
+	 * Stable counting sort of the voxels by one digit of their key.
+	 * Each thread counts the digits of a contiguous chunk, and then
+	 * moves its chunk to the positions given by the counts of all 
+	 * the digits and chunks before it.
+	 * 
+	 * @param srcKeys input keys
+	 * @param srcVoxels input voxels
+	 * @param dstKeys output keys
+	 * @param dstVoxels output voxels
+	 * @param n number of voxels to sort
+	 * @param shift position of the digit in the key
+	 * @param bits number of bits of the digit
+	 * @param numThreads number of threads
+	 * @param counts digit counts of each thread (at least numThreads x 2^bits)
+	 * @return false if all the keys have the same digit (nothing was moved)
+	 */
+	static boolean sortPass(
+			final int[] srcKeys,
+			final int[] srcVoxels,
+			final int[] dstKeys,
+			final int[] dstVoxels,
+			final int n,
+			final int shift,
+			final int bits,
+			final int numThreads,
+			final int[][] counts )
+	{
+		final int numBuckets = 1 << bits;
+		final int mask = numBuckets - 1;
+
+		// count the digits of each chunk
+		Thread[] threads = ThreadUtil.createThreadArray( numThreads );
+		for (int ithread = 0; ithread < threads.length; ithread++) 
+		{
+			final int t = ithread;
+			threads[ithread] = new Thread() {
+				public void run() {
+					final int[] count = counts[ t ];
+					Arrays.fill( count, 0, numBuckets, 0 );
+					final int end = (int) ( (long) n * ( t + 1 ) / numThreads );
+					for( int i = (int) ( (long) n * t / numThreads ); i < end; ++i )
+						count[ ( srcKeys[ i ] >>> shift ) & mask ]++;
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+
+		// first position of each digit in each chunk
+		int position = 0;
+		for( int b = 0; b < numBuckets; ++b )
+		{
+			int total = 0;
+			for( int t = 0; t < numThreads; ++t )
+			{
+				final int count = counts[ t ][ b ];
+				counts[ t ][ b ] = position;
+				position += count;
+				total += count;
+			}
+			if( total == n )
+				return false;
+		}
+
+		// move the voxels
+		threads = ThreadUtil.createThreadArray( numThreads );
+		for (int ithread = 0; ithread < threads.length; ithread++) 
+		{
+			final int t = ithread;
+			threads[ithread] = new Thread() {
+				public void run() {
+					final int[] next = counts[ t ];
+					final int end = (int) ( (long) n * ( t + 1 ) / numThreads );
+					for( int i = (int) ( (long) n * t / numThreads ); i < end; ++i )
+					{
+						final int key = srcKeys[ i ];
+						final int pos = next[ ( key >>> shift ) & mask ]++;
+						dstKeys[ pos ] = key;
+						dstVoxels[ pos ] = srcVoxels[ i ];
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+		return true;
+	}
+}
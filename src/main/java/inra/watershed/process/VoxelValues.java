@@ -0,0 +1,159 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+import ij.ImageStack;
+
+/**
+ * Voxel values of an image stack, read from and written to its slice
+ * pixel arrays. The pixel type is resolved once for the whole stack 
+ * (one subclass per type) instead of at every voxel, so the flooding
+ * loops only pay for an array access.
+ */
+public abstract class VoxelValues
+{
+	/**
+	 * Get the values of the slices of a stack
+	 * @param stack image stack (8, 16 or 32-bit)
+	 * @return voxel values of the stack
+	 */
+	public static VoxelValues of( final ImageStack stack )
+	{
+		return of( WatershedTransform3D.getPixels( stack ) );
+	}
+
+	/**
+	 * Get the values of a list of slices
+	 * @param pixels pixel arrays of the slices, all of the same type 
+	 * (byte[], short[] or float[], null for the slices never read)
+	 * @return voxel values of the slices
+	 */
+	public static VoxelValues of( final Object[] pixels )
+	{
+		Object type = null;
+		for( int z = 0; z < pixels.length && null == type; ++z )
+			type = pixels[ z ];
+		
+		if( type instanceof byte[] )
+		{
+			final byte[][] slices = new byte[ pixels.length ][];
+			for( int z = 0; z < slices.length; ++z )
+				slices[ z ] = (byte[]) pixels[ z ];
+			return new ByteValues( slices );
+		}
+		if( type instanceof short[] )
+		{
+			final short[][] slices = new short[ pixels.length ][];
+			for( int z = 0; z < slices.length; ++z )
+				slices[ z ] = (short[]) pixels[ z ];
+			return new ShortValues( slices );
+		}
+		final float[][] slices = new float[ pixels.length ][];
+		for( int z = 0; z < slices.length; ++z )
+			slices[ z ] = (float[]) pixels[ z ];
+		return new FloatValues( slices );
+	}
+
+	/**
+	 * Read a voxel value
+	 * @param z slice (0-based)
+	 * @param xy position in the slice (x + y * width)
+	 * @return voxel value
+	 */
+	public abstract float get( int z, int xy );
+
+	/**
+	 * Write a voxel value (cast to the pixel type)
+	 * @param z slice (0-based)
+	 * @param xy position in the slice (x + y * width)
+	 * @param value voxel value
+	 */
+	public abstract void set( int z, int xy, float value );
+
+	/** values of an 8-bit stack */
+	static final class ByteValues extends VoxelValues
+	{
+		final byte[][] slices;
+
+		ByteValues( final byte[][] slices )
+		{
+			this.slices = slices;
+		}
+
+		@Override
+		public float get( final int z, final int xy )
+		{
+			return slices[ z ][ xy ] & 0xff;
+		}
+
+		@Override
+		public void set( final int z, final int xy, final float value )
+		{
+			slices[ z ][ xy ] = (byte) value;
+		}
+	}
+
+	/** values of a 16-bit stack */
+	static final class ShortValues extends VoxelValues
+	{
+		final short[][] slices;
+
+		ShortValues( final short[][] slices )
+		{
+			this.slices = slices;
+		}
+
+		@Override
+		public float get( final int z, final int xy )
+		{
+			return slices[ z ][ xy ] & 0xffff;
+		}
+
+		@Override
+		public void set( final int z, final int xy, final float value )
+		{
+			slices[ z ][ xy ] = (short) value;
+		}
+	}
+
+	/** values of a 32-bit stack */
+	static final class FloatValues extends VoxelValues
+	{
+		final float[][] slices;
+
+		FloatValues( final float[][] slices )
+		{
+			this.slices = slices;
+		}
+
+		@Override
+		public float get( final int z, final int xy )
+		{
+			return slices[ z ][ xy ];
+		}
+
+		@Override
+		public void set( final int z, final int xy, final float value )
+		{
+			slices[ z ][ xy ] = value;
+		}
+	}
+}
@@ -0,0 +1,494 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+import java.util.Arrays;
+
+import ij.ImageStack;
+
+/**
+ * A z-slab of the volume flooded by the parallel watershed.
+ *
+ * Each voxel reached by the flooding has a key (cost, distance): the
+ * cost is the level at which it is flooded and the distance is the
+ * wave of that level in which it is reached. The slab keeps a copy of
+ * the slice below and above it (ghost slices) with the keys and labels
+ * computed by the neighbor slabs, and injects those ghost voxels in
+ * the flooding when their key is reached. Ghost voxels are flooded from
+ * the slab as well, so paths running along the slab border do not need
+ * a new round for every voxel. Re-flooding the slabs until
+ * their border slices no longer change gives the same labels as the
+ * immersion flooding of the whole volume.
+ */
+class WatershedSlab
+{
+	/** index of the lower and upper sides of the slab */
+	static final int LOWER = 0;
+	static final int UPPER = 1;
+	/** label of the ghost voxels being injected in the current wave */
+	static final int INJECTED = -4;
+
+	/** first slice of the slab */
+	final int zmin;
+	/** last slice of the slab (exclusive) */
+	final int zmax;
+	/** number of slices of the slab */
+	final int numSlices;
+	/** number of voxels of a slice */
+	final int planeSize;
+	/** volume width */
+	final int width;
+	/** volume height */
+	final int height;
+	/** labels of the slab, with the ghost slices at local z = 0 and z = numSlices + 1 (null when released) */
+	LabelBuffer labels;
+	/** input pixels of the local slices (null outside the volume or when not loaded) */
+	final Object[] pixels;
+
+	/** keys and labels of the ghost slices (null if there is no neighbor on that side) */
+	final float[][] ghostCost = new float[ 2 ][];
+	final int[][] ghostDistance = new int[ 2 ][];
+	final int[][] ghostLabel = new int[ 2 ][];
+	/** keys and labels of the first and last slices of the slab */
+	final float[][] edgeCost = new float[ 2 ][];
+	final int[][] edgeDistance = new int[ 2 ][];
+	final int[][] edgeLabel = new int[ 2 ][];
+
+	/** flag to flood the slab again */
+	boolean dirty = true;
+
+	/** keys of the voxels of the whole volume by slice, filled for the
+	 * slices of the slab when flooding (null to not record them) */
+	float[][] keyCost = null;
+	int[][] keyDistance = null;
+
+	/**
+	 * Create a slab of the volume without loading its pixels
+	 * (see {@link #loadPixels(ImageStack)})
+	 * @param zmin first slice of the slab
+	 * @param zmax last slice of the slab (exclusive)
+	 * @param width volume width
+	 * @param height volume height
+	 * @param depth volume depth
+	 */
+	WatershedSlab(
+			final int zmin,
+			final int zmax,
+			final int width,
+			final int height,
+			final int depth )
+	{
+		this.zmin = zmin;
+		this.zmax = zmax;
+		this.numSlices = zmax - zmin;
+		this.planeSize = width * height;
+		this.width = width;
+		this.height = height;
+		this.pixels = new Object[ numSlices + 2 ];
+
+		for( int side = LOWER; side <= UPPER; ++side )
+		{
+			edgeCost[ side ] = new float[ planeSize ];
+			edgeDistance[ side ] = new int[ planeSize ];
+			edgeLabel[ side ] = new int[ planeSize ];
+			if( ( side == LOWER && zmin > 0 ) || ( side == UPPER && zmax < depth ) )
+			{
+				ghostCost[ side ] = new float[ planeSize ];
+				ghostDistance[ side ] = new int[ planeSize ];
+				ghostLabel[ side ] = new int[ planeSize ];
+				Arrays.fill( ghostCost[ side ], Float.POSITIVE_INFINITY );
+			}
+		}
+	}
+
+	/**
+	 * Create a slab of the volume
+	 * @param zmin first slice of the slab
+	 * @param zmax last slice of the slab (exclusive)
+	 * @param width volume width
+	 * @param height volume height
+	 * @param volumePixels input pixels of all the slices of the volume
+	 */
+	WatershedSlab(
+			final int zmin,
+			final int zmax,
+			final int width,
+			final int height,
+			final Object[] volumePixels )
+	{
+		this( zmin, zmax, width, height, volumePixels.length );
+		for( int z = 0; z < pixels.length; ++z )
+		{
+			final int globalZ = zmin - 1 + z;
+			if( globalZ >= 0 && globalZ < volumePixels.length )
+				pixels[ z ] = volumePixels[ globalZ ];
+		}
+		this.labels = new LabelBuffer( width, height, numSlices + 2 );
+	}
+
+	/**
+	 * Read the input slices of the slab (and of its ghost slices)
+	 * from a stack, which can be virtual
+	 * @param inputStack input stack of the whole volume
+	 */
+	void loadPixels( final ImageStack inputStack )
+	{
+		for( int z = 0; z < pixels.length; ++z )
+		{
+			final int globalZ = zmin - 1 + z;
+			if( globalZ >= 0 && globalZ < inputStack.getSize() )
+				pixels[ z ] = inputStack.getPixels( globalZ + 1 );
+		}
+	}
+
+	/**
+	 * Release the input pixels and labels of the slab, keeping only
+	 * its border slices
+	 */
+	void release()
+	{
+		Arrays.fill( pixels, null );
+		labels = null;
+	}
+
+	/**
+	 * Local slice of one side of the slab
+	 * @param side LOWER or UPPER
+	 * @param ghost true for the ghost slice, false for the edge slice of the slab
+	 * @return local z-coordinate
+	 */
+	int getLocalSlice( final int side, final boolean ghost )
+	{
+		if( side == LOWER )
+			return ghost ? 0 : 1;
+		return ghost ? numSlices + 1 : numSlices;
+	}
+
+	/**
+	 * Copy the keys and labels of the edge slice of a neighbor slab
+	 * into a ghost slice of this slab
+	 * @param side side of this slab to update
+	 * @param neighbor neighbor slab on that side
+	 * @return true if the ghost slice changed
+	 */
+	boolean updateGhost( final int side, final WatershedSlab neighbor )
+	{
+		final int neighborSide = 1 - side;
+		final float[] cost = neighbor.edgeCost[ neighborSide ];
+		final int[] distance = neighbor.edgeDistance[ neighborSide ];
+		final int[] edgeLabels = neighbor.edgeLabel[ neighborSide ];
+
+		boolean changed = false;
+		for( int xy = 0; xy < planeSize; ++xy )
+		{
+			final int label = edgeLabels[ xy ];
+			final float c = label > 0 ? cost[ xy ] : Float.POSITIVE_INFINITY;
+			final int d = label > 0 ? distance[ xy ] : 0;
+			if( label != ghostLabel[ side ][ xy ] || c != ghostCost[ side ][ xy ]
+					|| d != ghostDistance[ side ][ xy ] )
+			{
+				ghostLabel[ side ][ xy ] = label;
+				ghostCost[ side ][ xy ] = c;
+				ghostDistance[ side ][ xy ] = d;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Set a ghost slice from recorded keys and labels of the volume
+	 * @param side side of this slab to set
+	 * @param label labels of the neighbor slice
+	 * @param cost flooding levels of the neighbor slice
+	 * @param distance flooding distances of the neighbor slice
+	 */
+	void setGhost( final int side, final int[] label, final float[] cost, final int[] distance )
+	{
+		for( int xy = 0; xy < planeSize; ++xy )
+		{
+			ghostLabel[ side ][ xy ] = label[ xy ] > 0 ? label[ xy ] : 0;
+			ghostCost[ side ][ xy ] = label[ xy ] > 0 ? cost[ xy ] : Float.POSITIVE_INFINITY;
+			ghostDistance[ side ][ xy ] = label[ xy ] > 0 ? distance[ xy ] : 0;
+		}
+	}
+
+	/**
+	 * Flood the slab from its seeds and its ghost slices
+	 *
+	 * @param seedStack seed stack of the whole volume
+	 * @param mask compiled mask of the whole volume (null for no mask)
+	 * @param connectivity voxel connectivity (6, 18 or 26)
+	 */
+	void flood(
+			final ImageStack seedStack,
+			final MaskRuns mask,
+			final int connectivity )
+	{
+		if( null == labels )
+			labels = new LabelBuffer( width, height, numSlices + 2 );
+		final int[] tabLabels = labels.getArray();
+		final VoxelValues values = VoxelValues.of( pixels );
+		final NeighborOffsets neighbors = new NeighborOffsets( connectivity, labels );
+		final int[] offsets = neighbors.padded;
+		final int[] sliceOffsets = neighbors.inSlice;
+		final int[] slices = neighbors.slice;
+		final int numNeighbors = neighbors.size();
+		final int INQUEUE = WatershedTransform3D.INQUEUE;
+
+		// initialize the labels of the slab and of its ghost slices from the seeds
+		for( int z = 0; z <= numSlices + 1; ++z )
+		{
+			if( ( z == 0 && null == ghostCost[ LOWER ] ) || ( z == numSlices + 1 && null == ghostCost[ UPPER ] ) )
+			{
+				// no neighbor slab on this side
+				Arrays.fill( tabLabels, labels.arrayIndex( 0, 0, z ), labels.arrayIndex( 0, 0, z + 1 ), LabelBuffer.BORDER );
+				continue;
+			}
+			WatershedTransform3D.initLabels( WatershedTransform3D.getLabelPixels( seedStack, zmin + z ), mask, zmin + z - 1, labels, z );
+		}
+		for( int side = LOWER; side <= UPPER; ++side )
+		{
+			Arrays.fill( edgeCost[ side ], Float.POSITIVE_INFINITY );
+			Arrays.fill( edgeDistance[ side ], 0 );
+		}
+		if( null != keyCost )
+			for( int z = zmin; z < zmax; ++z )
+			{
+				Arrays.fill( keyCost[ z ], Float.POSITIVE_INFINITY );
+				Arrays.fill( keyDistance[ z ], 0 );
+			}
+
+		// ghost voxels are flooded like the others, but also injected
+		// with the label of the neighbor slab when their key is reached
+		int numGhosts = 0;
+		long[] ghosts = new long[ 0 ];
+		for( int side = LOWER; side <= UPPER; ++side )
+		{
+			if( null == ghostCost[ side ] )
+				continue;
+			final int z = getLocalSlice( side, true );
+			ghosts = Arrays.copyOf( ghosts, ghosts.length + planeSize );
+			for( int y = 0; y < labels.height; ++y )
+			{
+				int index = labels.arrayIndex( 0, y, z );
+				for( int x = 0, xy = y * width; x < width; ++x, ++xy, ++index )
+				{
+					final float cost = ghostCost[ side ][ xy ];
+					if( tabLabels[ index ] == 0 && ghostLabel[ side ][ xy ] > 0
+							&& cost != Float.POSITIVE_INFINITY )
+						ghosts[ numGhosts++ ] = ( (long) VoxelHeap.sortableBits( cost ) << 32 )
+								| ( side * planeSize + xy );
+				}
+			}
+		}
+		Arrays.sort( ghosts, 0, numGhosts );
+
+		// queue the unlabeled neighbors of the seeds
+		final VoxelHeap heap = new VoxelHeap();
+		for( int z = 0; z <= numSlices + 1; ++z )
+			for( int y = 0; y < labels.height; ++y )
+			{
+				int index = labels.arrayIndex( 0, y, z );
+				for( int x = 0, xy = y * width; x < width; ++x, ++xy, ++index )
+				{
+					if( tabLabels[ index ] <= 0 )
+						continue;
+					if( z == 1 )
+						edgeCost[ LOWER ][ xy ] = Float.NEGATIVE_INFINITY;
+					if( z == numSlices )
+						edgeCost[ UPPER ][ xy ] = Float.NEGATIVE_INFINITY;
+					if( null != keyCost && z >= 1 && z <= numSlices )
+						keyCost[ zmin + z - 1 ][ xy ] = Float.NEGATIVE_INFINITY;
+					for( int m = 0; m < numNeighbors; ++m )
+					{
+						final int neighbor = index + offsets[ m ];
+						if( tabLabels[ neighbor ] == 0 )
+						{
+							heap.add( neighbor, values.get( z + slices[ m ], xy + sliceOffsets[ m ] ) );
+							tabLabels[ neighbor ] = INQUEUE;
+						}
+					}
+				}
+			}
+
+		final IntFifo fifo = new IntFifo();
+		int[] waveVoxels = new int[ 1024 ];
+		int[] waveLabels = new int[ 1024 ];
+		long[] levelGhosts = new long[ 1024 ];
+		int[] injected = new int[ 1024 ];
+		int g = 0;
+
+		while( heap.isEmpty() == false || g < numGhosts )
+		{
+			// next level to flood
+			float level = heap.isEmpty() ? Float.POSITIVE_INFINITY : heap.peekValue();
+			if( g < numGhosts )
+				level = Math.min( level, VoxelHeap.fromSortableBits( (int) ( ghosts[ g ] >> 32 ) ) );
+
+			// first wave: voxels of the level touching lower labeled voxels
+			while( heap.isEmpty() == false && heap.peekValue() == level )
+				fifo.add( (int) heap.poll() );
+
+			// ghost voxels of the level, sorted by distance
+			int numLevelGhosts = 0;
+			while( g < numGhosts && VoxelHeap.fromSortableBits( (int) ( ghosts[ g ] >> 32 ) ) == level )
+			{
+				final int position = (int) ghosts[ g++ ];
+				if( numLevelGhosts == levelGhosts.length )
+					levelGhosts = Arrays.copyOf( levelGhosts, levelGhosts.length << 1 );
+				levelGhosts[ numLevelGhosts++ ] =
+						( (long) ghostDistance[ position / planeSize ][ position % planeSize ] << 32 ) | position;
+			}
+			Arrays.sort( levelGhosts, 0, numLevelGhosts );
+
+			int distance = 1;
+			int lg = 0;
+			while( fifo.isEmpty() == false || lg < numLevelGhosts )
+			{
+				if( fifo.isEmpty() )
+					distance = Math.max( distance, (int) ( levelGhosts[ lg ] >> 32 ) );
+
+				// ghost voxels injected in this wave (unless flooded before)
+				int numInjected = 0;
+				while( lg < numLevelGhosts && (int) ( levelGhosts[ lg ] >> 32 ) <= distance )
+				{
+					final int position = (int) levelGhosts[ lg++ ];
+					final int side = position / planeSize;
+					final int xy = position % planeSize;
+					final int index = labels.arrayIndex( xy % width, xy / width, getLocalSlice( side, true ) );
+					if( tabLabels[ index ] > 0 )
+						continue;
+					tabLabels[ index ] = INJECTED;
+					if( numInjected == injected.length )
+						injected = Arrays.copyOf( injected, injected.length << 1 );
+					injected[ numInjected++ ] = position;
+				}
+
+				final int waveSize = fifo.size();
+				if( waveLabels.length < waveSize )
+				{
+					waveVoxels = new int[ waveSize ];
+					waveLabels = new int[ waveSize ];
+				}
+
+				int numWaveVoxels = 0;
+				for( int w = 0; w < waveSize; ++w )
+				{
+					final int index = fifo.poll();
+					// skip the ghost voxels already injected
+					if( tabLabels[ index ] != INQUEUE )
+						continue;
+					final int k = labels.getSlice( index );
+					final int xy = labels.getSliceOffset( index );
+
+					float voxelValue = Float.MAX_VALUE;
+					int voxelLabel = 0;
+
+					for( int m = 0; m < numNeighbors; ++m )
+					{
+						final int neighbor = index + offsets[ m ];
+						final int label = tabLabels[ neighbor ];
+						if( label == 0 )
+						{
+							final float value = values.get( k + slices[ m ], xy + sliceOffsets[ m ] );
+							if( value <= level )
+								fifo.add( neighbor );
+							else
+								heap.add( neighbor, value );
+							tabLabels[ neighbor ] = INQUEUE;
+						}
+						else if( label > 0 )
+						{
+							// assign label of smallest neighbor
+							final float value = values.get( k + slices[ m ], xy + sliceOffsets[ m ] );
+							if( value <= voxelValue )
+							{
+								voxelLabel = label;
+								voxelValue = value;
+							}
+						}
+					}
+					waveVoxels[ numWaveVoxels ] = index;
+					waveLabels[ numWaveVoxels++ ] = voxelLabel;
+
+					if( k == 1 )
+					{
+						edgeCost[ LOWER ][ xy ] = level;
+						edgeDistance[ LOWER ][ xy ] = distance;
+					}
+					if( k == numSlices )
+					{
+						edgeCost[ UPPER ][ xy ] = level;
+						edgeDistance[ UPPER ][ xy ] = distance;
+					}
+					if( null != keyCost && k >= 1 && k <= numSlices )
+					{
+						keyCost[ zmin + k - 1 ][ xy ] = level;
+						keyDistance[ zmin + k - 1 ][ xy ] = distance;
+					}
+				}
+
+				for( int w = 0; w < numWaveVoxels; ++w )
+					tabLabels[ waveVoxels[ w ] ] = waveLabels[ w ];
+
+				for( int i = 0; i < numInjected; ++i )
+				{
+					final int side = injected[ i ] / planeSize;
+					final int xy = injected[ i ] % planeSize;
+					final int k = getLocalSlice( side, true );
+					final int index = labels.arrayIndex( xy % width, xy / width, k );
+					tabLabels[ index ] = ghostLabel[ side ][ xy ];
+
+					for( int m = 0; m < numNeighbors; ++m )
+					{
+						final int neighbor = index + offsets[ m ];
+						if( tabLabels[ neighbor ] == 0 )
+						{
+							final float value = values.get( k + slices[ m ], xy + sliceOffsets[ m ] );
+							if( value <= level )
+								fifo.add( neighbor );
+							else
+								heap.add( neighbor, value );
+							tabLabels[ neighbor ] = INQUEUE;
+						}
+					}
+				}
+
+				distance++;
+			}
+		}
+
+		// labels of the border slices, for the neighbor slabs
+		for( int side = LOWER; side <= UPPER; ++side )
+		{
+			final int z = getLocalSlice( side, false );
+			for( int y = 0; y < height; ++y )
+			{
+				int index = labels.arrayIndex( 0, y, z );
+				for( int x = 0, xy = y * width; x < width; ++x, ++xy, ++index )
+					edgeLabel[ side ][ xy ] = tabLabels[ index ] > 0 ? tabLabels[ index ] : 0;
+			}
+		}
+
+		dirty = false;
+	}
+}
@@ -21,15 +21,18 @@ package inra.watershed.process;
  */
 
 
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.PriorityQueue;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.Prefs;
+import ij.VirtualStack;
+import ij.io.FileSaver;
 import ij.process.ImageProcessor;
 import ij.util.ThreadUtil;
 
@@ -46,6 +49,41 @@ public class WatershedTransform3D
 	
 	static final int INQUEUE = -3;
 	
+	/** voxel connectivity used for flooding */
+	int connectivity = 26;
+	/** number of threads (0 for the ImageJ threads) */
+	int numThreads = 0;
+	/** file to map the labels onto (null to keep them on the heap) */
+	File labelFile = null;
+	/** maximum quantization error of the last quantized flooding */
+	double quantizationError = 0;
+	/** mask compiled into runs of foreground voxels (null until needed) */
+	MaskRuns maskRuns = null;
+	/** listener of the status and progress of the flooding */
+	ProgressListener progressListener = ImageJProgressListener.getDefault();
+	/** buffers to reuse in {@link #apply()} (null to allocate new ones) */
+	WatershedWorkspace workspace = null;
+	/** flag to build the region adjacency graph of the domains */
+	boolean buildAdjacencyGraph = false;
+	/** region adjacency graph of the last flooding (null if not built) */
+	RegionAdjacencyGraph adjacencyGraph = null;
+	/** flag to measure the domains while writing the labels */
+	boolean computeStatistics = false;
+	/** statistics of the domains of the last flooding (null if not computed) */
+	LabelStatistics statistics = null;
+	
+	/** labels and keys (flooding level and distance) of each voxel, by
+	 * slice, kept by {@link #applyIncremental()} (null otherwise) */
+	int[][] floodLabels = null;
+	float[][] floodCost = null;
+	int[][] floodDistance = null;
+	/** label pixels of the last incremental flooding */
+	Object[] floodPixels = null;
+	/** largest seed label of the incremental flooding */
+	int floodMaxLabel = 0;
+	/** seed voxels changed since the last incremental flooding (x, y, z) */
+	final ArrayList<int[]> seedEdits = new ArrayList<int[]>();
+	
 	public WatershedTransform3D(
 			final ImagePlus input,
 			final ImagePlus seed,
@@ -57,461 +95,2132 @@ public class WatershedTransform3D
 	}
 	
 	/**
-	 * Apply watershed transform on inputImage, using the seeds 
-	 * from seedImage and the mask of maskImage.
-	 * @return watershed domains image
+	 * Set the voxel connectivity used for flooding
+	 * @param connectivity 6, 18 or 26
 	 */
-	public ImagePlus apply()
+	public void setConnectivity( final int connectivity )
 	{
-		final ImageStack inputStack = inputImage.getStack();
-	    final int size1 = inputStack.getWidth();
-	    final int size2 = inputStack.getHeight();
-	    final int size3 = inputStack.getSize();
-	    
-		// list of original voxels values and corresponding coordinates
-		LinkedList<VoxelRecord> voxelList = null;
-		
-		final int[][][] tabLabels = new int[ size1 ][ size2 ][ size3 ]; 
-		
-		// Make list of voxels and sort it in ascending order
-		IJ.showStatus( "Extracting voxel values..." );
-		IJ.log("  Extracting voxel values..." );
-		final long t0 = System.currentTimeMillis();
-		
-		voxelList = extractVoxelValues( inputStack, seedImage.getStack(), tabLabels );
-						
-		final long t1 = System.currentTimeMillis();		
-		IJ.log("  Extraction took " + (t1-t0) + " ms.");
-		IJ.log("  Sorting voxels by value..." );
-		IJ.showStatus("Sorting voxels by value...");
-		Collections.sort( voxelList );
-		final long t2 = System.currentTimeMillis();
-		IJ.log("  Sorting took " + (t2-t1) + " ms.");
-			    
-		// Watershed
-	    boolean found = false;	    
-
-	    final long start = System.currentTimeMillis();
+		NeighborOffsets.getShifts( connectivity );
+		this.connectivity = connectivity;
+	}
+	
+	/**
+	 * @return voxel connectivity used for flooding (6, 18 or 26)
+	 */
+	public int getConnectivity()
+	{
+		return connectivity;
+	}
 
-	    boolean change = true;
-	    while ( voxelList.isEmpty() == false && change )
-	    {
-	    	change = false;
-			final int count = voxelList.size();
-	      	IJ.log( "  Flooding " + count + " voxels..." );
-	      	IJ.showStatus("Flooding " + count + " voxels...");
+	/**
+	 * Set the number of threads used by the flooding and the label writing (the ImageJ threads,
+	 * {@link Prefs#getThreads()}, by default)
+	 * @param numThreads number of threads (0 for the ImageJ threads)
+	 */
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 0, numThreads );
+	}
+	
+	/**
+	 * @return number of threads used by the flooding
+	 */
+	public int getNumThreads()
+	{
+		return numThreads > 0 ? numThreads : Prefs.getThreads();
+	}
 
-			for (int p = 0; p < count; ++p)
-	      	{
-				IJ.showProgress(p, count);
-	       		final VoxelRecord voxelRecord = voxelList.removeFirst();
-	       		final int[] coord = voxelRecord.getCoordinates();
-	       		final int i = coord[0];
-	       		final int j = coord[1];
-	       		final int k = coord[2];
-	       		
-	       		// If the voxel is unlabeled
-				if( tabLabels[ i ][ j ][ k ] == 0 )
-	       		{
-			       	found = false;
-			       	double voxelValue = voxelRecord.value;
-			       	// Look in neighborhood for labeled voxels with
-			       	// smaller or equal original value
-			       	for (int u = i-1; u <= i+1; ++u) 
-			        	for (int v = j-1; v <= j+1; ++v) 
-					        for (int w = k-1; w <= k+1; ++w) 
-	          				{
-								if ( u >= 0 && u < size1 && v >= 0 && v < size2 && w >= 0 && w < size3 )
-								{
-						            if ( tabLabels[u][v][w] != 0 && inputStack.getVoxel(u,v,w) <= voxelValue )
-	    				    	    {
-										tabLabels[i][j][k] = tabLabels[u][v][w];
-		              					voxelValue = inputStack.getVoxel(u,v,w);
-										found = true;
-	        					    }
-								}
-	          				}
+	/**
+	 * Set the file to store the labels in during the flooding of
+	 * {@link #applyWithPriorityQueue()} and {@link #applyQuantized(int)}.
+	 * The labels are then kept in a memory-mapped file instead of the 
+	 * Java heap, the file holds the padded label volume once flooded 
+	 * (see {@link MappedLabelBuffer}), and the result image reads its
+	 * slices from that file (see {@link MappedLabelStack}). Without 
+	 * label file, the labels are mapped onto a temporary file when 
+	 * they would take more than half of the free heap.
+	 * @param labelFile label file (null to keep the labels on the heap)
+	 */
+	public void setLabelFile( final File labelFile )
+	{
+		this.labelFile = labelFile;
+	}
 
-					if ( found == false )    
-						voxelList.addLast( voxelRecord );
-					else
-						change = true;
-	      		}
-	        }
-		}
+	/**
+	 * @return file the labels are stored in (null if they are kept on the heap)
+	 */
+	public File getLabelFile()
+	{
+		return labelFile;
+	}
 
-		final long end = System.currentTimeMillis();
-		IJ.log("  Flooding took: " + (end-start) + " ms");
-		
-		// Create result label image
-		ImageStack labelStack = seedImage.duplicate().getStack();
-	    
-	    for (int i = 0; i < size1; ++i)
-	      for (int j = 0; j < size2; ++j)
-	        for (int k = 0; k < size3; ++k)
-	            labelStack.setVoxel( i, j, k, tabLabels[i][j][k] );
-	    final ImagePlus ws = new ImagePlus( "watershed", labelStack );
-	    ws.setCalibration( inputImage.getCalibration() );
-	    return ws;
+	/**
+	 * Set the listener of the status and progress of the flooding
+	 * (the ImageJ status bar by default, nothing in headless mode)
+	 * @param progressListener progress listener
+	 */
+	public void setProgressListener( final ProgressListener progressListener )
+	{
+		this.progressListener = null != progressListener ? progressListener : ProgressListener.NONE;
 	}
 
+	/**
+	 * @return listener of the status and progress of the flooding
+	 */
+	public ProgressListener getProgressListener()
+	{
+		return progressListener;
+	}
+	
+	/**
+	 * Set whether to build the region adjacency graph of the watershed
+	 * domains (see {@link RegionAdjacencyGraph}) after flooding with 
+	 * {@link #apply()}, {@link #applyWithPriorityQueue()}, 
+	 * {@link #applyLevelSynchronous()} or {@link #applyQuantized(int)}
+	 * @param buildAdjacencyGraph true to build the graph
+	 */
+	public void setBuildAdjacencyGraph( final boolean buildAdjacencyGraph )
+	{
+		this.buildAdjacencyGraph = buildAdjacencyGraph;
+	}
+	
+	/**
+	 * @return region adjacency graph of the last flooding (null if not built)
+	 */
+	public RegionAdjacencyGraph getAdjacencyGraph()
+	{
+		return adjacencyGraph;
+	}
+	
+	/**
+	 * Measure each domain (voxel count, bounding box, centroid and input
+	 * value range and mean) while the labels are written to the output
+	 * image, instead of visiting the label image again afterwards. The
+	 * threads share a single table of about 76 bytes per label (see
+	 * {@link LabelStatistics}). Not available with the streaming and 
+	 * incremental floodings.
+	 * @param computeStatistics true to measure the domains
+	 */
+	public void setComputeStatistics( final boolean computeStatistics )
+	{
+		this.computeStatistics = computeStatistics;
+	}
+	
+	/**
+	 * @return statistics of the domains of the last flooding (null if
+	 * not computed)
+	 */
+	public LabelStatistics getStatistics()
+	{
+		return statistics;
+	}
+	
+	/**
+	 * Set the workspace to take the label, sorting and output buffers 
+	 * of {@link #apply()} from. The output image of {@link #apply()} is
+	 * then overwritten by the next run with the same workspace; the 
+	 * other flooding methods allocate their own output image.
+	 * @param workspace workspace of the size of the input (null to allocate new buffers)
+	 */
+	public void setWorkspace( final WatershedWorkspace workspace )
+	{
+		this.workspace = workspace;
+	}
 	
 	/**
 	 * Apply watershed transform on inputImage, using the seeds 
-	 * from seedImage and the mask of maskImage.
+	 * from seedImage and the mask of maskImage. The voxels are
+	 * sorted by value (parallel radix sort) and flooded level by 
+	 * level in a single pass (immersion), propagating the labels 
+	 * inside each level in breadth-first order. The labels are kept
+	 * in a single array, so the volume must have less than 2^31 voxels
+	 * (see {@link #applyWithPriorityQueue()} for larger ones).
 	 * @return watershed domains image
 	 */
-	public ImagePlus applyWithPriorityQueue()
+	public ImagePlus apply()
 	{
 		final ImageStack inputStack = inputImage.getStack();
 	    final int size1 = inputStack.getWidth();
 	    final int size2 = inputStack.getHeight();
 	    final int size3 = inputStack.getSize();
-	    
-		// list of original voxels values and corresponding coordinates
-		PriorityQueue<VoxelRecord> voxelList = null;
 		
-		final int[][][] tabLabels = new int[ size1 ][ size2 ][ size3 ]; 
+		final LabelBuffer labels = null != workspace ? 
+				workspace.getLabels() : new LabelBuffer( size1, size2, size3 );
 		
 		// Make list of voxels and sort it in ascending order
-		IJ.showStatus( "Extracting voxel values..." );
+		progressListener.setStatus( "Extracting voxel values..." );
 		IJ.log("  Extracting voxel values..." );
 		final long t0 = System.currentTimeMillis();
 		
-		voxelList = extractVoxelValuesPriorityQueue( inputStack, seedImage.getStack(), tabLabels );
+		initLabels( seedImage.getStack(), labels );
+		
+		final int bitDepth = inputImage.getBitDepth();
+		final int keyBits = bitDepth == 8 || bitDepth == 16 ? bitDepth : 32;
+		final int[] sliceStarts = getSliceStarts( size1, size2, size3 );
+		final int count = sliceStarts[ size3 ];
+		if( null != workspace )
+			workspace.ensureVoxelCapacity( count );
+		int[] keys = null != workspace ? workspace.keys : new int[ count ];
+		final int[] sortedVoxels = null != workspace ? workspace.voxels : new int[ count ];
+		extractVoxelKeys( inputStack, labels, sliceStarts, keyBits, keys, sortedVoxels );
 						
 		final long t1 = System.currentTimeMillis();		
 		IJ.log("  Extraction took " + (t1-t0) + " ms.");
-					    
+		IJ.log("  Sorting voxels by value..." );
+		progressListener.setStatus( "Sorting voxels by value..." );
+		
+		if( null != workspace )
+			VoxelSorter.sort( keys, sortedVoxels, count, keyBits, getNumThreads(), 
+					workspace.sortKeys, workspace.sortVoxels, workspace.getSortCounts( getNumThreads() ) );
+		else
+			VoxelSorter.sort( keys, sortedVoxels, keyBits, getNumThreads() );
+		
+		final float[] sortedValues = null != workspace ? workspace.values : new float[ count ];
+		for( int n = 0; n < count; ++n )
+			sortedValues[ n ] = keyBits < 32 ? keys[ n ] : VoxelSorter.keyToFloat( keys[ n ] );
+		keys = null;
+		
+		final long t2 = System.currentTimeMillis();
+		IJ.log("  Sorting took " + (t2-t1) + " ms.");
+			    
 		// Watershed
 	    final long start = System.currentTimeMillis();
-
-	    final int count = voxelList.size();
-	    IJ.log( "  Flooding from " + count + " voxels..." );
-      	IJ.showStatus("Flooding from " + count + " voxels...");
+	    IJ.log( "  Flooding " + count + " voxels..." );
+	    progressListener.setStatus( "Flooding " + count + " voxels..." );
 	    
-      	final int numVoxels = size1 * size2 * size3;
-      	
-      	// with mask
-      	if ( null != maskImage )
-      	{
-      		final ImageStack maskStack = maskImage.getStack();
-      		
-      		while ( voxelList.isEmpty() == false )
-      		{
-      			IJ.showProgress( numVoxels-voxelList.size(), numVoxels );
-
-      			final VoxelRecord voxelRecord = voxelList.poll();
-      			final int[] coord = voxelRecord.getCoordinates();
-      			final int i = coord[0];
-      			final int j = coord[1];
-      			final int k = coord[2];
-
-
-      			double voxelValue = voxelRecord.value; //inputStack.getVoxel( i, j, k );
-
-      			// Look in neighborhood 
-      			for (int u = i-1; u <= i+1; ++u) 
-      				for (int v = j-1; v <= j+1; ++v) 
-      					for (int w = k-1; w <= k+1; ++w) 
-      					{
-      						if ( u >= 0 && u < size1 && v >= 0 && v < size2 && w >= 0 && w < size3 )
-      						{
-      							// Unlabeled neighbors go into the queue if they are not there yet 
-      							if ( tabLabels[u][v][w] == 0 && maskStack.getVoxel(u, v, w) > 0)
-      							{
-      								voxelList.add( new VoxelRecord( u, v, w, inputStack.getVoxel(u,v,w) ));
-      								tabLabels[u][v][w] = INQUEUE;
-      							}
-      							else if ( tabLabels[u][v][w] > 0 && inputStack.getVoxel(u,v,w) <= voxelValue )
-      							{
-      								// assign label of smallest neighbor
-      								tabLabels[i][j][k] = tabLabels[u][v][w];
-      								voxelValue = inputStack.getVoxel(u,v,w);
-      							}
-      						}
-      					}    
-
-      		}
-      	}
-      	else // without mask
-      	{
-      		while ( voxelList.isEmpty() == false )
-      		{
-      			IJ.showProgress( numVoxels-voxelList.size(), numVoxels );
-
-      			final VoxelRecord voxelRecord = voxelList.poll();
-      			final int[] coord = voxelRecord.getCoordinates();
-      			final int i = coord[0];
-      			final int j = coord[1];
-      			final int k = coord[2];
-
-
-      			double voxelValue = voxelRecord.value; //inputStack.getVoxel( i, j, k );
-
-      			// Look in neighborhood 
-      			for (int u = i-1; u <= i+1; ++u) 
-      				for (int v = j-1; v <= j+1; ++v) 
-      					for (int w = k-1; w <= k+1; ++w) 
-      					{
-      						if ( u >= 0 && u < size1 && v >= 0 && v < size2 && w >= 0 && w < size3 )
-      						{
-      							// Unlabeled neighbors go into the queue if they are not there yet 
-      							if ( tabLabels[u][v][w] == 0 )
-      							{
-      								voxelList.add( new VoxelRecord( u, v, w, inputStack.getVoxel(u,v,w) ));
-      								tabLabels[u][v][w] = INQUEUE;
-      							}
-      							else if ( tabLabels[u][v][w] > 0 && inputStack.getVoxel(u,v,w) <= voxelValue )
-      							{
-      								// assign label of smallest neighbor
-      								tabLabels[i][j][k] = tabLabels[u][v][w];
-      								voxelValue = inputStack.getVoxel(u,v,w);
-      							}
-      						}
-      					}    
-
-      		}
-      	}
+	    floodSortedVoxels( inputStack, labels, sortedVoxels, sortedValues, count );
 
 		final long end = System.currentTimeMillis();
 		IJ.log("  Flooding took: " + (end-start) + " ms");
 		
-		// Create result label image
-		ImageStack labelStack = seedImage.duplicate().getStack();
-	    
-	    for (int i = 0; i < size1; ++i)
-	      for (int j = 0; j < size2; ++j)
-	        for (int k = 0; k < size3; ++k)
-	            labelStack.setVoxel( i, j, k, tabLabels[i][j][k] );
-	    final ImagePlus ws = new ImagePlus( "watershed", labelStack );
-	    ws.setCalibration( inputImage.getCalibration() );
-	    return ws;
+		return createLabelImage( labels, workspace );
+	}
+
+	/**
+	 * Position of the first voxel of each slice in the list of the
+	 * voxels to flood (all the voxels, or only the ones of the mask)
+	 * 
+	 * @param width image width
+	 * @param height image height
+	 * @param depth number of slices
+	 * @return first position of each slice, and number of voxels at the end
+	 */
+	int[] getSliceStarts( 
+			final int width, 
+			final int height, 
+			final int depth )
+	{
+		final MaskRuns mask = getMaskRuns();
+		final int[] sliceStarts = new int[ depth + 1 ];
+		for( int z = 0; z < depth; ++z )
+		{
+			int count = width * height;
+			if( null != mask )
+			{
+				count = 0;
+				for( int r = mask.getFirstRun( 0, z ); r < mask.getLastRun( height - 1, z ); ++r )
+					count += mask.getEnd( r ) - mask.getStart( r );
+			}
+			sliceStarts[ z + 1 ] = sliceStarts[ z ] + count;
+		}
+		return sliceStarts;
 	}
 	
 	/**
-	 * Extract voxel values from input and seed images
+	 * Extract the sort keys and padded indices of the voxels to flood,
+	 * in increasing order of index (multi-threaded, one slice at a time)
 	 * 
 	 * @param inputStack input stack
-	 * @param seedStack seed stack
-	 * @param tabLabels output label array
-	 * @return priority queue of voxels neighboring the seeds
+	 * @param labels label buffer (for the voxel indices)
+	 * @param sliceStarts position of the first voxel of each slice
+	 * @param keyBits 8 or 16 to use the gray levels as keys, 32 for float keys
+	 * @param keys output keys (see {@link VoxelSorter})
+	 * @param voxels output padded indices
 	 */
-	public PriorityQueue<VoxelRecord> extractVoxelValuesPriorityQueue(
+	void extractVoxelKeys(
 			final ImageStack inputStack,
-			final ImageStack seedStack,
-			final int[][][] tabLabels) 
+			final LabelBuffer labels,
+			final int[] sliceStarts,
+			final int keyBits,
+			final int[] keys,
+			final int[] voxels )
 	{
+		final MaskRuns mask = getMaskRuns();
+		final int width = labels.width;
+		final VoxelValues values = VoxelValues.of( inputStack );
+		final ProgressTracker progress = new ProgressTracker( progressListener, labels.depth );
 		
-		final int size1 = inputStack.getWidth();
-	    final int size2 = inputStack.getHeight();
-	    final int size3 = inputStack.getSize();
-		
-	            
-        final PriorityQueue<VoxelRecord> voxelList = new PriorityQueue<VoxelRecord>();
-	    
-		if( null != maskImage ) // apply mask
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = ThreadUtil.createThreadArray( Math.min( getNumThreads(), labels.depth ) );
+		for (int ithread = 0; ithread < threads.length; ithread++) 
 		{
-			final ImageStack mask = maskImage.getImageStack();
-						
-			for (int z = 0; z < size3; ++z)	
-			{
-				IJ.showProgress( z+1, size3 );
-
-				final ImageProcessor ipMask = mask.getProcessor( z+1 );
-				final ImageProcessor ipSeed = seedStack.getProcessor( z+1 );
-
-				for( int x = 0; x < size1; ++x )
-					for( int y = 0; y < size2; ++y )
-						if( ipMask.getf( x, y ) > 0 )
+			threads[ithread] = new Thread() {
+				public void run() {
+					for (int z = ai.getAndIncrement(); z < labels.depth; z = ai.getAndIncrement())
+					{
+						int n = sliceStarts[ z ];
+						for( int y = 0; y < labels.height; ++y )
 						{
-							int label = (int) ipSeed.getf( x, y );
-							if( label > 0 )
+							final int firstRun = null != mask ? mask.getFirstRun( y, z ) : 0;
+							final int lastRun = null != mask ? mask.getLastRun( y, z ) : 1;
+							for( int r = firstRun; r < lastRun; ++r )
 							{
-								// add unlabeled neighbors to priority queue
-								for (int u = x-1; u <= x+1; ++u) 
-									for (int v = y-1; v <= y+1; ++v) 
-										for (int w = z-1; w <= z+1; ++w) 
-										{
-											if ( u >= 0 && u < size1 && 
-													v >= 0 && v < size2 && 
-													w >= 0 && w < size3 &&
-													(int) seedStack.getVoxel( u, v, w ) == 0 &&
-													tabLabels[ u ][ v ][ w ] != INQUEUE )															 
-											{
-												voxelList.add( new VoxelRecord( u, v, w, inputStack.getVoxel( u, v, w ) ) );
-												tabLabels[ u ][ v ][ w ] = INQUEUE;
-											}
-
-										}
-								tabLabels[x][y][z] = label;
+								final int xmin = null != mask ? mask.getStart( r ) : 0;
+								final int xmax = null != mask ? mask.getEnd( r ) : width;
+								int index = labels.arrayIndex( xmin, y, z );
+								for( int x = xmin, xy = xmin + y * width; x < xmax; ++x, ++xy, ++index, ++n )
+								{
+									final float value = values.get( z, xy );
+									keys[ n ] = keyBits < 32 ? (int) value : VoxelSorter.floatKey( value );
+									voxels[ n ] = index;
+								}
 							}
 						}
-			}
-		}							
-		else // without mask
-		{
-			for (int z = 0; z < size3; ++z)	
-			{
-				IJ.showProgress( z+1, size3 );
-
-				final ImageProcessor ipSeed = seedStack.getProcessor( z+1 );
-
-				for( int x = 0; x < size1; ++x )
-					for( int y = 0; y < size2; ++y )
-					{
-						int label = (int) ipSeed.getf( x, y );
-						if( label > 0 )
-						{
-							// add unlabeled neighbors to priority queue
-							for (int u = x-1; u <= x+1; ++u) 
-								for (int v = y-1; v <= y+1; ++v) 
-									for (int w = z-1; w <= z+1; ++w) 
-									{
-										if ( u >= 0 && u < size1 && 
-												v >= 0 && v < size2 && 
-												w >= 0 && w < size3 &&
-												(int) seedStack.getVoxel( u, v, w ) == 0 &&
-												tabLabels[ u ][ v ][ w ] != INQUEUE )															 
-										{
-											voxelList.add( new VoxelRecord( u, v, w, inputStack.getVoxel( u, v, w ) ) );
-											tabLabels[ u ][ v ][ w ] = INQUEUE;
-										}
-
-									}
-							tabLabels[x][y][z] = label;
-						}
+						progress.add( 1 );
 					}
-			}
-
+				}
+			};
 		}
-
-
-		IJ.showProgress(1.0);
-
-		return voxelList;
+		ThreadUtil.startAndJoin(threads);
+		progress.finish();
 	}
 
 	/**
-	 * Extract voxel values from input and seed images
+	 * Immersion flooding of a list of voxels sorted by value. For each
+	 * gray level, the voxels of that level touching an already labeled
+	 * voxel are queued, and labels are then propagated in FIFO order
+	 * through the unlabeled voxels of the same or lower level. Every 
+	 * voxel is queued at most once.
+	 * 
+	 * The propagation runs in waves (voxels at the same distance from
+	 * the lower levels), and the labels of a wave are only written once
+	 * the whole wave has been visited, so the label of each voxel does
+	 * not depend on the order of the voxels within the level.
 	 * 
 	 * @param inputStack input stack
-	 * @param seedStack seed stack
-	 * @param tabLabels output label array
-	 * @return list of input voxel values
+	 * @param labels label buffer initialized with the seeds
+	 * @param sortedVoxels padded indices of the voxels, in ascending order of value
+	 * @param sortedValues values of the sorted voxels
+	 * @param count number of voxels to flood
 	 */
-	public LinkedList<VoxelRecord> extractVoxelValues(
+	void floodSortedVoxels(
 			final ImageStack inputStack,
-			final ImageStack seedStack,
-			final int[][][] tabLabels) 
+			final LabelBuffer labels,
+			final int[] sortedVoxels,
+			final float[] sortedValues,
+			final int count )
 	{
+		final VoxelValues values = VoxelValues.of( inputStack );
+		final int[] tabLabels = labels.getArray();
+		final NeighborOffsets neighbors = new NeighborOffsets( connectivity, labels );
+		final int[] offsets = neighbors.padded;
+		final int[] sliceOffsets = neighbors.inSlice;
+		final int[] slices = neighbors.slice;
+		final int numNeighbors = neighbors.size();
 		
-		final int size1 = inputStack.getWidth();
-	    final int size2 = inputStack.getHeight();
-	    final int size3 = inputStack.getSize();
+		final IntFifo fifo = null != workspace ? workspace.fifo : new IntFifo();
+		fifo.clear();
+		int[] waveVoxels = null != workspace ? workspace.waveVoxels : new int[ 1024 ];
+		int[] waveLabels = null != workspace ? workspace.waveLabels : new int[ 1024 ];
 		
-	    final AtomicInteger ai = new AtomicInteger(0);
-        final int n_cpus = Prefs.getThreads();
-        
-        final int dec = (int) Math.ceil((double) size3 / (double) n_cpus);
-        
-        Thread[] threads = ThreadUtil.createThreadArray( n_cpus );
-        
-        final LinkedList<VoxelRecord>[] lists = new LinkedList[ n_cpus ];
-	    
-		if( null != maskImage )
+		final ProgressTracker progress = new ProgressTracker( progressListener, count );
+		int nextProgress = 0;
+		
+		int levelStart = 0;
+		while( levelStart < count )
 		{
-			final ImageStack mask = maskImage.getImageStack();
+			if( levelStart >= nextProgress )
+			{
+				progress.set( levelStart );
+				nextProgress = levelStart + ProgressTracker.BATCH_SIZE;
+			}
 			
-			for (int ithread = 0; ithread < threads.length; ithread++) 
+			// find the voxels of the current level
+			final float level = sortedValues[ levelStart ];
+			int levelEnd = levelStart + 1;
+			while( levelEnd < count && sortedValues[ levelEnd ] == level )
+				levelEnd++;
+			
+			// queue the voxels of the level touching a labeled voxel
+			for( int p = levelStart; p < levelEnd; ++p )
 			{
-				lists[ ithread ] = new LinkedList<VoxelRecord>();
-				
-				threads[ithread] = new Thread() {
-					public void run() {
-						for (int k = ai.getAndIncrement(); k < n_cpus; k = ai.getAndIncrement()) 
+				final int index = sortedVoxels[ p ];
+				if( tabLabels[ index ] == 0 )
+					for( int m = 0; m < numNeighbors; ++m )
+						if( tabLabels[ index + offsets[ m ] ] > 0 )
 						{
-							int zmin = dec * k;
-							int zmax = dec * ( k + 1 );
-							if (zmin<0)
-								zmin = 0;
-							if (zmax > size3)
-								zmax = size3;
-
-							for (int z = zmin; z < zmax; ++z)	
-							{
-								if (zmin==0) 
-									IJ.showProgress(z+1, zmax);
-
-								final ImageProcessor ipMask = mask.getProcessor( z+1 );
-								final ImageProcessor ipInput = inputStack.getProcessor( z+1 );
-								final ImageProcessor ipSeed = seedStack.getProcessor( z+1 );
-
-								for( int x = 0; x < size1; ++x )
-									for( int y = 0; y < size2; ++y )
-										if( ipMask.getf( x, y ) > 0 )
-										{
-											lists[k].addLast( new VoxelRecord( x, y, z, ipInput.getf( x, y )));
-											tabLabels[x][y][z] = (int) ipSeed.getf( x, y );
-										}
-							}
-
+							tabLabels[ index ] = INQUEUE;
+							fifo.add( index );
+							break;
 						}
-					}
-				};
 			}
-			ThreadUtil.startAndJoin(threads);			
-		}
-		else
-		{
-			for (int ithread = 0; ithread < threads.length; ithread++) 
+			
+			// propagate the labels inside the level, wave by wave
+			while( fifo.isEmpty() == false )
 			{
-				lists[ ithread ] = new LinkedList<VoxelRecord>();
+				final int waveSize = fifo.size();
+				if( waveLabels.length < waveSize )
+				{
+					waveVoxels = new int[ waveSize ];
+					waveLabels = new int[ waveSize ];
+					if( null != workspace )
+					{
+						workspace.waveVoxels = waveVoxels;
+						workspace.waveLabels = waveLabels;
+					}
+				}
 				
-				threads[ithread] = new Thread() {
-					public void run() {
-						for (int k = ai.getAndIncrement(); k < n_cpus; k = ai.getAndIncrement()) 
+				for( int w = 0; w < waveSize; ++w )
+				{
+					final int index = fifo.poll();
+					final int k = labels.getSlice( index );
+					final int xy = labels.getSliceOffset( index );
+					
+					float voxelValue = Float.MAX_VALUE;
+					int voxelLabel = 0;
+					
+					for( int m = 0; m < numNeighbors; ++m )
+					{
+						final int neighbor = index + offsets[ m ];
+						final int label = tabLabels[ neighbor ];
+						if( label == 0 )
 						{
-							int zmin = dec * k;
-							int zmax = dec * ( k + 1 );
-							if (zmin<0)
-								zmin = 0;
-							if (zmax > size3)
-								zmax = size3;
-
-							for (int z = zmin; z < zmax; ++z)	
+							// unlabeled neighbors not above the current level
+							if( values.get( k + slices[ m ], xy + sliceOffsets[ m ] ) <= level )
 							{
-								if (zmin==0) 
-									IJ.showProgress(z+1, zmax);
-
-								final ImageProcessor ipInput = inputStack.getProcessor( z+1 );
-								final ImageProcessor ipSeed = seedStack.getProcessor( z+1 );
-
-								for( int x = 0; x < size1; ++x )
-									for( int y = 0; y < size2; ++y )
-									{
-										lists[k].addLast( new VoxelRecord( x, y, z, ipInput.getf( x, y )));
-										tabLabels[x][y][z] = (int) ipSeed.getf( x, y );
-									}
+								tabLabels[ neighbor ] = INQUEUE;
+								fifo.add( neighbor );
+							}
+						}
+						else if( label > 0 )
+						{
+							// assign label of smallest neighbor
+							final float value = values.get( k + slices[ m ], xy + sliceOffsets[ m ] );
+							if( value <= voxelValue )
+							{
+								voxelLabel = label;
+								voxelValue = value;
 							}
-
 						}
 					}
-				};
+					waveVoxels[ w ] = index;
+					waveLabels[ w ] = voxelLabel;
+				}
+				
+				for( int w = 0; w < waveSize; ++w )
+					tabLabels[ waveVoxels[ w ] ] = waveLabels[ w ];
 			}
-			ThreadUtil.startAndJoin(threads);			
+			
+			levelStart = levelEnd;
 		}
+		progress.finish();
+	}
+	
+	/**
+	 * Apply watershed transform on inputImage, using the seeds 
+	 * from seedImage and the mask of maskImage (multi-threaded). 
+	 * The volume is split in z-slabs that are flooded independently. 
+	 * The slabs whose border slices changed are then flooded again 
+	 * with the labels of their neighbors until no border changes,
+	 * which gives the same result as {@link #apply()}.
+	 * @return watershed domains image
+	 */
+	public ImagePlus applyParallel()
+	{
+		return applyParallel( false );
+	}
+	
+	/**
+	 * Flood the volume by parallel slabs (see {@link #applyParallel()})
+	 * @param keepKeys true to keep the labels and keys of all the voxels
+	 * @return watershed domains image
+	 */
+	ImagePlus applyParallel( final boolean keepKeys )
+	{
+		final ImageStack inputStack = inputImage.getStack();
+	    final int size1 = inputStack.getWidth();
+	    final int size2 = inputStack.getHeight();
+	    final int size3 = inputStack.getSize();
+	    
+	    final ImageStack seedStack = seedImage.getStack();
+	    final MaskRuns mask = getMaskRuns();
+	    final Object[] pixels = getPixels( inputStack );
+	    
+        final int numSlabs = Math.min( getNumThreads(), size3 );
+        final int dec = (int) Math.ceil((double) size3 / (double) numSlabs);
+        
+        final WatershedSlab[] slabs = new WatershedSlab[ numSlabs ];
+        for( int s = 0; s < numSlabs; ++s )
+        	slabs[ s ] = new WatershedSlab( 
+        			Math.min( dec * s, size3 ), Math.min( dec * ( s + 1 ), size3 ),
+        			size1, size2, pixels );
+        if( keepKeys )
+        {
+        	floodCost = new float[ size3 ][ size1 * size2 ];
+        	floodDistance = new int[ size3 ][ size1 * size2 ];
+        	for( int s = 0; s < numSlabs; ++s )
+        	{
+        		slabs[ s ].keyCost = floodCost;
+        		slabs[ s ].keyDistance = floodDistance;
+        	}
+        }
+        
+		IJ.log( "  Flooding " + numSlabs + " slabs..." );
+		progressListener.setStatus( "Flooding " + numSlabs + " slabs..." );
+	    final long start = System.currentTimeMillis();
+	    
+	    int round = 0;
+	    boolean dirty = true;
+	    while( dirty )
+	    {
+	    	final AtomicInteger ai = new AtomicInteger(0);
+	    	Thread[] threads = ThreadUtil.createThreadArray( numSlabs );
+	    	for (int ithread = 0; ithread < threads.length; ithread++) 
+	    	{
+	    		threads[ithread] = new Thread() {
+	    			public void run() {
+	    				for (int s = ai.getAndIncrement(); s < numSlabs; s = ai.getAndIncrement())
+	    					if( slabs[ s ].dirty && slabs[ s ].numSlices > 0 )
+	    						slabs[ s ].flood( seedStack, mask, connectivity );
+	    			}
+	    		};
+	    	}
+	    	ThreadUtil.startAndJoin(threads);
+	    	round++;
+	    	
+	    	// exchange the border slices between neighbor slabs
+	    	dirty = false;
+	    	for( int s = 1; s < numSlabs; ++s )
+	    	{
+	    		if( slabs[ s ].numSlices == 0 || slabs[ s - 1 ].numSlices == 0 )
+	    			continue;
+	    		if( slabs[ s ].updateGhost( WatershedSlab.LOWER, slabs[ s - 1 ] ) )
+	    			slabs[ s ].dirty = dirty = true;
+	    		if( slabs[ s - 1 ].updateGhost( WatershedSlab.UPPER, slabs[ s ] ) )
+	    			slabs[ s - 1 ].dirty = dirty = true;
+	    	}
+	    	progressListener.setProgress( round, round + 1 );
+	    }
+	    progressListener.setProgress( 1, 1 );
+	    
+		final long end = System.currentTimeMillis();
+		IJ.log("  Flooding took: " + (end-start) + " ms (" + round + " rounds)");
 		
-		final LinkedList<VoxelRecord> voxelList = lists[ 0 ];
-		for (int ithread = 1; ithread < threads.length; ithread++)
-			voxelList.addAll(lists[ ithread ]);
+		// Create result label image (one thread per slab)
+		final int maxLabel = keepKeys ? floodMaxLabel : getMaxSeedLabel();
+		final Object[] labelPixels = allocateLabelPixels( size1, size2, size3, maxLabel );
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = ThreadUtil.createThreadArray( numSlabs );
+		final LabelStatistics table = computeStatistics ? new LabelStatistics( maxLabel ) : null;
+		final VoxelValues values = computeStatistics ? VoxelValues.of( pixels ) : null;
+		for (int ithread = 0; ithread < threads.length; ithread++) 
+		{
+			threads[ithread] = new Thread() {
+				public void run() {
+					final LabelStatistics.Accumulator accumulator = 
+							null != table ? table.newAccumulator() : null;
+					for (int s = ai.getAndIncrement(); s < numSlabs; s = ai.getAndIncrement())
+						copyLabels( slabs[ s ].labels, 1, slabs[ s ].zmin, slabs[ s ].numSlices, 
+								labelPixels, values, accumulator );
+					if( null != accumulator )
+						accumulator.flush();
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+		statistics = table;
 		
-		IJ.showProgress(1.0);
+		if( keepKeys )
+		{
+			floodLabels = new int[ size3 ][];
+			for( final WatershedSlab slab : slabs )
+				keepLabels( slab );
+			floodPixels = labelPixels;
+		}
 		
-		return voxelList;
+		return createLabelImage( size1, size2, labelPixels );
 	}
-
 	
+	/**
+	 * Apply watershed transform like {@link #applyParallel()}, keeping
+	 * the labels and the flooding order (level and distance) of every
+	 * voxel, so the seeds can then be edited with 
+	 * {@link #setSeed(int, int, int, float)} and the volume flooded
+	 * again with {@link #updateIncremental()}.
+	 * @return watershed domains image
+	 */
+	public ImagePlus applyIncremental()
+	{
+		seedEdits.clear();
+		floodMaxLabel = getMaxSeedLabel();
+		return applyParallel( true );
+	}
+	
+	/**
+	 * Change the label of a voxel of the seed image (0 to remove it),
+	 * to flood again with {@link #updateIncremental()}. Moving a seed
+	 * is removing it and adding it at its new position.
+	 * @param x x-coordinate of the voxel
+	 * @param y y-coordinate of the voxel
+	 * @param z z-coordinate of the voxel (0-based)
+	 * @param label new seed label of the voxel
+	 */
+	public void setSeed( 
+			final int x, 
+			final int y, 
+			final int z, 
+			final float label )
+	{
+		final ImageStack seedStack = seedImage.getStack();
+		if( seedStack instanceof IntLabelStack )
+			( (IntLabelStack) seedStack ).setLabel( x, y, z, (int) label );
+		else
+			seedStack.setVoxel( x, y, z, label );
+		seedEdits.add( new int[]{ x, y, z } );
+		floodMaxLabel = Math.max( floodMaxLabel, (int) label );
+	}
+	
+	/**
+	 * Flood again the volume after seed edits, starting from the
+	 * labels and keys of the last call to {@link #applyIncremental()}
+	 * or {@link #updateIncremental()}. Only a slab of slices around the
+	 * basins of the edited seeds is flooded, using the recorded keys of
+	 * the slices around it as ghost slices. The slab grows while its
+	 * border slices get other keys or labels than before, so the result
+	 * is the same as flooding the whole volume again.
+	 * @return watershed domains image
+	 */
+	public ImagePlus updateIncremental()
+	{
+		if( null == floodLabels )
+			throw new IllegalStateException( "applyIncremental() must be called first" );
+		statistics = null;
+		
+		final int size3 = floodLabels.length;
+		final int size1 = inputImage.getWidth();
+		final int size2 = inputImage.getHeight();
+		final int planeSize = size1 * size2;
+		
+		// basins of the edited seeds
+		int zmin = size3;
+		int zmax = 0;
+		int maxLabel = 0;
+		for( final int[] edit : seedEdits )
+			maxLabel = Math.max( maxLabel, floodLabels[ edit[ 2 ] ][ edit[ 0 ] + edit[ 1 ] * size1 ] );
+		final boolean[] affected = new boolean[ maxLabel + 1 ];
+		for( final int[] edit : seedEdits )
+		{
+			affected[ Math.max( 0, floodLabels[ edit[ 2 ] ][ edit[ 0 ] + edit[ 1 ] * size1 ] ) ] = true;
+			zmin = Math.min( zmin, edit[ 2 ] );
+			zmax = Math.max( zmax, edit[ 2 ] + 1 );
+		}
+		seedEdits.clear();
+		affected[ 0 ] = false;
+		
+		if( zmin < zmax )
+		{
+			// the basins are connected, so they span the slices next to the edits
+			while( zmin > 0 && containsLabel( floodLabels[ zmin - 1 ], affected ) )
+				zmin--;
+			while( zmax < size3 && containsLabel( floodLabels[ zmax ], affected ) )
+				zmax++;
+			
+			IJ.log( "  Flooding slices " + zmin + " to " + zmax + "..." );
+			final long start = System.currentTimeMillis();
+			
+			final ImageStack seedStack = seedImage.getStack();
+			final MaskRuns mask = getMaskRuns();
+			final Object[] pixels = getPixels( inputImage.getStack() );
+			
+			WatershedSlab slab;
+			while( true )
+			{
+				slab = new WatershedSlab( zmin, zmax, size1, size2, pixels );
+				slab.keyCost = floodCost;
+				slab.keyDistance = floodDistance;
+				
+				// keys of the border slices before flooding
+				final float[][] edgeCost = new float[ 2 ][];
+				final int[][] edgeDistance = new int[ 2 ][];
+				for( int side = WatershedSlab.LOWER; side <= WatershedSlab.UPPER; ++side )
+				{
+					final int z = side == WatershedSlab.LOWER ? zmin : zmax - 1;
+					edgeCost[ side ] = floodCost[ z ].clone();
+					edgeDistance[ side ] = floodDistance[ z ].clone();
+				}
+				if( zmin > 0 )
+					slab.setGhost( WatershedSlab.LOWER, floodLabels[ zmin - 1 ], 
+							floodCost[ zmin - 1 ], floodDistance[ zmin - 1 ] );
+				if( zmax < size3 )
+					slab.setGhost( WatershedSlab.UPPER, floodLabels[ zmax ], 
+							floodCost[ zmax ], floodDistance[ zmax ] );
+				
+				slab.flood( seedStack, mask, connectivity );
+				
+				// grow the slab on the sides whose border slice changed
+				final int numSlices = zmax - zmin;
+				final boolean lowerChanged = zmin > 0 && edgeChanged( slab, WatershedSlab.LOWER, 
+						floodLabels[ zmin ], edgeCost[ WatershedSlab.LOWER ], edgeDistance[ WatershedSlab.LOWER ] );
+				final boolean upperChanged = zmax < size3 && edgeChanged( slab, WatershedSlab.UPPER, 
+						floodLabels[ zmax - 1 ], edgeCost[ WatershedSlab.UPPER ], edgeDistance[ WatershedSlab.UPPER ] );
+				if( lowerChanged == false && upperChanged == false )
+					break;
+				if( lowerChanged )
+					zmin = Math.max( 0, zmin - numSlices );
+				if( upperChanged )
+					zmax = Math.min( size3, zmax + numSlices );
+			}
+			keepLabels( slab );
+			
+			if( floodPixels[ 0 ] instanceof short[] ? floodMaxLabel > 65535 : 
+					floodPixels[ 0 ] instanceof float[] && useIntLabels( floodMaxLabel ) )
+			{
+				// labels do not fit in 16 bits or in a float anymore
+				final boolean intLabels = useIntLabels( floodMaxLabel );
+				for( int z = 0; z < size3; ++z )
+				{
+					if( intLabels )
+					{
+						final int[] slice = new int[ planeSize ];
+						for( int i = 0; i < planeSize; ++i )
+							slice[ i ] = Math.max( 0, floodLabels[ z ][ i ] );
+						floodPixels[ z ] = slice;
+						continue;
+					}
+					final float[] slice = new float[ planeSize ];
+					for( int i = 0; i < planeSize; ++i )
+						slice[ i ] = Math.max( 0, floodLabels[ z ][ i ] );
+					floodPixels[ z ] = slice;
+				}
+			}
+			else
+				copyLabels( slab.labels, 1, zmin, slab.numSlices, floodPixels );
+			
+			final long end = System.currentTimeMillis();
+			IJ.log( "  Flooding took: " + (end-start) + " ms (slices " + zmin + " to " + zmax + ")" );
+		}
+		
+		return createLabelImage( size1, size2, floodPixels );
+	}
+	
+	/**
+	 * Keep the labels of the slices of a flooded slab
+	 * @param slab flooded slab
+	 */
+	void keepLabels( final WatershedSlab slab )
+	{
+		for( int k = 0; k < slab.numSlices; ++k )
+		{
+			final int[] slice = new int[ slab.planeSize ];
+			int xy = 0;
+			for( int y = 0; y < slab.height; ++y )
+			{
+				int index = slab.labels.arrayIndex( 0, y, k + 1 );
+				for( int x = 0; x < slab.width; ++x, ++xy, ++index )
+					slice[ xy ] = Math.max( 0, slab.labels.get( index ) );
+			}
+			floodLabels[ slab.zmin + k ] = slice;
+		}
+	}
+	
+	/**
+	 * Check if a slice contains a voxel of some labels
+	 * @param slice labels of the slice
+	 * @param labels flags of the labels to look for
+	 * @return true if one of the labels is found
+	 */
+	static boolean containsLabel( final int[] slice, final boolean[] labels )
+	{
+		for( final int label : slice )
+			if( label > 0 && label < labels.length && labels[ label ] )
+				return true;
+		return false;
+	}
+	
+	/**
+	 * Check if the keys or labels of a border slice of a flooded slab 
+	 * differ from their recorded values
+	 * @param slab flooded slab
+	 * @param side LOWER or UPPER
+	 * @param label recorded labels of the slice
+	 * @param cost recorded flooding levels of the slice
+	 * @param distance recorded flooding distances of the slice
+	 * @return true if the slice changed
+	 */
+	static boolean edgeChanged( 
+			final WatershedSlab slab, 
+			final int side, 
+			final int[] label, 
+			final float[] cost, 
+			final int[] distance )
+	{
+		final int[] edgeLabel = slab.edgeLabel[ side ];
+		for( int xy = 0; xy < slab.planeSize; ++xy )
+		{
+			if( edgeLabel[ xy ] != label[ xy ] )
+				return true;
+			if( label[ xy ] > 0 && ( slab.edgeCost[ side ][ xy ] != cost[ xy ] 
+					|| slab.edgeDistance[ side ][ xy ] != distance[ xy ] ) )
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Apply watershed transform on inputImage, using the seeds 
+	 * from seedImage and the mask of maskImage, for stacks that do
+	 * not fit in memory. The volume is read slab by slab (the input,
+	 * seed and mask stacks can be virtual) and only one slab is kept
+	 * in memory, plus the border slices of all the slabs. The labels
+	 * of each flooded slab are saved to disk, one TIFF file per slice.
+	 * The slabs are swept back and forth, flooding again the ones 
+	 * whose ghost slices changed, until no border changes, which 
+	 * gives the same result as {@link #apply()}.
+	 * 
+	 * @param slabDepth number of slices of each slab
+	 * @param directory directory to save the label slices to
+	 * @return watershed domains image (virtual stack on the saved slices)
+	 */
+	public ImagePlus applyStreaming( 
+			final int slabDepth, 
+			final String directory )
+	{
+		final ImageStack inputStack = inputImage.getStack();
+	    final int size1 = inputStack.getWidth();
+	    final int size2 = inputStack.getHeight();
+	    final int size3 = inputStack.getSize();
+	    
+	    final ImageStack seedStack = seedImage.getStack();
+	    final MaskRuns mask = getMaskRuns();
+	    final boolean shortLabels = getMaxSeedLabel() <= 65535;
+	    final String dir = directory.endsWith( File.separator ) ? directory : directory + File.separator;
+	    statistics = null;
+	    
+	    final int depth = Math.max( 1, Math.min( slabDepth, size3 ) );
+	    final int numSlabs = (int) Math.ceil( (double) size3 / (double) depth );
+        final WatershedSlab[] slabs = new WatershedSlab[ numSlabs ];
+        for( int s = 0; s < numSlabs; ++s )
+        	slabs[ s ] = new WatershedSlab( 
+        			depth * s, Math.min( depth * ( s + 1 ), size3 ), size1, size2, size3 );
+        
+		IJ.log( "  Flooding " + numSlabs + " slabs of " + depth + " slices..." );
+		progressListener.setStatus( "Flooding " + numSlabs + " slabs..." );
+	    final long start = System.currentTimeMillis();
+	    
+	    int round = 0;
+	    int numFloods = 0;
+	    boolean dirty = true;
+	    while( dirty )
+	    {
+	    	// odd rounds sweep the slabs backwards
+	    	for( int i = 0; i < numSlabs; ++i )
+	    	{
+	    		final int s = round % 2 == 0 ? i : numSlabs - 1 - i;
+	    		final WatershedSlab slab = slabs[ s ];
+	    		if( slab.dirty == false )
+	    			continue;
+	    		
+	    		slab.loadPixels( inputStack );
+	    		slab.flood( seedStack, mask, connectivity );
+	    		saveLabels( slab, shortLabels, dir );
+	    		slab.release();
+	    		numFloods++;
+	    		
+	    		if( s > 0 && slabs[ s - 1 ].updateGhost( WatershedSlab.UPPER, slab ) )
+	    			slabs[ s - 1 ].dirty = true;
+	    		if( s < numSlabs - 1 && slabs[ s + 1 ].updateGhost( WatershedSlab.LOWER, slab ) )
+	    			slabs[ s + 1 ].dirty = true;
+	    		progressListener.setProgress( i + 1, numSlabs );
+	    	}
+	    	round++;
+	    	
+	    	dirty = false;
+	    	for( final WatershedSlab slab : slabs )
+	    		dirty |= slab.dirty;
+	    }
+	    progressListener.setProgress( 1, 1 );
+	    
+		final long end = System.currentTimeMillis();
+		IJ.log("  Flooding took: " + (end-start) + " ms (" + round + " sweeps, " 
+				+ numFloods + " slab floodings)");
+		
+		final VirtualStack labelStack = new VirtualStack( size1, size2, null, dir );
+		for( int z = 0; z < size3; ++z )
+			labelStack.addSlice( getLabelFileName( z ) );
+	    final ImagePlus ws = new ImagePlus( "watershed", labelStack );
+	    ws.setCalibration( inputImage.getCalibration() );
+	    return ws;
+	}
+	
+	/**
+	 * Save the label slices of a flooded slab, one TIFF file per slice
+	 * 
+	 * @param slab flooded slab
+	 * @param shortLabels true to save 16-bit slices, false for 32-bit
+	 * @param directory directory to save the slices to (with a trailing separator)
+	 */
+	void saveLabels( 
+			final WatershedSlab slab, 
+			final boolean shortLabels, 
+			final String directory )
+	{
+		final int size = slab.width * slab.height;
+		final Object[] labelPixels = new Object[ slab.numSlices ];
+		for( int k = 0; k < slab.numSlices; ++k )
+			labelPixels[ k ] = shortLabels ? new short[ size ] : new float[ size ];
+		copyLabels( slab.labels, 1, 0, slab.numSlices, labelPixels );
+		
+		for( int k = 0; k < slab.numSlices; ++k )
+		{
+			final ImageStack slice = new ImageStack( slab.width, slab.height );
+			final String fileName = getLabelFileName( slab.zmin + k );
+			slice.addSlice( fileName, labelPixels[ k ] );
+			if( new FileSaver( new ImagePlus( fileName, slice ) ).saveAsTiff( directory + fileName ) == false )
+				throw new RuntimeException( "Could not save " + directory + fileName );
+		}
+	}
+	
+	/**
+	 * File name of a slice of the streamed label image
+	 * @param z slice index (0-based)
+	 * @return file name
+	 */
+	static String getLabelFileName( final int z )
+	{
+		return String.format( "label-%05d.tif", z + 1 );
+	}
+	
+	/**
+	 * Apply watershed transform on inputImage, using the seeds
+	 * from seedImage and the mask of maskImage (multi-threaded).
+	 * All the voxels of the current level at the same distance from
+	 * the lower levels are flooded concurrently, with a barrier
+	 * between waves, which balances well when a few basins cover
+	 * most of the volume. Best suited to 8 and 16-bit inputs, where 
+	 * each level holds many voxels. Gives the same result as 
+	 * {@link #apply()}.
+	 * @return watershed domains image
+	 */
+	public ImagePlus applyLevelSynchronous()
+	{
+		final ImageStack inputStack = inputImage.getStack();
+		final LabelBuffer labels = new LabelBuffer(
+				inputStack.getWidth(), inputStack.getHeight(), inputStack.getSize() );
+
+		initLabels( seedImage.getStack(), labels );
+
+		final int numThreads = Math.max( 1, getNumThreads() );
+		IJ.log( "  Flooding with " + numThreads + " threads..." );
+		progressListener.setStatus( "Flooding with " + numThreads + " threads..." );
+	    final long start = System.currentTimeMillis();
+
+		final LevelSynchronousFlooding flooding = new LevelSynchronousFlooding(
+				labels, VoxelValues.of( inputStack ), connectivity, numThreads );
+		flooding.flood();
+
+		final long end = System.currentTimeMillis();
+		IJ.log("  Flooding took: " + (end-start) + " ms (" + flooding.numLevels + " levels)");
+
+		return createLabelImage( labels );
+	}
+
+	/**
+	 * Apply watershed transform on inputImage, using the seeds
+	 * from seedImage and the mask of maskImage. 8 and 16-bit inputs
+	 * are flooded using a hierarchical (bucket) queue, while 32-bit
+	 * inputs use a priority queue. Only the labels are stored for the
+	 * whole volume (in chunks if needed, or in a mapped file if they 
+	 * do not fit in the heap, see {@link #setLabelFile(File)}), so it
+	 * works on volumes of any size.
+	 * @return watershed domains image
+	 */
+	public ImagePlus applyWithPriorityQueue()
+	{
+		final ImageStack inputStack = inputImage.getStack();
+		final LabelBuffer labels = createLabelBuffer();
+		
+		final int bitDepth = inputImage.getBitDepth();
+		final VoxelQueue queue = bitDepth == 8 || bitDepth == 16 ? 
+				new BucketQueue( 1 << bitDepth ) : new VoxelHeap();
+		floodWithQueue( inputStack, labels, queue );
+		
+		return createLabelImage( labels );
+	}
+	
+	/**
+	 * Apply watershed transform on inputImage, using the seeds
+	 * from seedImage and the mask of maskImage, flooding a 32-bit 
+	 * input with a hierarchical (bucket) queue after quantizing its 
+	 * values on the fly to a number of levels. This is an 
+	 * approximation: voxels whose values fall in the same level are
+	 * flooded in queue order. The maximum quantization error is
+	 * logged and given by {@link #getQuantizationError()}. 8 and 
+	 * 16-bit inputs are flooded without quantization.
+	 * 
+	 * @param numLevels number of quantization levels (2 to 65536, e.g. 4096)
+	 * @return watershed domains image
+	 */
+	public ImagePlus applyQuantized( final int numLevels )
+	{
+		if( numLevels < 2 || numLevels > 65536 )
+			throw new IllegalArgumentException( "Number of levels must be between 2 and 65536: " + numLevels );
+		
+		if( inputImage.getBitDepth() != 32 )
+		{
+			quantizationError = 0;
+			return applyWithPriorityQueue();
+		}
+		
+		final ImageStack inputStack = inputImage.getStack();
+		final float[] range = getValueRange( inputStack, getNumThreads() );
+		final float min = range[ 0 ];
+		final float max = range[ 1 ];
+		final float scale = max > min ? ( numLevels - 1 ) / ( max - min ) : 0;
+		quantizationError = max > min ? 0.5 * ( max - min ) / ( numLevels - 1 ) : 0;
+		IJ.log( "  Quantizing [" + min + ", " + max + "] to " + numLevels 
+				+ " levels (maximum error " + quantizationError + ")" );
+		
+		final LabelBuffer labels = createLabelBuffer();
+		floodWithQueue( inputStack, labels, new BucketQueue( numLevels, min, scale ) );
+		
+		return createLabelImage( labels );
+	}
+	
+	/**
+	 * Apply watershed transform on inputImage, using the seeds 
+	 * from seedImage and the mask of maskImage, from coarse to fine.
+	 * The input and the seeds are downsampled by a factor (mean value 
+	 * and largest seed label of each block) and flooded with 
+	 * {@link #apply()}. The coarse labels are then kept for the voxels
+	 * whose block and neighbor blocks have the same label, and only the
+	 * band left around the basin boundaries is flooded at full 
+	 * resolution, with the whole basins of the seeds too close to be
+	 * told apart at the coarse resolution. This is an approximation of 
+	 * {@link #apply()}, much faster on smooth inputs where most voxels
+	 * are deep inside a basin.
+	 * 
+	 * @param factor downsampling factor (e.g. 2 or 4, 1 to flood at full resolution)
+	 * @return watershed domains image
+	 */
+	public ImagePlus applyMultiResolution( final int factor )
+	{
+		if( factor < 2 )
+			return apply();
+		
+		final ImageStack inputStack = inputImage.getStack();
+	    final int size1 = inputStack.getWidth();
+	    final int size2 = inputStack.getHeight();
+	    final int size3 = inputStack.getSize();
+	    final int coarse1 = ( size1 + factor - 1 ) / factor;
+	    final int coarse2 = ( size2 + factor - 1 ) / factor;
+	    final int coarse3 = ( size3 + factor - 1 ) / factor;
+	    
+	    // flood the downsampled volume
+	    IJ.log( "  Flooding at 1/" + factor + " resolution..." );
+	    progressListener.setStatus( "Flooding at 1/" + factor + " resolution..." );
+	    final long t0 = System.currentTimeMillis();
+	    final WatershedTransform3D coarseTransform = new WatershedTransform3D( 
+	    		downsample( inputStack, factor ), 
+	    		downsampleLabels( seedImage.getStack(), factor ),
+	    		null != maskImage ? downsampleMask( factor ) : null );
+	    coarseTransform.setConnectivity( connectivity );
+	    coarseTransform.setProgressListener( progressListener );
+	    final Object[] coarsePixels = getLabelPixels( coarseTransform.apply().getStack() );
+	    final int coarseSize = coarse1 * coarse2;
+	    final int[] coarseLabels = new int[ coarseSize * coarse3 ];
+	    for( int z = 0; z < coarse3; ++z )
+	    	for( int xy = 0; xy < coarseSize; ++xy )
+	    		coarseLabels[ z * coarseSize + xy ] = getLabel( coarsePixels[ z ], xy );
+	    final long t1 = System.currentTimeMillis();
+	    IJ.log( "  Coarse flooding took " + (t1-t0) + " ms" );
+	    
+	    // seed label of each block (-1 for several labels)
+	    final LabelBuffer labels = new LabelBuffer( size1, size2, size3 );
+	    initLabels( seedImage.getStack(), labels );
+	    final int[] tabLabels = labels.getArray();
+	    final int[] blockX = new int[ size1 ];
+	    for( int x = 0; x < size1; ++x )
+	    	blockX[ x ] = x / factor;
+	    final int[] blockSeed = new int[ coarseLabels.length ];
+	    final AtomicInteger ai = new AtomicInteger(0);
+	    Thread[] threads = ThreadUtil.createThreadArray( Math.min( getNumThreads(), coarse3 ) );
+	    for (int ithread = 0; ithread < threads.length; ithread++) 
+	    {
+	    	threads[ithread] = new Thread() {
+	    		public void run() {
+	    			for (int cz = ai.getAndIncrement(); cz < coarse3; cz = ai.getAndIncrement())
+	    				for( int z = cz * factor; z < Math.min( size3, ( cz + 1 ) * factor ); ++z )
+	    					for( int y = 0; y < size2; ++y )
+	    					{
+	    						final int row = cz * coarseSize + ( y / factor ) * coarse1;
+	    						final int index = labels.arrayIndex( 0, y, z );
+	    						for( int x = 0; x < size1; ++x )
+	    						{
+	    							final int label = tabLabels[ index + x ];
+	    							final int block = row + blockX[ x ];
+	    							if( label > 0 && blockSeed[ block ] != label )
+	    								blockSeed[ block ] = blockSeed[ block ] == 0 ? label : -1;
+	    						}
+	    					}
+	    		}
+	    	};
+	    }
+	    ThreadUtil.startAndJoin(threads);
+	    
+	    // basins of the seeds that the coarse resolution cannot tell apart
+	    // (several seeds in the same or neighbor blocks) are flooded again entirely
+	    int maxLabel = 0;
+	    for( final int label : coarseLabels )
+	    	maxLabel = Math.max( maxLabel, label );
+	    final boolean[] ambiguous = new boolean[ maxLabel + 1 ];
+	    for( int cz = 0; cz < coarse3; ++cz )
+	    	for( int cy = 0; cy < coarse2; ++cy )
+	    		for( int cx = 0; cx < coarse1; ++cx )
+	    		{
+	    			final int block = cz * coarseSize + cy * coarse1 + cx;
+	    			final int seed = blockSeed[ block ];
+	    			if( seed == 0 )
+	    				continue;
+	    			if( seed != coarseLabels[ block ] )
+	    				ambiguous[ coarseLabels[ block ] ] = true;
+	    			for( int dz = -1; dz <= 1; ++dz )
+	    				for( int dy = -1; dy <= 1; ++dy )
+	    					for( int dx = -1; dx <= 1; ++dx )
+	    					{
+	    						final int x = cx + dx, y = cy + dy, z = cz + dz;
+	    						if( x < 0 || x >= coarse1 || y < 0 || y >= coarse2 || z < 0 || z >= coarse3 )
+	    							continue;
+	    						final int neighbor = z * coarseSize + y * coarse1 + x;
+	    						if( blockSeed[ neighbor ] != 0 && blockSeed[ neighbor ] != seed )
+	    						{
+	    							ambiguous[ coarseLabels[ block ] ] = true;
+	    							ambiguous[ coarseLabels[ neighbor ] ] = true;
+	    						}
+	    					}
+	    		}
+	    
+	    // blocks deep inside a basin
+	    final boolean[] interior = new boolean[ coarseLabels.length ];
+	    for( int cz = 0; cz < coarse3; ++cz )
+	    	for( int cy = 0; cy < coarse2; ++cy )
+	    		for( int cx = 0; cx < coarse1; ++cx )
+	    		{
+	    			final int block = cz * coarseSize + cy * coarse1 + cx;
+	    			final int label = coarseLabels[ block ];
+	    			boolean inside = label > 0 && ambiguous[ label ] == false;
+	    			for( int dz = -1; dz <= 1 && inside; ++dz )
+	    				for( int dy = -1; dy <= 1 && inside; ++dy )
+	    					for( int dx = -1; dx <= 1 && inside; ++dx )
+	    					{
+	    						final int x = cx + dx, y = cy + dy, z = cz + dz;
+	    						if( x < 0 || x >= coarse1 || y < 0 || y >= coarse2 || z < 0 || z >= coarse3 )
+	    							continue;
+	    						final int neighbor = z * coarseSize + y * coarse1 + x;
+	    						inside = coarseLabels[ neighbor ] == label;
+	    					}
+	    			interior[ block ] = inside;
+	    		}
+	    
+	    // keep the coarse labels inside the basins, and count the band voxels
+	    final int[] sliceStarts = new int[ size3 + 1 ];
+	    ai.set( 0 );
+	    threads = ThreadUtil.createThreadArray( Math.min( getNumThreads(), size3 ) );
+	    for (int ithread = 0; ithread < threads.length; ithread++) 
+	    {
+	    	threads[ithread] = new Thread() {
+	    		public void run() {
+	    			for (int z = ai.getAndIncrement(); z < size3; z = ai.getAndIncrement())
+	    			{
+	    				int count = 0;
+	    				for( int y = 0; y < size2; ++y )
+	    				{
+	    					final int row = ( z / factor ) * coarseSize + ( y / factor ) * coarse1;
+	    					final int index = labels.arrayIndex( 0, y, z );
+	    					for( int x = 0; x < size1; ++x )
+	    					{
+	    						final int label = tabLabels[ index + x ];
+	    						if( label == LabelBuffer.BORDER )
+	    							continue;
+	    						if( interior[ row + blockX[ x ] ] )
+	    							tabLabels[ index + x ] = coarseLabels[ row + blockX[ x ] ];
+	    						else if( label == 0 )
+	    							count++;
+	    					}
+	    				}
+	    				sliceStarts[ z + 1 ] = count;
+	    			}
+	    		}
+	    	};
+	    }
+	    ThreadUtil.startAndJoin(threads);
+	    for( int z = 0; z < size3; ++z )
+	    	sliceStarts[ z + 1 ] += sliceStarts[ z ];
+	    final int count = sliceStarts[ size3 ];
+	    
+	    // list the band voxels
+	    final int bitDepth = inputImage.getBitDepth();
+	    final int keyBits = bitDepth == 8 || bitDepth == 16 ? bitDepth : 32;
+	    final int[] keys = new int[ count ];
+	    final int[] sortedVoxels = new int[ count ];
+	    final VoxelValues values = VoxelValues.of( inputStack );
+	    ai.set( 0 );
+	    threads = ThreadUtil.createThreadArray( Math.min( getNumThreads(), size3 ) );
+	    for (int ithread = 0; ithread < threads.length; ithread++) 
+	    {
+	    	threads[ithread] = new Thread() {
+	    		public void run() {
+	    			for (int z = ai.getAndIncrement(); z < size3; z = ai.getAndIncrement())
+	    			{
+	    				int n = sliceStarts[ z ];
+	    				for( int y = 0; y < size2; ++y )
+	    				{
+	    					final int index = labels.arrayIndex( 0, y, z );
+	    					for( int x = 0, xy = y * size1; x < size1; ++x, ++xy )
+	    						if( tabLabels[ index + x ] == 0 )
+	    						{
+	    							final float value = values.get( z, xy );
+	    							keys[ n ] = keyBits < 32 ? (int) value : VoxelSorter.floatKey( value );
+	    							sortedVoxels[ n++ ] = index + x;
+	    						}
+	    				}
+	    			}
+	    		}
+	    	};
+	    }
+	    ThreadUtil.startAndJoin(threads);
+	    VoxelSorter.sort( keys, sortedVoxels, keyBits, getNumThreads() );
+	    final float[] sortedValues = new float[ count ];
+	    for( int n = 0; n < count; ++n )
+	    	sortedValues[ n ] = keyBits < 32 ? keys[ n ] : VoxelSorter.keyToFloat( keys[ n ] );
+	    
+	    IJ.log( "  Flooding " + count + " voxels at full resolution..." );
+	    progressListener.setStatus( "Flooding " + count + " voxels at full resolution..." );
+	    floodSortedVoxels( inputStack, labels, sortedVoxels, sortedValues, count );
+	    final long t2 = System.currentTimeMillis();
+	    IJ.log( "  Refinement took " + (t2-t1) + " ms (" 
+	    		+ ( 100L * count / ( (long) size1 * size2 * size3 ) ) + "% of the voxels)" );
+	    
+	    return createLabelImage( labels );
+	}
+	
+	/**
+	 * Downsample a stack by blocks of voxels (only the voxels of the
+	 * mask if there is one)
+	 * @param stack stack to downsample
+	 * @param factor size of the blocks
+	 * @return 32-bit downsampled image (mean value of each block)
+	 */
+	ImagePlus downsample( 
+			final ImageStack stack, 
+			final int factor )
+	{
+		final int size1 = stack.getWidth();
+		final int size2 = stack.getHeight();
+		final int size3 = stack.getSize();
+		final int coarse1 = ( size1 + factor - 1 ) / factor;
+		final int coarse2 = ( size2 + factor - 1 ) / factor;
+		final int coarse3 = ( size3 + factor - 1 ) / factor;
+		
+		final MaskRuns mask = getMaskRuns();
+		final ImageStack coarse = new ImageStack( coarse1, coarse2 );
+		for( int cz = 0; cz < coarse3; ++cz )
+		{
+			final float[] sum = new float[ coarse1 * coarse2 ];
+			final int[] numVoxels = new int[ coarse1 * coarse2 ];
+			for( int z = cz * factor; z < Math.min( size3, ( cz + 1 ) * factor ); ++z )
+			{
+				final Object pixels = stack.getPixels( z + 1 );
+				for( int y = 0; y < size2; ++y )
+				{
+					final int firstRun = null != mask ? mask.getFirstRun( y, z ) : 0;
+					final int lastRun = null != mask ? mask.getLastRun( y, z ) : 1;
+					for( int r = firstRun; r < lastRun; ++r )
+					{
+						final int xmax = null != mask ? mask.getEnd( r ) : size1;
+						for( int x = null != mask ? mask.getStart( r ) : 0; x < xmax; ++x )
+						{
+							final int block = ( y / factor ) * coarse1 + x / factor;
+							final float value = getValue( pixels, x + y * size1 );
+							sum[ block ] += value;
+							numVoxels[ block ]++;
+						}
+					}
+				}
+			}
+			for( int block = 0; block < sum.length; ++block )
+				if( numVoxels[ block ] > 0 )
+					sum[ block ] /= numVoxels[ block ];
+			coarse.addSlice( "", sum );
+		}
+		return new ImagePlus( "coarse", coarse );
+	}
+	
+	/**
+	 * Downsample a label stack by blocks of voxels, keeping the largest
+	 * label of each block (only the voxels of the mask if there is one)
+	 * @param stack label stack to downsample
+	 * @param factor size of the blocks
+	 * @return downsampled integer labels
+	 */
+	ImagePlus downsampleLabels( 
+			final ImageStack stack, 
+			final int factor )
+	{
+		final int size1 = stack.getWidth();
+		final int size2 = stack.getHeight();
+		final int size3 = stack.getSize();
+		final int coarse1 = ( size1 + factor - 1 ) / factor;
+		final int coarse2 = ( size2 + factor - 1 ) / factor;
+		final int coarse3 = ( size3 + factor - 1 ) / factor;
+		
+		final MaskRuns mask = getMaskRuns();
+		final IntLabelStack coarse = new IntLabelStack( coarse1, coarse2, coarse3 );
+		for( int cz = 0; cz < coarse3; ++cz )
+		{
+			final int[] maxLabel = coarse.getLabels( cz + 1 );
+			for( int z = cz * factor; z < Math.min( size3, ( cz + 1 ) * factor ); ++z )
+			{
+				final Object pixels = getLabelPixels( stack, z + 1 );
+				for( int y = 0; y < size2; ++y )
+				{
+					final int firstRun = null != mask ? mask.getFirstRun( y, z ) : 0;
+					final int lastRun = null != mask ? mask.getLastRun( y, z ) : 1;
+					for( int r = firstRun; r < lastRun; ++r )
+					{
+						final int xmax = null != mask ? mask.getEnd( r ) : size1;
+						for( int x = null != mask ? mask.getStart( r ) : 0; x < xmax; ++x )
+						{
+							final int block = ( y / factor ) * coarse1 + x / factor;
+							maxLabel[ block ] = Math.max( maxLabel[ block ], getLabel( pixels, x + y * size1 ) );
+						}
+					}
+				}
+			}
+		}
+		return new ImagePlus( "coarse", coarse );
+	}
+	
+	/**
+	 * Downsample the mask by blocks of voxels (a block is in the mask
+	 * if one of its voxels is)
+	 * @param factor size of the blocks
+	 * @return 8-bit downsampled mask
+	 */
+	ImagePlus downsampleMask( final int factor )
+	{
+		final MaskRuns mask = getMaskRuns();
+		final int size1 = maskImage.getWidth();
+		final int size2 = maskImage.getHeight();
+		final int size3 = maskImage.getImageStackSize();
+		final int coarse1 = ( size1 + factor - 1 ) / factor;
+		final int coarse2 = ( size2 + factor - 1 ) / factor;
+		final int coarse3 = ( size3 + factor - 1 ) / factor;
+		
+		final ImageStack coarse = new ImageStack( coarse1, coarse2 );
+		for( int cz = 0; cz < coarse3; ++cz )
+		{
+			final byte[] slice = new byte[ coarse1 * coarse2 ];
+			for( int z = cz * factor; z < Math.min( size3, ( cz + 1 ) * factor ); ++z )
+				for( int y = 0; y < size2; ++y )
+				{
+					final int lastRun = mask.getLastRun( y, z );
+					for( int r = mask.getFirstRun( y, z ); r < lastRun; ++r )
+						for( int x = mask.getStart( r ); x < mask.getEnd( r ); ++x )
+							slice[ ( y / factor ) * coarse1 + x / factor ] = (byte) 255;
+				}
+			coarse.addSlice( "", slice );
+		}
+		return new ImagePlus( "coarse mask", coarse );
+	}
+	
+	/**
+	 * @return maximum quantization error of the last call to {@link #applyQuantized(int)}
+	 */
+	public double getQuantizationError()
+	{
+		return quantizationError;
+	}
+	
+	/**
+	 * Get the smallest and largest values of a stack, ignoring NaNs
+	 * (multi-threaded, one slice at a time)
+	 * @param stack image stack
+	 * @param numThreads number of threads
+	 * @return minimum and maximum values
+	 */
+	static float[] getValueRange( final ImageStack stack, final int numThreads )
+	{
+		final int depth = stack.getSize();
+		final int size = stack.getWidth() * stack.getHeight();
+		final float[] sliceMin = new float[ depth ];
+		final float[] sliceMax = new float[ depth ];
+		
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = ThreadUtil.createThreadArray( Math.min( numThreads, depth ) );
+		for (int ithread = 0; ithread < threads.length; ithread++) 
+		{
+			threads[ithread] = new Thread() {
+				public void run() {
+					for (int z = ai.getAndIncrement(); z < depth; z = ai.getAndIncrement())
+					{
+						final Object pixels = stack.getPixels( z+1 );
+						float min = Float.POSITIVE_INFINITY;
+						float max = Float.NEGATIVE_INFINITY;
+						for( int i = 0; i < size; ++i )
+						{
+							final float value = getValue( pixels, i );
+							if( value < min )
+								min = value;
+							if( value > max )
+								max = value;
+						}
+						sliceMin[ z ] = min;
+						sliceMax[ z ] = max;
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+		
+		final float[] range = new float[]{ Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY };
+		for( int z = 0; z < depth; ++z )
+		{
+			range[ 0 ] = Math.min( range[ 0 ], sliceMin[ z ] );
+			range[ 1 ] = Math.max( range[ 1 ], sliceMax[ z ] );
+		}
+		if( range[ 0 ] > range[ 1 ] )
+			range[ 0 ] = range[ 1 ] = 0;
+		return range;
+	}
+	
+	/**
+	 * Allocate the label buffer of the queue floodings: mapped onto
+	 * the label file if one was set, on the heap (in chunks for the 
+	 * volumes that do not fit in one array) if the labels take less 
+	 * than half of the free heap, and mapped onto a temporary file 
+	 * otherwise
+	 * @return label buffer
+	 * @throws RuntimeException if the label file could not be mapped
+	 */
+	LabelBuffer createLabelBuffer()
+	{
+		final ImageStack inputStack = inputImage.getStack();
+		final int width = inputStack.getWidth();
+		final int height = inputStack.getHeight();
+		final int depth = inputStack.getSize();
+		
+		final long labelMemory = 4 * LabelBuffer.paddedSize( width, height, depth );
+		if( null == labelFile && fitsInHeap( labelMemory ) )
+			return LabelBuffer.create( width, height, depth );
+		
+		try {
+			final MappedLabelBuffer labels = null != labelFile ? 
+					new MappedLabelBuffer( width, height, depth, labelFile ) :
+					MappedLabelBuffer.createTemporary( width, height, depth );
+			IJ.log( "  Labels mapped onto " + labels.getFile() + ( null != labelFile ? "" : 
+					" (" + ( labelMemory >> 20 ) + " MB, " + ( getFreeMemory() >> 20 ) + " MB of free heap)" ) );
+			return labels;
+		} catch ( IOException e ) {
+			throw new RuntimeException( "Could not map the labels onto " + 
+					( null != labelFile ? labelFile : "a temporary file" ) + ": " + e.getMessage(), e );
+		}
+	}
+	
+	/**
+	 * Flood the input stack from the seeds, taking the voxels by
+	 * increasing value from a queue: a hierarchical queue with one
+	 * FIFO per gray level ({@link BucketQueue}) or a primitive heap
+	 * of voxel indices ({@link VoxelHeap}).
+	 * 
+	 * @param inputStack input stack
+	 * @param labels output label buffer
+	 * @param queue empty voxel queue
+	 */
+	void floodWithQueue(
+			final ImageStack inputStack,
+			final LabelBuffer labels,
+			final VoxelQueue queue )
+	{
+		progressListener.setStatus( "Extracting voxel values..." );
+		IJ.log("  Extracting voxel values..." );
+		final long t0 = System.currentTimeMillis();
+		
+		extractVoxelValues( inputStack, seedImage.getStack(), labels, queue );
+						
+		final long t1 = System.currentTimeMillis();		
+		IJ.log("  Extraction took " + (t1-t0) + " ms.");
+					    
+		// Watershed
+	    final long start = System.currentTimeMillis();
+
+	    final int count = queue.size();
+	    IJ.log( "  Flooding from " + count + " voxels..." );
+      	progressListener.setStatus( "Flooding from " + count + " voxels..." );
+	    
+      	final long numVoxels = (long) labels.width * labels.height * labels.depth;
+      	
+      	final VoxelValues values = VoxelValues.of( inputStack );
+      	final NeighborOffsets neighbors = new NeighborOffsets( connectivity, labels );
+      	final int[] offsets = neighbors.padded;
+      	final int[] sliceOffsets = neighbors.inSlice;
+      	final int[] slices = neighbors.slice;
+      	final int numNeighbors = neighbors.size();
+      	
+      	// the seeds and the voxels out of the mask are never polled, 
+      	// so the number of voxels is an upper bound of the work
+      	final ProgressTracker progress = new ProgressTracker( progressListener, numVoxels );
+      	long polled = 0;
+      	
+      	while ( queue.isEmpty() == false )
+      	{
+      		if( ++polled % ProgressTracker.BATCH_SIZE == 0 )
+      			progress.set( polled );
+
+      		final long index = queue.poll();
+      		final int k = labels.getSlice( index );
+      		final int xy = labels.getSliceOffset( index );
+
+      		float voxelValue = Float.MAX_VALUE;
+
+      		// Look in neighborhood 
+      		for( int n = 0; n < numNeighbors; ++n )
+      		{
+      			final long neighbor = index + offsets[ n ];
+      			final int label = labels.get( neighbor );
+      			// Unlabeled neighbors go into the queue if they are not there yet 
+      			if ( label == 0 )
+      			{
+      				queue.add( neighbor, values.get( k + slices[ n ], xy + sliceOffsets[ n ] ) );
+      				labels.set( neighbor, INQUEUE );
+      			}
+      			else if ( label > 0 )
+      			{
+      				// assign label of smallest neighbor
+      				final float value = values.get( k + slices[ n ], xy + sliceOffsets[ n ] );
+      				if( value <= voxelValue )
+      				{
+      					labels.set( index, label );
+      					voxelValue = value;
+      				}
+      			}
+      		}
+      	}
+      	progress.finish();
+
+		final long end = System.currentTimeMillis();
+		IJ.log("  Flooding took: " + (end-start) + " ms");
+	}
+	
+	/**
+	 * Extract the voxels neighboring the seeds into a bucket queue
+	 * (8 and 16-bit inputs only)
+	 * 
+	 * @param inputStack input stack
+	 * @param seedStack seed stack
+	 * @param labels output label buffer
+	 * @param numLevels number of gray levels of the input
+	 * @return bucket queue of voxels neighboring the seeds
+	 */
+	public BucketQueue extractVoxelValuesBucketQueue(
+			final ImageStack inputStack,
+			final ImageStack seedStack,
+			final LabelBuffer labels,
+			final int numLevels ) 
+	{
+		return extractVoxelValuesBucketQueue( inputStack, seedStack, labels, numLevels, 0, 1 );
+	}
+	
+	/**
+	 * Extract the voxels neighboring the seeds into a bucket queue,
+	 * quantizing their values (see {@link BucketQueue#quantize(float, float, float, int)})
+	 * 
+	 * @param inputStack input stack
+	 * @param seedStack seed stack
+	 * @param labels output label buffer
+	 * @param numLevels number of levels
+	 * @param min value of level 0
+	 * @param scale number of levels per unit
+	 * @return bucket queue of voxels neighboring the seeds
+	 */
+	public BucketQueue extractVoxelValuesBucketQueue(
+			final ImageStack inputStack,
+			final ImageStack seedStack,
+			final LabelBuffer labels,
+			final int numLevels,
+			final float min,
+			final float scale ) 
+	{
+		final BucketQueue queue = new BucketQueue( numLevels, min, scale );
+		extractVoxelValues( inputStack, seedStack, labels, queue );
+		return queue;
+	}
+
+	/**
+	 * Extract the voxels neighboring the seeds into a heap
+	 * 
+	 * @param inputStack input stack
+	 * @param seedStack seed stack
+	 * @param labels output label buffer
+	 * @return heap of voxels neighboring the seeds
+	 */
+	public VoxelHeap extractVoxelValuesPriorityQueue(
+			final ImageStack inputStack,
+			final ImageStack seedStack,
+			final LabelBuffer labels ) 
+	{
+		final VoxelHeap heap = new VoxelHeap();
+		extractVoxelValues( inputStack, seedStack, labels, heap );
+		return heap;
+	}
+	
+	/**
+	 * Copy the seeds into the label buffer and add the voxels 
+	 * neighboring them to a queue
+	 * 
+	 * @param inputStack input stack
+	 * @param seedStack seed stack
+	 * @param labels output label buffer
+	 * @param queue queue to add the voxels to
+	 */
+	void extractVoxelValues(
+			final ImageStack inputStack,
+			final ImageStack seedStack,
+			final LabelBuffer labels,
+			final VoxelQueue queue ) 
+	{
+	    initLabels( seedStack, labels );
+	    final long[] front = extractSeedFront( labels );
+	    
+	    final VoxelValues inputValues = VoxelValues.of( inputStack );
+	    final float[] values = new float[ front.length ];
+	    for( int i = 0; i < front.length; ++i )
+	    	values[ i ] = inputValues.get( labels.getSlice( front[ i ] ), labels.getSliceOffset( front[ i ] ) );
+	    
+	    queue.addAll( front, values, front.length );
+	}
+	
+	/**
+	 * Find the unlabeled voxels neighboring the seeds and mark them
+	 * as INQUEUE (multi-threaded). Each thread scans the seeds of a 
+	 * slab and of the slices around it, but only claims the voxels of
+	 * its own slab, so no voxel is claimed by two threads.
+	 * 
+	 * @param labels label buffer initialized with the seeds
+	 * @return padded indices of the claimed voxels, in increasing order
+	 */
+	long[] extractSeedFront( final LabelBuffer labels )
+	{
+		final int depth = labels.depth;
+		final NeighborOffsets neighbors = new NeighborOffsets( connectivity, labels );
+		
+		final AtomicInteger ai = new AtomicInteger(0);
+        final int n_cpus = Math.min( getNumThreads(), depth );
+        final int dec = (int) Math.ceil((double) depth / (double) n_cpus);
+        final long[][] fronts = new long[ n_cpus ][];
+        final int[] frontSizes = new int[ n_cpus ];
+        final ProgressTracker progress = new ProgressTracker( progressListener, depth );
+        
+        Thread[] threads = ThreadUtil.createThreadArray( n_cpus );
+		for (int ithread = 0; ithread < threads.length; ithread++) 
+		{
+			threads[ithread] = new Thread() {
+				public void run() {
+					for (int k = ai.getAndIncrement(); k < n_cpus; k = ai.getAndIncrement()) 
+					{
+						final int zmin = Math.min( dec * k, depth );
+						final int zmax = Math.min( dec * ( k + 1 ), depth );
+						long[] front = new long[ 1024 ];
+						int size = 0;
+						
+						// seeds of the slab and of its neighbor slices
+						for( int z = Math.max( zmin - 1, 0 ); z < Math.min( zmax + 1, depth ); ++z )
+						{
+							for( int y = 0; y < labels.height; ++y )
+							{
+								long index = labels.index( 0, y, z );
+								for( int x = 0; x < labels.width; ++x, ++index )
+									if( labels.get( index ) > 0 )
+										for( int n = 0; n < neighbors.size; ++n )
+										{
+											final int nz = z + neighbors.slice[ n ];
+											final long neighbor = index + neighbors.padded[ n ];
+											if( nz >= zmin && nz < zmax && labels.get( neighbor ) == 0 )
+											{
+												labels.set( neighbor, INQUEUE );
+												if( size == front.length )
+													front = Arrays.copyOf( front, size << 1 );
+												front[ size++ ] = neighbor;
+											}
+										}
+							}
+							if( z >= zmin && z < zmax )
+								progress.add( 1 );
+						}
+						Arrays.sort( front, 0, size );
+						fronts[ k ] = front;
+						frontSizes[ k ] = size;
+					}
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+		progress.finish();
+		
+		// the slabs are in increasing order of index
+		int total = 0;
+		for( final int size : frontSizes )
+			total += size;
+		final long[] front = new long[ total ];
+		for( int k = 0, pos = 0; k < n_cpus; ++k )
+		{
+			System.arraycopy( fronts[ k ], 0, front, pos, frontSizes[ k ] );
+			pos += frontSizes[ k ];
+			fronts[ k ] = null;
+		}
+		return front;
+	}
+
+	/**
+	 * Copy the seed labels into the label buffer. Voxels outside
+	 * the mask are set to BORDER so flooding never enters them
+	 * (multi-threaded, one slice at a time).
+	 * 
+	 * @param seedStack seed stack
+	 * @param labels label buffer to initialize
+	 */
+	void initLabels(
+			final ImageStack seedStack,
+			final LabelBuffer labels )
+	{
+		final MaskRuns mask = getMaskRuns();
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = ThreadUtil.createThreadArray( Math.min( getNumThreads(), labels.depth ) );
+		for (int ithread = 0; ithread < threads.length; ithread++) 
+		{
+			threads[ithread] = new Thread() {
+				public void run() {
+					for (int z = ai.getAndIncrement(); z < labels.depth; z = ai.getAndIncrement())
+						initLabels( getLabelPixels( seedStack, z+1 ), mask, z, labels, z );
+				}
+			};
+		}
+		ThreadUtil.startAndJoin(threads);
+	}
+	
+	/**
+	 * Copy the seed labels of a slice into a slice of a label buffer. 
+	 * Voxels outside the mask are set to BORDER, visiting the mask
+	 * runs of each row instead of testing every voxel.
+	 * 
+	 * @param seedPixels seed pixels of the slice
+	 * @param mask compiled mask (null for no mask)
+	 * @param maskSlice slice of the mask (0-based)
+	 * @param labels label buffer to initialize
+	 * @param z slice of the label buffer
+	 */
+	static void initLabels(
+			final Object seedPixels,
+			final MaskRuns mask,
+			final int maskSlice,
+			final LabelBuffer labels,
+			final int z )
+	{
+		for( int y = 0; y < labels.height; ++y )
+		{
+			final long rowIndex = labels.index( 0, y, z );
+			final int rowOffset = y * labels.width;
+			if( null == mask )
+			{
+				for( int x = 0; x < labels.width; ++x )
+				{
+					final int label = getLabel( seedPixels, rowOffset + x );
+					labels.set( rowIndex + x, label > 0 ? label : 0 );
+				}
+				continue;
+			}
+			
+			int x = 0;
+			final int lastRun = mask.getLastRun( y, maskSlice );
+			for( int r = mask.getFirstRun( y, maskSlice ); r < lastRun; ++r )
+			{
+				for( final int start = mask.getStart( r ); x < start; ++x )
+					labels.set( rowIndex + x, LabelBuffer.BORDER );
+				for( final int end = mask.getEnd( r ); x < end; ++x )
+				{
+					final int label = getLabel( seedPixels, rowOffset + x );
+					labels.set( rowIndex + x, label > 0 ? label : 0 );
+				}
+			}
+			for( ; x < labels.width; ++x )
+				labels.set( rowIndex + x, LabelBuffer.BORDER );
+		}
+	}
+	
+	/**
+	 * Get the mask compiled into runs of foreground voxels (computed
+	 * the first time it is needed)
+	 * @return compiled mask (null if there is no mask)
+	 */
+	MaskRuns getMaskRuns()
+	{
+		if( null == maskImage )
+			return null;
+		if( null == maskRuns )
+			maskRuns = new MaskRuns( maskImage.getImageStack(), getNumThreads() );
+		return maskRuns;
+	}
+
+	
+	/**
+	 * @return memory that can still be allocated on the heap (in bytes)
+	 */
+	static long getFreeMemory()
+	{
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
+	}
 	
+	/**
+	 * Check if a buffer can be allocated on the heap without starving
+	 * the rest of the pipeline
+	 * @param bytes size of the buffer (in bytes)
+	 * @return true if the buffer takes less than half of the free heap
+	 */
+	static boolean fitsInHeap( final long bytes )
+	{
+		return bytes < getFreeMemory() / 2;
+	}
+	
+	/**
+	 * Create the watershed domains image from the label buffer
+	 * (multi-threaded, one slice at a time)
+	 * 
+	 * @param labels label buffer after flooding
+	 * @return watershed domains image
+	 */
+	ImagePlus createLabelImage( final LabelBuffer labels )
+	{
+		return createLabelImage( labels, null );
+	}
+	
+	/**
+	 * Create the watershed domains image from the label buffer
+	 * (multi-threaded, one slice at a time). The labels of a mapped 
+	 * buffer are not copied: the image is a {@link MappedLabelStack}
+	 * reading them from the mapped file.
+	 * 
+	 * @param labels label buffer after flooding
+	 * @param outputs workspace to take the output pixels from (null
+	 * to allocate them)
+	 * @return watershed domains image
+	 */
+	ImagePlus createLabelImage( 
+			final LabelBuffer labels, 
+			final WatershedWorkspace outputs )
+	{
+		// scan the seeds once for the graph, the statistics and the label type
+		final int maxLabel = getMaxSeedLabel();
+		if( buildAdjacencyGraph )
+		{
+			IJ.log( "  Building region adjacency graph..." );
+			final long start = System.currentTimeMillis();
+			adjacencyGraph = RegionAdjacencyGraph.build( labels, VoxelValues.of( inputImage.getStack() ), 
+					connectivity, maxLabel, getNumThreads() );
+			final long end = System.currentTimeMillis();
+			IJ.log( "  Graph of " + adjacencyGraph.getNumEdges() + " edges took " + (end-start) + " ms" );
+		}
+		
+		final boolean mapped = labels instanceof MappedLabelBuffer;
+		final Object[] labelPixels = mapped ? null :
+				null != outputs && ( maxLabel <= 65535 || useIntLabels( maxLabel ) == false ) ? 
+				outputs.getLabelPixels( maxLabel <= 65535 ) :
+				allocateLabelPixels( labels.width, labels.height, labels.depth, maxLabel );
+		
+		final VoxelValues values = computeStatistics ? VoxelValues.of( inputImage.getStack() ) : null;
+		final LabelStatistics table = computeStatistics ? new LabelStatistics( maxLabel ) : null;
+		
+		if( null != labelPixels || null != table )
+		{
+			final AtomicInteger ai = new AtomicInteger(0);
+			Thread[] threads = ThreadUtil.createThreadArray( Math.min( getNumThreads(), labels.depth ) );
+			for (int ithread = 0; ithread < threads.length; ithread++) 
+			{
+				threads[ithread] = new Thread() {
+					public void run() {
+						final LabelStatistics.Accumulator accumulator = 
+								null != table ? table.newAccumulator() : null;
+						for (int z = ai.getAndIncrement(); z < labels.depth; z = ai.getAndIncrement())
+							copyLabels( labels, z, z, 1, labelPixels, values, accumulator );
+						if( null != accumulator )
+							accumulator.flush();
+					}
+				};
+			}
+			ThreadUtil.startAndJoin(threads);
+		}
+		statistics = table;
+		
+		if( mapped )
+		{
+			final MappedLabelBuffer mappedLabels = (MappedLabelBuffer) labels;
+			try {
+				mappedLabels.close();
+			} catch ( IOException e ) {
+				IJ.log( "  Could not write the labels to " + mappedLabels.getFile() + ": " + e.getMessage() );
+			}
+			final ImagePlus ws = new ImagePlus( "watershed", new MappedLabelStack( mappedLabels, maxLabel ) );
+			ws.setCalibration( inputImage.getCalibration() );
+			return ws;
+		}
+		
+		return createLabelImage( labels.width, labels.height, labelPixels );
+	}
+	
+	/**
+	 * Create the watershed domains image from its slice pixel arrays
+	 * 
+	 * @param width image width
+	 * @param height image height
+	 * @param labelPixels label pixels of each slice
+	 * @return watershed domains image
+	 */
+	ImagePlus createLabelImage( 
+			final int width, 
+			final int height, 
+			final Object[] labelPixels )
+	{
+		ImageStack labelStack = new ImageStack( width, height );
+		if( labelPixels[ 0 ] instanceof int[] )
+		{
+			final int[][] slices = new int[ labelPixels.length ][];
+			for( int z = 0; z < slices.length; ++z )
+				slices[ z ] = (int[]) labelPixels[ z ];
+			labelStack = new IntLabelStack( width, height, slices );
+		}
+		else
+			for( final Object slice : labelPixels )
+				labelStack.addSlice( "", slice );
+	    final ImagePlus ws = new ImagePlus( "watershed", labelStack );
+	    ws.setCalibration( inputImage.getCalibration() );
+	    return ws;
+	}
+	
+	/**
+	 * Allocate the slices of the output label image: 16-bit if all
+	 * the seed labels fit, integer labels (see {@link IntLabelStack}) 
+	 * if the seeds are integer labels or do not fit in a float, 32-bit
+	 * float otherwise
+	 * 
+	 * @param width image width
+	 * @param height image height
+	 * @param depth number of slices
+	 * @param maxLabel largest seed label (see {@link #getMaxSeedLabel()})
+	 * @return array of slice pixel arrays (short[], int[] or float[])
+	 */
+	Object[] allocateLabelPixels( 
+			final int width, 
+			final int height, 
+			final int depth,
+			final int maxLabel )
+	{
+		final boolean intLabels = useIntLabels( maxLabel );
+		
+		final Object[] labelPixels = new Object[ depth ];
+		for( int z = 0; z < depth; ++z )
+			labelPixels[ z ] = maxLabel <= 65535 ? new short[ width * height ] : 
+				intLabels ? (Object) new int[ width * height ] : new float[ width * height ];
+		return labelPixels;
+	}
+	
+	/**
+	 * Check if labels above 16 bits have to be written as integers
+	 * @param maxLabel largest label
+	 * @return true if the seeds are integer labels or if the largest
+	 * label is not exact in a float
+	 */
+	boolean useIntLabels( final int maxLabel )
+	{
+		return seedImage.getStack() instanceof IntLabelStack || maxLabel > ( 1 << 24 );
+	}
+	
+	/**
+	 * Get the largest label of the seed image (read one slice at a time)
+	 * @return maximum seed label
+	 */
+	int getMaxSeedLabel()
+	{
+		final ImageStack seedStack = seedImage.getStack();
+		if( seedStack instanceof IntLabelStack )
+			return ( (IntLabelStack) seedStack ).getMaxLabel();
+		final int size = seedStack.getWidth() * seedStack.getHeight();
+		int maxLabel = 0;
+		for( int z = 1; z <= seedStack.getSize(); ++z )
+		{
+			final Object seedPixels = seedStack.getPixels( z );
+			for( int i = 0; i < size; ++i )
+				maxLabel = Math.max( maxLabel, getLabel( seedPixels, i ) );
+		}
+		return maxLabel;
+	}
+	
+	/**
+	 * Copy slices of a label buffer into the slice pixel arrays of 
+	 * the label image (voxels without label are set to 0)
+	 * 
+	 * @param labels label buffer after flooding
+	 * @param firstSlice first slice of the buffer to copy
+	 * @param z0 slice of the label image to copy the first slice to (0-based)
+	 * @param numSlices number of slices to copy
+	 * @param labelPixels label pixels of each slice (short[], int[] or float[])
+	 */
+	static void copyLabels(
+			final LabelBuffer labels,
+			final int firstSlice,
+			final int z0,
+			final int numSlices,
+			final Object[] labelPixels )
+	{
+		copyLabels( labels, firstSlice, z0, numSlices, labelPixels, null, null );
+	}
+	
+	/**
+	 * Copy slices of a label buffer into the slice pixel arrays of 
+	 * the label image, adding the labelled voxels to a statistics table
+	 * (through the accumulator of the calling thread)
+	 * 
+	 * @param labels label buffer after flooding
+	 * @param firstSlice first slice of the buffer to copy
+	 * @param z0 slice of the label image to copy the first slice to (0-based)
+	 * @param numSlices number of slices to copy
+	 * @param labelPixels label pixels of each slice (short[], int[] or float[], 
+	 * null to only add the statistics)
+	 * @param inputValues input values of the image (null to only copy)
+	 * @param statistics accumulator to add the voxels to (null to only copy)
+	 */
+	static void copyLabels(
+			final LabelBuffer labels,
+			final int firstSlice,
+			final int z0,
+			final int numSlices,
+			final Object[] labelPixels,
+			final VoxelValues inputValues,
+			final LabelStatistics.Accumulator statistics )
+	{
+		for (int k = 0; k < numSlices; ++k)
+		{
+			final Object slice = null != labelPixels ? labelPixels[ z0 + k ] : null;
+			for (int j = 0, xy = 0; j < labels.height; ++j)
+			{
+				long index = labels.index( 0, j, firstSlice + k );
+				if( null != statistics )
+				{
+					for (int i = 0, xyi = xy; i < labels.width; ++i, ++xyi)
+					{
+						final int label = labels.get( index + i );
+						if( label > 0 )
+							statistics.add( label, i, j, z0 + k, inputValues.get( z0 + k, xyi ) );
+					}
+				}
+				if( null == slice )
+					continue;
+				if( slice instanceof short[] )
+				{
+					final short[] pixels = (short[]) slice;
+					for (int i = 0; i < labels.width; ++i, ++index, ++xy)
+					{
+						final int label = labels.get( index );
+						pixels[ xy ] = (short) ( label > 0 ? label : 0 );
+					}
+				}
+				else if( slice instanceof int[] )
+				{
+					final int[] pixels = (int[]) slice;
+					for (int i = 0; i < labels.width; ++i, ++index, ++xy)
+					{
+						final int label = labels.get( index );
+						pixels[ xy ] = label > 0 ? label : 0;
+					}
+				}
+				else
+				{
+					final float[] pixels = (float[]) slice;
+					for (int i = 0; i < labels.width; ++i, ++index, ++xy)
+					{
+						final int label = labels.get( index );
+						pixels[ xy ] = label > 0 ? label : 0;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Get the pixel arrays of all the slices of a stack
+	 * @param stack image stack
+	 * @return array of slice pixel arrays (byte[], short[] or float[])
+	 */
+	static Object[] getPixels( final ImageStack stack )
+	{
+		final Object[] pixels = new Object[ stack.getSize() ];
+		for( int z = 0; z < pixels.length; ++z )
+			pixels[ z ] = stack.getPixels( z+1 );
+		return pixels;
+	}
+	
+	/**
+	 * Get the label slices of a stack, as integers for an
+	 * {@link IntLabelStack}
+	 * @param stack label stack
+	 * @return array of slice pixel arrays (byte[], short[], int[] or float[])
+	 */
+	static Object[] getLabelPixels( final ImageStack stack )
+	{
+		final Object[] pixels = new Object[ stack.getSize() ];
+		for( int z = 0; z < pixels.length; ++z )
+			pixels[ z ] = getLabelPixels( stack, z+1 );
+		return pixels;
+	}
+	
+	/**
+	 * Get a label slice of a stack, as integers for an
+	 * {@link IntLabelStack}
+	 * @param stack label stack
+	 * @param n slice number (1-based)
+	 * @return slice pixel array (byte[], short[], int[] or float[])
+	 */
+	static Object getLabelPixels( final ImageStack stack, final int n )
+	{
+		if( stack instanceof IntLabelStack )
+			return ( (IntLabelStack) stack ).getLabels( n );
+		return stack.getPixels( n );
+	}
+	
+	/**
+	 * Read a label from a slice pixel array
+	 * @param pixels slice pixel array (int[], byte[], short[] or float[])
+	 * @param index position in the slice (x + y * width)
+	 * @return voxel label
+	 */
+	static int getLabel( final Object pixels, final int index )
+	{
+		if( pixels instanceof int[] )
+			return ( (int[]) pixels )[ index ];
+		return (int) getValue( pixels, index );
+	}
+	
+	/**
+	 * Read a voxel value from a slice pixel array
+	 * @param pixels slice pixel array (byte[], short[] or float[])
+	 * @param index position in the slice (x + y * width)
+	 * @return voxel value
+	 */
+	static float getValue( final Object pixels, final int index )
+	{
+		if( pixels instanceof byte[] )
+			return ( (byte[]) pixels )[ index ] & 0xff;
+		if( pixels instanceof short[] )
+			return ( (short[]) pixels )[ index ] & 0xffff;
+		return ( (float[]) pixels )[ index ];
+	}
 	
 }
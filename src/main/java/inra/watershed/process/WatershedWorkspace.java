@@ -0,0 +1,205 @@
+package inra.watershed.process;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras, Philippe Andrey, Axel Poulet
+ */
+
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Buffers of the watershed pipeline (regional minima, connected 
+ * components and sorted-voxel flooding) for volumes of one size, kept
+ * to be reused by successive runs instead of allocating them again.
+ * Each buffer is allocated the first time it is needed. The images 
+ * given by a run share the buffers of the workspace, so they are only
+ * valid until the next run with the same workspace. Only the 
+ * sorted-voxel flooding ({@link WatershedTransform3D#apply()}) writes 
+ * its output into the workspace: the other flooding methods allocate
+ * their own output image.
+ */
+public class WatershedWorkspace
+{
+	/**
+	 * Receiver of the results of a batch of runs
+	 */
+	public interface ResultHandler
+	{
+		/**
+		 * Handle the watershed domains of an image of the batch (the
+		 * result is overwritten by the next run)
+		 * @param index position of the image in the batch
+		 * @param input input image
+		 * @param result watershed domains image
+		 */
+		void handle( int index, ImagePlus input, ImagePlus result );
+	}
+
+	/** volume width */
+	final int width;
+	/** volume height */
+	final int height;
+	/** volume depth */
+	final int depth;
+
+	/** binary image of the regional minima */
+	ImageStack minimaStack = null;
+	/** union-find forest of the plateaus of the regional minima */
+	int[] plateauParent = null;
+	/** labels of the connected components */
+	IntLabelStack componentLabels = null;
+	/** union-find table of the connected components */
+	int[] parent = new int[ 1024 ];
+	/** padded labels of the flooding */
+	LabelBuffer labels = null;
+	/** keys and indices of the voxels to sort, and their sorting buffers */
+	int[] keys = null;
+	int[] voxels = null;
+	int[] sortKeys = null;
+	int[] sortVoxels = null;
+	/** digit counts of the sorting threads */
+	int[][] sortCounts = null;
+	/** values of the sorted voxels */
+	float[] values = null;
+	/** queue and labels of the waves of the flooding */
+	final IntFifo fifo = new IntFifo();
+	int[] waveVoxels = new int[ 1024 ];
+	int[] waveLabels = new int[ 1024 ];
+	/** slices of the output label image (short[] or float[]) */
+	Object[] labelPixels = null;
+
+	/**
+	 * Create a workspace for volumes of a given size
+	 * @param width volume width
+	 * @param height volume height
+	 * @param depth volume depth
+	 */
+	public WatershedWorkspace(
+			final int width,
+			final int height,
+			final int depth )
+	{
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+	}
+
+	/**
+	 * Create a workspace for volumes of the size of an image
+	 * @param image image to process
+	 */
+	public WatershedWorkspace( final ImagePlus image )
+	{
+		this( image.getWidth(), image.getHeight(), image.getImageStackSize() );
+	}
+
+	/**
+	 * Check if an image can be processed with this workspace
+	 * @param image image to process
+	 * @return true if the image has the size of the workspace
+	 */
+	public boolean fits( final ImagePlus image )
+	{
+		return image.getWidth() == width && image.getHeight() == height
+				&& image.getImageStackSize() == depth;
+	}
+
+	/**
+	 * @param bitDepth bit depth of the input image
+	 * @return stack for the regional minima, with the bit depth of the input
+	 */
+	ImageStack getMinimaStack( final int bitDepth )
+	{
+		if( null == minimaStack || minimaStack.getBitDepth() != bitDepth )
+			minimaStack = ImageStack.create( width, height, depth, bitDepth );
+		return minimaStack;
+	}
+
+	/**
+	 * @return parent of each voxel in the plateau forest
+	 */
+	int[] getPlateauParent()
+	{
+		if( null == plateauParent )
+			plateauParent = new int[ width * height * depth ];
+		return plateauParent;
+	}
+
+	/**
+	 * @return label stack for the connected components
+	 */
+	IntLabelStack getComponentLabels()
+	{
+		if( null == componentLabels )
+			componentLabels = new IntLabelStack( width, height, depth );
+		return componentLabels;
+	}
+
+	/**
+	 * @return padded label buffer (with the border set to BORDER)
+	 */
+	LabelBuffer getLabels()
+	{
+		if( null == labels )
+			labels = new LabelBuffer( width, height, depth );
+		return labels;
+	}
+
+	/**
+	 * Make sure the voxel buffers can hold a number of voxels
+	 * @param count number of voxels to sort
+	 */
+	void ensureVoxelCapacity( final int count )
+	{
+		if( null != keys && keys.length >= count )
+			return;
+		keys = new int[ count ];
+		voxels = new int[ count ];
+		sortKeys = new int[ count ];
+		sortVoxels = new int[ count ];
+		values = new float[ count ];
+	}
+
+	/**
+	 * @param numThreads number of sorting threads
+	 * @return digit counts for {@link VoxelSorter}
+	 */
+	int[][] getSortCounts( final int numThreads )
+	{
+		if( null == sortCounts || sortCounts.length < numThreads )
+			sortCounts = new int[ numThreads ][ 1 << VoxelSorter.MAX_DIGIT_BITS ];
+		return sortCounts;
+	}
+
+	/**
+	 * @param shortLabels true for 16-bit labels, false for 32-bit labels
+	 * @return slices of the output label image
+	 */
+	Object[] getLabelPixels( final boolean shortLabels )
+	{
+		if( null == labelPixels || ( labelPixels[ 0 ] instanceof short[] ) != shortLabels )
+		{
+			labelPixels = new Object[ depth ];
+			for( int z = 0; z < depth; ++z )
+				labelPixels[ z ] = shortLabels ? new short[ width * height ] : new float[ width * height ];
+		}
+		return labelPixels;
+	}
+}
@@ -0,0 +1,115 @@
+package inra.watershed.process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+ * Tests of the integer label stacks returned by the watershed.
+ */
+public class IntLabelStackTest
+{
+	/** label of the first seed (above the float precision limit) */
+	static final int FIRST_LABEL = ( 1 << 24 ) + 1;
+
+	/**
+	 * Watershed of a 8x8x120 volume with two seeds labelled above 2^24
+	 * @return labeled image
+	 */
+	static ImagePlus segment()
+	{
+		final int width = 8, height = 8, depth = 120;
+		final ImageStack input = ImageStack.create( width, height, depth, 32 );
+		for( int z = 0; z < depth; ++z )
+			for( int y = 0; y < height; ++y )
+				for( int x = 0; x < width; ++x )
+					input.setVoxel( x, y, z, Math.min( z, depth - 1 - z ) );
+
+		final IntLabelStack seeds = new IntLabelStack( width, height, depth );
+		seeds.setLabel( 3, 3, 0, FIRST_LABEL );
+		seeds.setLabel( 3, 3, depth - 1, FIRST_LABEL + 1 );
+
+		final WatershedTransform3D wt = new WatershedTransform3D(
+				new ImagePlus( "input", input ), new ImagePlus( "seeds", seeds ), null );
+		return wt.apply();
+	}
+
+	@Test
+	public void testResultWithManySlices()
+	{
+		final ImageStack stack = segment().getStack();
+		assertTrue( stack instanceof IntLabelStack );
+		final IntLabelStack labels = (IntLabelStack) stack;
+		assertEquals( 120, labels.getSize() );
+		assertEquals( FIRST_LABEL, labels.getLabel( 0, 0, 0 ) );
+		assertEquals( FIRST_LABEL + 1, labels.getLabel( 7, 7, 119 ) );
+
+		// slice labels beyond the 100th slice
+		for( int n = 1; n <= labels.getSize(); ++n )
+			labels.setSliceLabel( "slice-" + n, n );
+		assertEquals( "slice-110", labels.getSliceLabel( 110 ) );
+	}
+
+	@Test
+	public void testEditSlices()
+	{
+		final IntLabelStack labels = (IntLabelStack) segment().getStack();
+
+		// an edited processor is kept once written back
+		final ImageProcessor ip = labels.getProcessor( 110 );
+		ip.setf( 2, 5, 7 );
+		labels.setPixels( ip.getPixels(), 110 );
+		assertEquals( 7, labels.getLabel( 2, 5, 109 ) );
+		assertEquals( 7, (int) ( (float[]) labels.getPixels( 110 ) )[ 2 + 5 * 8 ] );
+
+		// integer slices are added without conversion
+		final int[] slice = new int[ 8 * 8 ];
+		slice[ 0 ] = FIRST_LABEL + 2;
+		labels.addSlice( "added", slice );
+		assertEquals( 121, labels.getSize() );
+		assertEquals( "added", labels.getSliceLabel( 121 ) );
+		assertEquals( FIRST_LABEL + 2, labels.getLabel( 0, 0, 120 ) );
+
+		// deleting a slice shifts the labels and names of the next ones
+		labels.setSliceLabel( "slice-106", 106 );
+		final int[] next = labels.getLabels( 106 ).clone();
+		labels.deleteSlice( 105 );
+		assertEquals( 120, labels.getSize() );
+		assertEquals( "slice-106", labels.getSliceLabel( 105 ) );
+		assertArrayEquals( next, labels.getLabels( 105 ) );
+		labels.deleteLastSlice();
+		assertEquals( 119, labels.getSize() );
+	}
+
+	@Test
+	public void testIncrementalPromotion()
+	{
+		final int width = 8, height = 8, depth = 40;
+		final ImageStack input = ImageStack.create( width, height, depth, 32 );
+		for( int z = 0; z < depth; ++z )
+			for( int y = 0; y < height; ++y )
+				for( int x = 0; x < width; ++x )
+					input.setVoxel( x, y, z, Math.min( z, depth - 1 - z ) );
+
+		// 32-bit float labels
+		final ImageStack seeds = ImageStack.create( width, height, depth, 32 );
+		seeds.setVoxel( 3, 3, 0, 70000 );
+		seeds.setVoxel( 3, 3, depth - 1, 70001 );
+		final WatershedTransform3D wt = new WatershedTransform3D(
+				new ImagePlus( "input", input ), new ImagePlus( "seeds", seeds ), null );
+		assertEquals( 32, wt.applyIncremental().getBitDepth() );
+
+		// a label above 2^24 is not exact in a float anymore
+		wt.setSeed( 3, 3, 0, FIRST_LABEL + 1 );
+		final ImageStack stack = wt.updateIncremental().getStack();
+		assertTrue( stack instanceof IntLabelStack );
+		assertEquals( FIRST_LABEL + 1, ( (IntLabelStack) stack ).getLabel( 0, 0, 0 ) );
+		assertEquals( 70001, ( (IntLabelStack) stack ).getLabel( 7, 7, depth - 1 ) );
+	}
+}
@@ -0,0 +1,126 @@
+package inra.watershed.process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Tests of the label buffers stored in one array and in chunks.
+ */
+public class LabelBufferTest
+{
+	/** chunk size small enough to split the test volumes */
+	static final int CHUNK_BITS = 6;
+
+	/**
+	 * Check that two label buffers hold the same labels, border included
+	 * @param expected expected labels
+	 * @param actual labels to check
+	 */
+	static void assertSameBuffer( final LabelBuffer expected, final LabelBuffer actual )
+	{
+		final long size = LabelBuffer.paddedSize( expected.width, expected.height, expected.depth );
+		for( long index = 0; index < size; ++index )
+			assertEquals( "index " + index, expected.get( index ), actual.get( index ) );
+	}
+
+	/**
+	 * Copy a stack into a 32-bit stack
+	 * @param stack input stack
+	 * @return 32-bit stack
+	 */
+	static ImageStack toFloat( final ImageStack stack )
+	{
+		final ImageStack result = ImageStack.create( stack.getWidth(), stack.getHeight(), stack.getSize(), 32 );
+		for( int z = 0; z < stack.getSize(); ++z )
+			for( int y = 0; y < stack.getHeight(); ++y )
+				for( int x = 0; x < stack.getWidth(); ++x )
+					result.setVoxel( x, y, z, stack.getVoxel( x, y, z ) );
+		return result;
+	}
+
+	@Test
+	public void testChunkedMatchesArray()
+	{
+		final LabelBuffer array = new LabelBuffer( 13, 11, 7 );
+		final LabelBuffer chunked = new ChunkedLabelBuffer( 13, 11, 7, CHUNK_BITS );
+		assertSameBuffer( array, chunked );
+
+		// ranges across several chunks, then single voxels
+		final Random random = new Random( 1 );
+		final int size = (int) LabelBuffer.paddedSize( 13, 11, 7 );
+		for( int i = 0; i < 20; ++i )
+		{
+			final int from = random.nextInt( size );
+			final int to = from + random.nextInt( Math.min( size - from, 300 ) + 1 );
+			array.fill( from, to, i + 1 );
+			chunked.fill( from, to, i + 1 );
+		}
+		for( int i = 0; i < 500; ++i )
+		{
+			final int x = random.nextInt( 13 ), y = random.nextInt( 11 ), z = random.nextInt( 7 );
+			array.set( x, y, z, i );
+			chunked.set( x, y, z, i );
+		}
+		assertSameBuffer( array, chunked );
+		assertEquals( array.index( 12, 10, 6 ), array.arrayIndex( 12, 10, 6 ) );
+	}
+
+	@Test
+	public void testQueueFloodingWithChunkedLabels()
+	{
+		for( long seed = 1; seed <= 2; ++seed )
+			for( final int bitDepth : new int[]{ 8, 32 } )
+				for( final ImagePlus mask : new ImagePlus[]{ null, WatershedTransform3DTest.createMask() } )
+				{
+					final ImagePlus input = WatershedTransform3DTest.createInput( seed );
+					if( bitDepth == 32 )
+						input.setStack( toFloat( input.getStack() ) );
+					final ImagePlus seeds = WatershedTransform3DTest.createSeeds( seed );
+
+					final WatershedTransform3D wt = new WatershedTransform3D( input, seeds, mask );
+					final ImagePlus expected = wt.applyWithPriorityQueue();
+
+					final ImageStack stack = input.getStack();
+					final LabelBuffer labels = new ChunkedLabelBuffer(
+							stack.getWidth(), stack.getHeight(), stack.getSize(), CHUNK_BITS );
+					wt.floodWithQueue( stack, labels, bitDepth == 8 ? new BucketQueue( 256 ) : new VoxelHeap() );
+					WatershedTransform3DTest.assertSameLabels( expected, wt.createLabelImage( labels ),
+							"seed " + seed + ", " + bitDepth + "-bit" + ( null != mask ? ", mask" : "" ) );
+				}
+	}
+
+	@Test
+	public void testMappedLabelsAreReturnedWithoutCopy() throws IOException
+	{
+		for( final ImagePlus mask : new ImagePlus[]{ null, WatershedTransform3DTest.createMask() } )
+		{
+			final ImagePlus input = WatershedTransform3DTest.createInput( 3 );
+			final ImagePlus seeds = WatershedTransform3DTest.createSeeds( 3 );
+			final ImagePlus expected = new WatershedTransform3D( input, seeds, mask ).applyWithPriorityQueue();
+
+			final File file = File.createTempFile( "labels", ".raw" );
+			file.deleteOnExit();
+			final WatershedTransform3D wt = new WatershedTransform3D( input, seeds, mask );
+			wt.setLabelFile( file );
+			final ImagePlus mapped = wt.applyWithPriorityQueue();
+			assertTrue( mapped.getStack() instanceof MappedLabelStack );
+			WatershedTransform3DTest.assertSameLabels( expected, mapped, "mapped" + ( null != mask ? ", mask" : "" ) );
+
+			// the slices read from the file hold the same labels
+			final ImageStack stack = mapped.getStack();
+			final ImageStack expectedStack = expected.getStack();
+			for( int n = 1; n <= stack.getSize(); ++n )
+				assertEquals( "slice " + n, (long) expectedStack.getProcessor( n ).getf( 11, 9 ), 
+						(long) stack.getProcessor( n ).getf( 11, 9 ) );
+		}
+	}
+}
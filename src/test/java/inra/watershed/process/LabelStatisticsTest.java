@@ -0,0 +1,154 @@
+package inra.watershed.process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+
+/**
+ * Tests of the domain statistics accumulated by several threads.
+ */
+public class LabelStatisticsTest
+{
+	/**
+	 * Check a statistics table against a serial scan of a label image
+	 * @param expected table filled by a serial scan
+	 * @param actual table to check
+	 * @param message description of the run
+	 */
+	static void assertSameStatistics( final LabelStatistics expected, final LabelStatistics actual, final String message )
+	{
+		assertEquals( message, expected.getNumLabels(), actual.getNumLabels() );
+		for( int label = 1; label <= expected.getNumLabels(); ++label )
+		{
+			final String run = message + ", label " + label;
+			assertEquals( run, expected.getCount( label ), actual.getCount( label ) );
+			assertArrayEquals( run, expected.getBoundingBox( label ), actual.getBoundingBox( label ) );
+			assertEquals( run, expected.getMin( label ), actual.getMin( label ), 0 );
+			assertEquals( run, expected.getMax( label ), actual.getMax( label ), 0 );
+			if( expected.getCount( label ) == 0 )
+				continue;
+			// sums added in another order
+			assertEquals( run, expected.getMean( label ), actual.getMean( label ), 1e-9 );
+			for( int d = 0; d < 3; ++d )
+				assertEquals( run, expected.getCentroid( label )[ d ], actual.getCentroid( label )[ d ], 1e-9 );
+		}
+	}
+
+	/**
+	 * Serial scan of a label image
+	 * @param labels label image
+	 * @param input input image
+	 * @param numLabels largest label
+	 * @return statistics of the labels
+	 */
+	static LabelStatistics scan( final ImagePlus labels, final ImagePlus input, final int numLabels )
+	{
+		final LabelStatistics table = new LabelStatistics( numLabels );
+		final ImageStack l = labels.getStack();
+		final ImageStack v = input.getStack();
+		for( int z = 0; z < l.getSize(); ++z )
+			for( int y = 0; y < l.getHeight(); ++y )
+				for( int x = 0; x < l.getWidth(); ++x )
+				{
+					final int label = (int) l.getVoxel( x, y, z );
+					if( label > 0 )
+						table.add( label, x, y, z, (float) v.getVoxel( x, y, z ) );
+				}
+		return table;
+	}
+
+	@Test
+	public void testAccumulatorsMatchSerialScan()
+	{
+		// enough labels for all the label ranges, and enough voxels to fill their buffers
+		final int numLabels = 5000;
+		final int numThreads = 4;
+		final int perThread = 200000;
+		final Random random = new Random( 1 );
+		final int[][] voxels = new int[ numThreads ][ 4 * perThread ];
+		final float[][] values = new float[ numThreads ][ perThread ];
+		final LabelStatistics expected = new LabelStatistics( numLabels );
+		for( int t = 0; t < numThreads; ++t )
+			for( int i = 0; i < perThread; ++i )
+			{
+				// skewed labels, so some ranges are flushed much more often
+				final int label = 1 + Math.min( numLabels - 1, (int) Math.abs( random.nextGaussian() * numLabels / 4 ) );
+				voxels[ t ][ 4 * i ] = label;
+				voxels[ t ][ 4 * i + 1 ] = random.nextInt( 500 );
+				voxels[ t ][ 4 * i + 2 ] = random.nextInt( 500 );
+				voxels[ t ][ 4 * i + 3 ] = random.nextInt( 500 );
+				values[ t ][ i ] = random.nextFloat() * 100;
+				expected.add( label, voxels[ t ][ 4 * i + 1 ], voxels[ t ][ 4 * i + 2 ],
+						voxels[ t ][ 4 * i + 3 ], values[ t ][ i ] );
+			}
+
+		final LabelStatistics actual = new LabelStatistics( numLabels );
+		final Thread[] threads = new Thread[ numThreads ];
+		for( int t = 0; t < numThreads; ++t )
+		{
+			final int[] v = voxels[ t ];
+			final float[] w = values[ t ];
+			threads[ t ] = new Thread() {
+				public void run() {
+					final LabelStatistics.Accumulator accumulator = actual.newAccumulator();
+					for( int i = 0; i < perThread; ++i )
+						accumulator.add( v[ 4 * i ], v[ 4 * i + 1 ], v[ 4 * i + 2 ], v[ 4 * i + 3 ], w[ i ] );
+					accumulator.flush();
+				}
+			};
+			threads[ t ].start();
+		}
+		for( final Thread thread : threads )
+		{
+			try {
+				thread.join();
+			} catch ( InterruptedException e ) {
+				throw new RuntimeException( e );
+			}
+		}
+		assertSameStatistics( expected, actual, numThreads + " threads" );
+	}
+
+	@Test
+	public void testWatershedStatisticsMatchSerialScan()
+	{
+		final int threads = Prefs.getThreads();
+		try
+		{
+			for( final ImagePlus mask : new ImagePlus[]{ null, WatershedTransform3DTest.createMask() } )
+				for( final int numThreads : new int[]{ 1, 4 } )
+				{
+					Prefs.setThreads( numThreads );
+					final ImagePlus input = WatershedTransform3DTest.createInput( 1 );
+					final ImagePlus seeds = WatershedTransform3DTest.createSeeds( 1 );
+					final String run = numThreads + " threads" + ( null != mask ? ", mask" : "" );
+
+					final WatershedTransform3D sorted = new WatershedTransform3D( input, seeds, mask );
+					sorted.setComputeStatistics( true );
+					final ImagePlus labels = sorted.apply();
+					assertSameStatistics( scan( labels, input, 12 ), sorted.getStatistics(), run + ", sorted" );
+
+					final WatershedTransform3D queue = new WatershedTransform3D( input, seeds, mask );
+					queue.setComputeStatistics( true );
+					final ImagePlus queueLabels = queue.applyWithPriorityQueue();
+					assertSameStatistics( scan( queueLabels, input, 12 ), queue.getStatistics(), run + ", queue" );
+
+					final WatershedTransform3D slabs = new WatershedTransform3D( input, seeds, mask );
+					slabs.setComputeStatistics( true );
+					final ImagePlus slabLabels = slabs.applyParallel();
+					assertSameStatistics( scan( slabLabels, input, 12 ), slabs.getStatistics(), run + ", slabs" );
+				}
+		}
+		finally
+		{
+			Prefs.setThreads( threads );
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package inra.watershed.process;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.Prefs;
+
+/**
+ * Tests of the regional extrema found by plateau labelling.
+ */
+public class PlateauUnionFindTest
+{
+	/**
+	 * Random volume with few gray levels, holding two plateaus through
+	 * all the slices, walled by a higher level: one without lower
+	 * neighbor, and one with a lower voxel in its last slice only
+	 * @param seed random seed
+	 * @return input stack
+	 */
+	static ImageStack createInput( final long seed )
+	{
+		final Random random = new Random( seed );
+		final ImageStack stack = ImageStack.create( 23, 19, 17, 8 );
+		for( int z = 0; z < stack.getSize(); ++z )
+			for( int y = 0; y < stack.getHeight(); ++y )
+				for( int x = 0; x < stack.getWidth(); ++x )
+				{
+					final boolean left = x >= 1 && x <= 7 && y >= 1 && y <= 7;
+					final boolean right = x >= 13 && x <= 19 && y >= 9 && y <= 15;
+					if( left || right )
+					{
+						final boolean inside = left ? x > 1 && x < 7 && y > 1 && y < 7 :
+							x > 13 && x < 19 && y > 9 && y < 15;
+						stack.setVoxel( x, y, z, inside ? 1 : 5 );
+					}
+					else
+						stack.setVoxel( x, y, z, random.nextInt( 3 ) );
+				}
+		stack.setVoxel( 16, 12, stack.getSize() - 1, 0 );
+		return stack;
+	}
+
+	/**
+	 * Regional extrema by definition: plateaus (connected voxels of
+	 * equal value inside the mask) none of whose voxels has a lower
+	 * (higher) neighbor inside the mask
+	 * @param stack input stack
+	 * @param mask mask stack (null for no mask)
+	 * @param connectivity voxel connectivity (6, 18 or 26)
+	 * @param maximum true for regional maxima, false for regional minima
+	 * @return 1 on the regional extrema, 0 elsewhere (x + y * width + z * width * height)
+	 */
+	static int[] bruteForce(
+			final ImageStack stack,
+			final ImageStack mask,
+			final int connectivity,
+			final boolean maximum )
+	{
+		final int width = stack.getWidth(), height = stack.getHeight(), depth = stack.getSize();
+		final int[][] shifts = NeighborOffsets.getShifts( connectivity );
+		final int size = width * height * depth;
+		final boolean[] inside = new boolean[ size ];
+		final boolean[] flagged = new boolean[ size ];
+		for( int i = 0; i < size; ++i )
+			inside[ i ] = null == mask || mask.getVoxel( i % width, i / width % height, i / ( width * height ) ) > 0;
+
+		// voxels differing from the extremum of their neighborhood
+		for( int i = 0; i < size; ++i )
+		{
+			if( inside[ i ] == false )
+				continue;
+			final int x = i % width, y = i / width % height, z = i / ( width * height );
+			final double value = stack.getVoxel( x, y, z );
+			for( final int[] s : shifts )
+			{
+				final int xx = x + s[ 0 ], yy = y + s[ 1 ], zz = z + s[ 2 ];
+				if( xx < 0 || xx >= width || yy < 0 || yy >= height || zz < 0 || zz >= depth
+						|| inside[ xx + yy * width + zz * width * height ] == false )
+					continue;
+				final double neighbor = stack.getVoxel( xx, yy, zz );
+				if( maximum ? neighbor > value : neighbor < value )
+					flagged[ i ] = true;
+			}
+		}
+
+		// plateaus without flagged voxel
+		final int[] result = new int[ size ];
+		final boolean[] visited = new boolean[ size ];
+		final int[] plateau = new int[ size ];
+		for( int i = 0; i < size; ++i )
+		{
+			if( inside[ i ] == false || visited[ i ] )
+				continue;
+			final double value = stack.getVoxel( i % width, i / width % height, i / ( width * height ) );
+			int n = 0;
+			boolean extremum = true;
+			plateau[ n++ ] = i;
+			visited[ i ] = true;
+			for( int k = 0; k < n; ++k )
+			{
+				final int j = plateau[ k ];
+				extremum &= flagged[ j ] == false;
+				final int x = j % width, y = j / width % height, z = j / ( width * height );
+				for( final int[] s : shifts )
+				{
+					final int xx = x + s[ 0 ], yy = y + s[ 1 ], zz = z + s[ 2 ];
+					if( xx < 0 || xx >= width || yy < 0 || yy >= height || zz < 0 || zz >= depth )
+						continue;
+					final int neighbor = xx + yy * width + zz * width * height;
+					if( inside[ neighbor ] && visited[ neighbor ] == false
+							&& stack.getVoxel( xx, yy, zz ) == value )
+					{
+						visited[ neighbor ] = true;
+						plateau[ n++ ] = neighbor;
+					}
+				}
+			}
+			for( int k = 0; k < n; ++k )
+				result[ plateau[ k ] ] = extremum ? 1 : 0;
+		}
+		return result;
+	}
+
+	/**
+	 * Check the output of a plateau labelling against the brute-force extrema
+	 * @param expected expected extrema
+	 * @param output output stack
+	 * @param message description of the run
+	 */
+	static void assertSameExtrema( final int[] expected, final ImageStack output, final String message )
+	{
+		final int width = output.getWidth(), height = output.getHeight();
+		for( int i = 0; i < expected.length; ++i )
+			assertEquals( message + " at " + i, expected[ i ],
+					(int) output.getVoxel( i % width, i / width % height, i / ( width * height ) ) );
+	}
+
+	@Test
+	public void testMatchesBruteForce()
+	{
+		final int threads = Prefs.getThreads();
+		try
+		{
+			final ImageStack maskStack = WatershedTransform3DTest.createMask().getStack();
+			for( long seed = 1; seed <= 2; ++seed )
+				for( final int connectivity : new int[]{ 6, 18, 26 } )
+					for( final boolean maximum : new boolean[]{ false, true } )
+						for( final ImageStack mask : new ImageStack[]{ null, maskStack } )
+						{
+							final ImageStack input = createInput( seed );
+							final int[] expected = bruteForce( input, mask, connectivity, maximum );
+							final MaskRuns runs = null != mask ? new MaskRuns( mask ) : null;
+							final String run = "seed " + seed + ", connectivity " + connectivity +
+									( maximum ? ", maxima" : ", minima" ) + ( null != mask ? ", mask" : "" );
+
+							// slabs of 17, 6, 5 and 3 slices, joined across their borders
+							for( final int numThreads : new int[]{ 1, 3, 4, 7 } )
+							{
+								Prefs.setThreads( numThreads );
+								final ImageStack output = ImageStack.create( 23, 19, 17, 8 );
+								new PlateauUnionFind( input, runs, connectivity, maximum ).apply( output );
+								assertSameExtrema( expected, output, run + ", " + numThreads + " threads" );
+							}
+
+							// one slice at a time, without forest
+							final ImageStack output = ImageStack.create( 23, 19, 17, 16 );
+							new PlateauUnionFind( input, runs, connectivity, maximum, (int[]) null ).apply( output );
+							assertSameExtrema( expected, output, run + ", without forest" );
+
+							// the plateaus through all the slices
+							if( null == mask && maximum == false )
+							{
+								assertEquals( run, 1, expected[ 4 + 4 * 23 + 8 * 23 * 19 ] );
+								assertEquals( run, 0, expected[ 16 + 11 * 23 ] );
+							}
+						}
+		}
+		finally
+		{
+			Prefs.setThreads( threads );
+		}
+	}
+}
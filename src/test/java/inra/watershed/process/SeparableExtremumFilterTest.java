@@ -0,0 +1,70 @@
+package inra.watershed.process;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Tests of the separable box erosion and dilation.
+ */
+public class SeparableExtremumFilterTest
+{
+	/**
+	 * Extremum of a box around a voxel, clipped to the volume
+	 * @param stack input stack
+	 * @param radius radius of the box along x, y and z
+	 * @param maximum true for a maximum, false for a minimum
+	 * @param x x- coordinate
+	 * @param y y- coordinate
+	 * @param z z- coordinate
+	 * @return extremum of the box
+	 */
+	static double naive(
+			final ImageStack stack,
+			final int[] radius,
+			final boolean maximum,
+			final int x,
+			final int y,
+			final int z )
+	{
+		double extremum = stack.getVoxel( x, y, z );
+		for( int zz = Math.max( 0, z - radius[ 2 ] ); zz <= Math.min( stack.getSize() - 1, z + radius[ 2 ] ); ++zz )
+			for( int yy = Math.max( 0, y - radius[ 1 ] ); yy <= Math.min( stack.getHeight() - 1, y + radius[ 1 ] ); ++yy )
+				for( int xx = Math.max( 0, x - radius[ 0 ] ); xx <= Math.min( stack.getWidth() - 1, x + radius[ 0 ] ); ++xx )
+				{
+					final double value = stack.getVoxel( xx, yy, zz );
+					extremum = maximum ? Math.max( extremum, value ) : Math.min( extremum, value );
+				}
+		return extremum;
+	}
+
+	@Test
+	public void testMatchesNaiveBox()
+	{
+		// radii of 0 (axis skipped), 1, of blocks that do not divide
+		// the lines, and larger than the volume
+		final int[][] radii = { { 1, 1, 1 }, { 2, 0, 3 }, { 0, 4, 1 }, { 3, 2, 0 }, { 9, 1, 12 } };
+		for( final int bitDepth : new int[]{ 8, 16, 32 } )
+			for( final int[] radius : radii )
+				for( final boolean maximum : new boolean[]{ false, true } )
+				{
+					final ImageStack input = SlidingExtremumFilterTest.createInput( bitDepth + radius[ 0 ], bitDepth );
+					final SeparableExtremumFilter filter = new SeparableExtremumFilter( radius[ 0 ], radius[ 1 ], radius[ 2 ] );
+					filter.setProgressListener( ProgressListener.NONE );
+					final ImagePlus image = new ImagePlus( "input", input );
+					final ImageStack output = ( maximum ? filter.dilate( image ) : filter.erode( image ) ).getStack();
+					assertEquals( bitDepth, output.getBitDepth() );
+
+					final String run = bitDepth + "-bit, radius " + radius[ 0 ] + "x" + radius[ 1 ] + "x" + radius[ 2 ] +
+							( maximum ? ", dilation" : ", erosion" );
+					for( int z = 0; z < input.getSize(); ++z )
+						for( int y = 0; y < input.getHeight(); ++y )
+							for( int x = 0; x < input.getWidth(); ++x )
+								assertEquals( run + " at " + x + "," + y + "," + z,
+										naive( input, radius, maximum, x, y, z ), output.getVoxel( x, y, z ), 0 );
+				}
+	}
+}
@@ -0,0 +1,109 @@
+package inra.watershed.process;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+
+/**
+ * Tests of the neighborhood extremum filter with a rolling window of slices.
+ */
+public class SlidingExtremumFilterTest
+{
+	/**
+	 * Random volume
+	 * @param seed random seed
+	 * @param bitDepth 8, 16 or 32
+	 * @return input stack
+	 */
+	static ImageStack createInput( final long seed, final int bitDepth )
+	{
+		final Random random = new Random( seed );
+		final ImageStack stack = ImageStack.create( 13, 11, 9, bitDepth );
+		for( int z = 0; z < stack.getSize(); ++z )
+			for( int y = 0; y < stack.getHeight(); ++y )
+				for( int x = 0; x < stack.getWidth(); ++x )
+					stack.setVoxel( x, y, z, bitDepth == 32 ?
+							(float) random.nextGaussian() * 100 : random.nextInt( 1 << bitDepth ) );
+		return stack;
+	}
+
+	/**
+	 * Mask of a ball in the middle of the volume
+	 * @return mask stack
+	 */
+	static ImageStack createMask()
+	{
+		final ImageStack stack = ImageStack.create( 13, 11, 9, 8 );
+		for( int z = 0; z < stack.getSize(); ++z )
+			for( int y = 0; y < stack.getHeight(); ++y )
+				for( int x = 0; x < stack.getWidth(); ++x )
+					if( ( x - 6 ) * ( x - 6 ) + ( y - 5 ) * ( y - 5 ) + ( z - 4 ) * ( z - 4 ) <= 16 )
+						stack.setVoxel( x, y, z, 255 );
+		return stack;
+	}
+
+	/**
+	 * Extremum of the neighborhood of a voxel and of the voxel itself,
+	 * ignoring the voxels outside the mask
+	 * @param stack input stack
+	 * @param mask mask stack (null for no mask)
+	 * @param connectivity voxel connectivity (6, 18 or 26)
+	 * @param maximum true for a maximum, false for a minimum
+	 * @param x x- coordinate
+	 * @param y y- coordinate
+	 * @param z z- coordinate
+	 * @return extremum of the neighborhood
+	 */
+	static float naive(
+			final ImageStack stack,
+			final ImageStack mask,
+			final int connectivity,
+			final boolean maximum,
+			final int x,
+			final int y,
+			final int z )
+	{
+		float extremum = (float) stack.getVoxel( x, y, z );
+		for( final int[] s : NeighborOffsets.getShifts( connectivity ) )
+		{
+			final int xx = x + s[ 0 ], yy = y + s[ 1 ], zz = z + s[ 2 ];
+			if( xx < 0 || xx >= stack.getWidth() || yy < 0 || yy >= stack.getHeight()
+					|| zz < 0 || zz >= stack.getSize() || ( null != mask && mask.getVoxel( xx, yy, zz ) == 0 ) )
+				continue;
+			final float value = (float) stack.getVoxel( xx, yy, zz );
+			extremum = maximum ? Math.max( extremum, value ) : Math.min( extremum, value );
+		}
+		return extremum;
+	}
+
+	@Test
+	public void testMatchesNaiveFilter()
+	{
+		final ImageStack maskStack = createMask();
+		for( final int bitDepth : new int[]{ 8, 16, 32 } )
+			for( final int connectivity : new int[]{ 6, 18, 26 } )
+				for( final boolean maximum : new boolean[]{ false, true } )
+					for( final ImageStack mask : new ImageStack[]{ null, maskStack } )
+					{
+						final ImageStack input = createInput( bitDepth + connectivity, bitDepth );
+						final SlidingExtremumFilter filter = new SlidingExtremumFilter(
+								input, null != mask ? new MaskRuns( mask ) : null, connectivity, maximum );
+						final String run = bitDepth + "-bit, connectivity " + connectivity +
+								( maximum ? ", maximum" : ", minimum" ) + ( null != mask ? ", mask" : "" );
+						for( int z = 0; z < input.getSize(); ++z )
+						{
+							final float[] result = filter.filter( z );
+							for( int y = 0; y < input.getHeight(); ++y )
+								for( int x = 0; x < input.getWidth(); ++x )
+									if( null == mask || mask.getVoxel( x, y, z ) > 0 )
+										assertEquals( run + " at " + x + "," + y + "," + z,
+												naive( input, mask, connectivity, maximum, x, y, z ),
+												result[ x + y * input.getWidth() ], 0 );
+						}
+					}
+	}
+}
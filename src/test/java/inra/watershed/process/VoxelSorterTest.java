@@ -0,0 +1,95 @@
+package inra.watershed.process;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests of the parallel radix sort of the voxels.
+ */
+public class VoxelSorterTest
+{
+	/** number of voxels, enough to split the passes between threads */
+	static final int NUM_VOXELS = 300000;
+
+	/**
+	 * Sort keys with the radix sort and with {@link Collections#sort}
+	 * (stable), and check that the voxels come in the same order
+	 * @param keys unsigned keys
+	 * @param keyBits number of significant bits of the keys
+	 * @param numThreads number of threads of the radix sort
+	 */
+	static void assertStableSort( final int[] keys, final int keyBits, final int numThreads )
+	{
+		final List<Integer> expected = new ArrayList<Integer>( keys.length );
+		for( int i = 0; i < keys.length; ++i )
+			expected.add( i );
+		Collections.sort( expected, new Comparator<Integer>() {
+			public int compare( final Integer a, final Integer b )
+			{
+				return Integer.compare( keys[ a ] ^ 0x80000000, keys[ b ] ^ 0x80000000 );
+			}
+		} );
+
+		final int[] sortedKeys = keys.clone();
+		final int[] voxels = new int[ keys.length ];
+		for( int i = 0; i < voxels.length; ++i )
+			voxels[ i ] = i;
+		VoxelSorter.sort( sortedKeys, voxels, keyBits, numThreads );
+
+		for( int i = 0; i < voxels.length; ++i )
+		{
+			final int voxel = expected.get( i );
+			assertEquals( keyBits + "-bit keys, " + numThreads + " threads, position " + i, voxel, voxels[ i ] );
+			assertEquals( keyBits + "-bit keys, " + numThreads + " threads, position " + i, keys[ voxel ], sortedKeys[ i ] );
+		}
+	}
+
+	@Test
+	public void testStable16BitKeys()
+	{
+		final Random random = new Random( 1 );
+		for( final int keyBits : new int[]{ 8, 16 } )
+		{
+			// few distinct keys, so most voxels share their key with others
+			final int[] keys = new int[ NUM_VOXELS ];
+			for( int i = 0; i < keys.length; ++i )
+				keys[ i ] = random.nextInt( 1 << keyBits ) & ( random.nextBoolean() ? 0xff : 0x0f );
+			for( final int numThreads : new int[]{ 1, 3, 4 } )
+				assertStableSort( keys, keyBits, numThreads );
+		}
+	}
+
+	@Test
+	public void testStable32BitKeys()
+	{
+		final Random random = new Random( 2 );
+		final float[] levels = new float[ 1000 ];
+		for( int i = 0; i < levels.length; ++i )
+			levels[ i ] = (float) ( random.nextGaussian() * 1000 );
+		levels[ 0 ] = 0f;
+		levels[ 1 ] = -0f;
+		levels[ 2 ] = Float.NEGATIVE_INFINITY;
+		levels[ 3 ] = Float.MAX_VALUE;
+
+		final int[] keys = new int[ NUM_VOXELS ];
+		for( int i = 0; i < keys.length; ++i )
+			keys[ i ] = VoxelSorter.floatKey( levels[ random.nextInt( levels.length ) ] );
+		for( final int numThreads : new int[]{ 1, 3, 4 } )
+			assertStableSort( keys, 32, numThreads );
+
+		// the keys are in the order of the float values
+		for( int i = 0; i < levels.length; ++i )
+			for( int j = 0; j < levels.length; ++j )
+				if( levels[ i ] < levels[ j ] )
+					assertEquals( levels[ i ] + " < " + levels[ j ], -1,
+							Integer.signum( Integer.compare( VoxelSorter.floatKey( levels[ i ] ) ^ 0x80000000,
+									VoxelSorter.floatKey( levels[ j ] ) ^ 0x80000000 ) ) );
+	}
+}
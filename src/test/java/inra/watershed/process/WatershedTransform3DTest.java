@@ -0,0 +1,122 @@
+package inra.watershed.process;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+
+/**
+ * Tests of the flooding methods of the watershed transform.
+ */
+public class WatershedTransform3DTest
+{
+	/**
+	 * Random volume with few gray levels (so with large plateaus)
+	 * @param seed random seed
+	 * @return input image
+	 */
+	static ImagePlus createInput( final long seed )
+	{
+		final Random random = new Random( seed );
+		final ImageStack stack = ImageStack.create( 23, 19, 17, 8 );
+		for( int z = 0; z < stack.getSize(); ++z )
+			for( int y = 0; y < stack.getHeight(); ++y )
+				for( int x = 0; x < stack.getWidth(); ++x )
+					stack.setVoxel( x, y, z, random.nextInt( 6 ) );
+		return new ImagePlus( "input", stack );
+	}
+
+	/**
+	 * Seeds spread over the whole volume
+	 * @param seed random seed
+	 * @return seed image (16-bit labels)
+	 */
+	static ImagePlus createSeeds( final long seed )
+	{
+		final Random random = new Random( seed );
+		final ImageStack stack = ImageStack.create( 23, 19, 17, 16 );
+		for( int label = 1; label <= 12; ++label )
+			stack.setVoxel( random.nextInt( stack.getWidth() ), random.nextInt( stack.getHeight() ),
+					random.nextInt( stack.getSize() ), label );
+		return new ImagePlus( "seeds", stack );
+	}
+
+	/**
+	 * Mask of a ball in the middle of the volume
+	 * @return mask image
+	 */
+	static ImagePlus createMask()
+	{
+		final ImageStack stack = ImageStack.create( 23, 19, 17, 8 );
+		for( int z = 0; z < stack.getSize(); ++z )
+			for( int y = 0; y < stack.getHeight(); ++y )
+				for( int x = 0; x < stack.getWidth(); ++x )
+					if( ( x - 11 ) * ( x - 11 ) + ( y - 9 ) * ( y - 9 ) + ( z - 8 ) * ( z - 8 ) <= 64 )
+						stack.setVoxel( x, y, z, 255 );
+		return new ImagePlus( "mask", stack );
+	}
+
+	/**
+	 * Check that two label images are identical
+	 * @param expected expected labels
+	 * @param actual labels to check
+	 * @param message description of the run
+	 */
+	static void assertSameLabels(
+			final ImagePlus expected,
+			final ImagePlus actual,
+			final String message )
+	{
+		final ImageStack a = expected.getStack();
+		final ImageStack b = actual.getStack();
+		assertEquals( message, a.getSize(), b.getSize() );
+		for( int z = 0; z < a.getSize(); ++z )
+			for( int y = 0; y < a.getHeight(); ++y )
+				for( int x = 0; x < a.getWidth(); ++x )
+					assertEquals( message + " at " + x + "," + y + "," + z,
+							(long) a.getVoxel( x, y, z ), (long) b.getVoxel( x, y, z ) );
+	}
+
+	/**
+	 * The slabs flooded in parallel give the same labels as the
+	 * sequential flooding, with one slab and with several ones
+	 */
+	@Test
+	public void testParallelSlabsMatchSequential()
+	{
+		final int threads = Prefs.getThreads();
+		try
+		{
+			for( long seed = 1; seed <= 3; ++seed )
+				for( final int connectivity : new int[]{ 6, 26 } )
+					for( final ImagePlus mask : new ImagePlus[]{ null, createMask() } )
+					{
+						final ImagePlus input = createInput( seed );
+						final ImagePlus seeds = createSeeds( seed );
+
+						final WatershedTransform3D sequential = new WatershedTransform3D( input, seeds, mask );
+						sequential.setConnectivity( connectivity );
+						final ImagePlus expected = sequential.apply();
+
+						for( final int numThreads : new int[]{ 1, 3, 4, 7 } )
+						{
+							Prefs.setThreads( numThreads );
+							final WatershedTransform3D parallel = new WatershedTransform3D( input, seeds, mask );
+							parallel.setConnectivity( connectivity );
+							assertSameLabels( expected, parallel.applyParallel(),
+									"seed " + seed + ", connectivity " + connectivity + ", " + numThreads +
+									" threads" + ( null != mask ? ", mask" : "" ) );
+						}
+					}
+		}
+		finally
+		{
+			Prefs.setThreads( threads );
+		}
+	}
+}